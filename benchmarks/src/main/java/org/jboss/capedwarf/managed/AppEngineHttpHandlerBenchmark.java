@@ -0,0 +1,96 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Logger;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.utils.config.AppEngineWebXml;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole request pipeline, as installed by {@link AppEngineHandlerWrapper#wrap(HttpHandler)},
+ * around a no-op inner handler which writes a body of {@code bodySize} bytes.
+ * API calls (e.g. the teardown's log flush) are answered in-JVM by a stub delegate.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AppEngineHttpHandlerBenchmark {
+    @Param({"0", "1024", "65536"})
+    int bodySize;
+
+    private AppEngineHandlerWrapper wrapper;
+    private HttpHandler handler;
+    private List<Handler> rootHandlers;
+
+    @Setup
+    public void setUp() {
+        rootHandlers = Arrays.asList(Logger.getLogger("").getHandlers());
+        wrapper = new AppEngineHandlerWrapper(new AppEngineWebXml());
+        ApiProxy.setDelegate(SyntheticRequests.newDelegate());
+        handler = wrapper.wrap(SyntheticRequests.newInnerHandler(new byte[bodySize]));
+    }
+
+    @TearDown
+    public void tearDown() {
+        wrapper.stop();
+        // the wrapper installs the runtime's log handlers on the root logger, don't pile them up across trials
+        final Logger root = Logger.getLogger("");
+        for (Handler h : root.getHandlers()) {
+            if (!rootHandlers.contains(h)) {
+                root.removeHandler(h);
+                h.close();
+            }
+        }
+    }
+
+    @Benchmark
+    public HttpServerExchange handleRequest() throws Exception {
+        final HttpServerExchange exchange = SyntheticRequests.newExchange();
+        handler.handleRequest(exchange);
+        return exchange;
+    }
+}
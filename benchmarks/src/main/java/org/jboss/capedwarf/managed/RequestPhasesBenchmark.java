@@ -0,0 +1,146 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.runtime.timer.Timer;
+import com.google.apphosting.utils.http.HttpRequest;
+import com.google.apphosting.utils.http.HttpResponse;
+import com.google.apphosting.utils.servlet.HttpServletRequestAdapter;
+import com.google.apphosting.utils.servlet.HttpServletResponseAdapter;
+import com.google.apphosting.vmruntime.CommitDelayingResponse;
+import com.google.apphosting.vmruntime.VmApiProxyEnvironment;
+import com.google.apphosting.vmruntime.VmMetadataCache;
+import com.google.apphosting.vmruntime.VmRuntimeUtils;
+import com.google.apphosting.vmruntime.VmTimer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The individual phases of AppEngineHttpHandler, measured in isolation.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestPhasesBenchmark {
+    private static final BoundedCommitDelayingResponse.CommitCallback NO_CALLBACK = new BoundedCommitDelayingResponse.CommitCallback() {
+        public void beforeCommit() {
+        }
+    };
+
+    @Param({"1024", "65536"})
+    int bodySize;
+
+    private byte[] body;
+    private VmMetadataCache metadataCache;
+    private Timer wallclockTimer;
+    private RequestEnvironmentTemplate template;
+    private HttpServletRequest request;
+    private HttpRequest requestAdapter;
+    private VmApiProxyEnvironment environment;
+
+    @Setup
+    public void setUp() {
+        body = new byte[bodySize];
+        metadataCache = new VmMetadataCache();
+        wallclockTimer = new VmTimer();
+        template = RequestEnvironmentTemplate.create(metadataCache, wallclockTimer, "/tmp");
+        request = SyntheticRequests.newRequest();
+        requestAdapter = new HttpServletRequestAdapter(request);
+        environment = template.createRequestEnvironment(requestAdapter);
+
+        ApiProxy.setDelegate(SyntheticRequests.newDelegate()); // teardown's log flush must not leave the JVM
+        ApiProxy.setEnvironmentForCurrentThread(environment);
+    }
+
+    @TearDown
+    public void tearDown() {
+        ApiProxy.clearEnvironmentForCurrentThread();
+    }
+
+    @Benchmark
+    public VmApiProxyEnvironment environmentFromTemplate() {
+        return template.createRequestEnvironment(requestAdapter);
+    }
+
+    /**
+     * Baseline: environment creation as it used to be done, straight from System.getenv().
+     */
+    @Benchmark
+    public VmApiProxyEnvironment environmentFromHeaders() {
+        return VmApiProxyEnvironment.createFromHeaders(System.getenv(), metadataCache, requestAdapter, VmRuntimeUtils.getApiServerAddress(), wallclockTimer, VmRuntimeUtils.ONE_DAY_IN_MILLIS, template.getDefaultEnvironment());
+    }
+
+    @Benchmark
+    public void adapters(Blackhole blackhole) {
+        blackhole.consume(new HttpServletRequestAdapter(request));
+        blackhole.consume(new HttpServletResponseAdapter(SyntheticRequests.newResponse()));
+    }
+
+    @Benchmark
+    public CommitDelayingResponse commitDelayingResponse() throws Exception {
+        final CommitDelayingResponse response = new CommitDelayingResponse(SyntheticRequests.newResponse());
+        response.getOutputStream().write(body);
+        response.commit();
+        return response;
+    }
+
+    @Benchmark
+    public BoundedCommitDelayingResponse boundedCommitDelayingResponse() throws Exception {
+        final BoundedCommitDelayingResponse response = new BoundedCommitDelayingResponse(SyntheticRequests.newResponse(), null, 2 * bodySize, NO_CALLBACK);
+        response.getOutputStream().write(body);
+        response.commit();
+        return response;
+    }
+
+    @Benchmark
+    public HttpResponse teardown() throws Exception {
+        final HttpServletResponse response = SyntheticRequests.newResponse();
+        final HttpResponse responseAdapter = new HttpServletResponseAdapter(response);
+        VmRuntimeUtils.interruptRequestThreads(environment, VmRuntimeUtils.MAX_REQUEST_THREAD_INTERRUPT_WAIT_TIME_MS);
+        VmRuntimeUtils.waitForAsyncApiCalls(environment, responseAdapter);
+        VmRuntimeUtils.flushLogsAndAddHeader(responseAdapter, environment);
+        return responseAdapter;
+    }
+}
@@ -0,0 +1,589 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.security.Principal;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpUpgradeHandler;
+import javax.servlet.http.Part;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.vmruntime.VmApiProxyEnvironment;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.servlet.handlers.ServletRequestContext;
+
+/**
+ * Synthetic Undertow / servlet objects, enough to drive the AppEngine handler chain w/o a server.
+ * <p/>
+ * The servlet stubs are plain classes rather than dynamic proxies, so no reflective dispatch
+ * or argument boxing shows up in the allocation numbers.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+final class SyntheticRequests {
+    static final String PATH = "/bench";
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private SyntheticRequests() {
+    }
+
+    static HttpServerExchange newExchange() {
+        final HttpServerExchange exchange = new HttpServerExchange(null);
+        exchange.setRequestPath(PATH);
+        exchange.setRelativePath(PATH);
+        exchange.setRequestURI(PATH);
+
+        final ServletRequestContext context = new ServletRequestContext(null, null, null, null);
+        context.setServletRequest(newRequest());
+        context.setServletResponse(newResponse());
+        exchange.putAttachment(ServletRequestContext.ATTACHMENT_KEY, context);
+        return exchange;
+    }
+
+    static HttpServletRequest newRequest() {
+        return new SyntheticRequest();
+    }
+
+    static HttpServletResponse newResponse() {
+        return new SyntheticResponse();
+    }
+
+    /**
+     * Inner handler which only writes a body of the given size to the current servlet response.
+     */
+    static HttpHandler newInnerHandler(final byte[] body) {
+        return new HttpHandler() {
+            public void handleRequest(HttpServerExchange exchange) throws Exception {
+                if (body.length > 0) {
+                    final ServletRequestContext context = exchange.getAttachment(ServletRequestContext.ATTACHMENT_KEY);
+                    context.getServletResponse().getOutputStream().write(body);
+                }
+            }
+        };
+    }
+
+    /**
+     * API delegate which answers every call with an empty response, so no call leaves the JVM.
+     */
+    static ApiProxy.Delegate<VmApiProxyEnvironment> newDelegate() {
+        return new ApiProxy.Delegate<VmApiProxyEnvironment>() {
+            public byte[] makeSyncCall(VmApiProxyEnvironment environment, String packageName, String methodName, byte[] request) {
+                return EMPTY;
+            }
+
+            public Future<byte[]> makeAsyncCall(VmApiProxyEnvironment environment, String packageName, String methodName, byte[] request, ApiProxy.ApiConfig apiConfig) {
+                return new CompletedFuture(EMPTY);
+            }
+
+            public void log(VmApiProxyEnvironment environment, ApiProxy.LogRecord record) {
+            }
+
+            public void flushLogs(VmApiProxyEnvironment environment) {
+            }
+
+            public List<Thread> getRequestThreads(VmApiProxyEnvironment environment) {
+                return Collections.emptyList();
+            }
+        };
+    }
+
+    private static class SyntheticRequest implements HttpServletRequest {
+        private final Map<String, String> headers = new HashMap<>();
+        private final Map<String, Object> attributes = new HashMap<>();
+
+        private SyntheticRequest() {
+            headers.put("X-AppEngine-Api-Ticket", "bench-ticket");
+            headers.put("X-AppEngine-Https", "off");
+            headers.put("X-AppEngine-User-IP", "127.0.0.1");
+            headers.put("X-AppEngine-Request-Log-Id", "bench-log-id");
+        }
+
+        public String getHeader(String name) {
+            return headers.get(name);
+        }
+
+        public Enumeration<String> getHeaders(String name) {
+            final String value = headers.get(name);
+            return Collections.enumeration(value != null ? Collections.singleton(value) : Collections.<String>emptySet());
+        }
+
+        public Enumeration<String> getHeaderNames() {
+            return Collections.enumeration(headers.keySet());
+        }
+
+        public long getDateHeader(String name) {
+            return -1;
+        }
+
+        public int getIntHeader(String name) {
+            return -1;
+        }
+
+        public DispatcherType getDispatcherType() {
+            return DispatcherType.REQUEST;
+        }
+
+        public String getMethod() {
+            return "GET";
+        }
+
+        public String getRequestURI() {
+            return PATH;
+        }
+
+        public StringBuffer getRequestURL() {
+            return new StringBuffer("http://localhost").append(PATH);
+        }
+
+        public String getServletPath() {
+            return PATH;
+        }
+
+        public String getContextPath() {
+            return "";
+        }
+
+        public String getPathInfo() {
+            return null;
+        }
+
+        public String getPathTranslated() {
+            return null;
+        }
+
+        public String getQueryString() {
+            return null;
+        }
+
+        public String getRemoteAddr() {
+            return "127.0.0.1";
+        }
+
+        public String getRemoteHost() {
+            return "127.0.0.1";
+        }
+
+        public int getRemotePort() {
+            return 0;
+        }
+
+        public String getLocalName() {
+            return "localhost";
+        }
+
+        public String getLocalAddr() {
+            return "127.0.0.1";
+        }
+
+        public int getLocalPort() {
+            return 8080;
+        }
+
+        public String getServerName() {
+            return "localhost";
+        }
+
+        public int getServerPort() {
+            return 8080;
+        }
+
+        public String getProtocol() {
+            return "HTTP/1.1";
+        }
+
+        public String getScheme() {
+            return "http";
+        }
+
+        public boolean isSecure() {
+            return false;
+        }
+
+        public Object getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        public Enumeration<String> getAttributeNames() {
+            return Collections.enumeration(attributes.keySet());
+        }
+
+        public void setAttribute(String name, Object value) {
+            attributes.put(name, value);
+        }
+
+        public void removeAttribute(String name) {
+            attributes.remove(name);
+        }
+
+        public String getCharacterEncoding() {
+            return null;
+        }
+
+        public void setCharacterEncoding(String env) {
+        }
+
+        public int getContentLength() {
+            return -1;
+        }
+
+        public long getContentLengthLong() {
+            return -1;
+        }
+
+        public String getContentType() {
+            return null;
+        }
+
+        public ServletInputStream getInputStream() {
+            return null;
+        }
+
+        public BufferedReader getReader() {
+            return null;
+        }
+
+        public String getParameter(String name) {
+            return null;
+        }
+
+        public Enumeration<String> getParameterNames() {
+            return Collections.emptyEnumeration();
+        }
+
+        public String[] getParameterValues(String name) {
+            return null;
+        }
+
+        public Map<String, String[]> getParameterMap() {
+            return Collections.emptyMap();
+        }
+
+        public Locale getLocale() {
+            return Locale.getDefault();
+        }
+
+        public Enumeration<Locale> getLocales() {
+            return Collections.enumeration(Collections.singleton(Locale.getDefault()));
+        }
+
+        public RequestDispatcher getRequestDispatcher(String path) {
+            return null;
+        }
+
+        @Deprecated
+        public String getRealPath(String path) {
+            return null;
+        }
+
+        public ServletContext getServletContext() {
+            return null;
+        }
+
+        public AsyncContext startAsync() {
+            throw new IllegalStateException("Async not supported");
+        }
+
+        public AsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse) {
+            throw new IllegalStateException("Async not supported");
+        }
+
+        public boolean isAsyncStarted() {
+            return false;
+        }
+
+        public boolean isAsyncSupported() {
+            return false;
+        }
+
+        public AsyncContext getAsyncContext() {
+            throw new IllegalStateException("Async not started");
+        }
+
+        public String getAuthType() {
+            return null;
+        }
+
+        public Cookie[] getCookies() {
+            return null;
+        }
+
+        public String getRemoteUser() {
+            return null;
+        }
+
+        public boolean isUserInRole(String role) {
+            return false;
+        }
+
+        public Principal getUserPrincipal() {
+            return null;
+        }
+
+        public String getRequestedSessionId() {
+            return null;
+        }
+
+        public HttpSession getSession(boolean create) {
+            return null;
+        }
+
+        public HttpSession getSession() {
+            return null;
+        }
+
+        public String changeSessionId() {
+            throw new IllegalStateException("No session");
+        }
+
+        public boolean isRequestedSessionIdValid() {
+            return false;
+        }
+
+        public boolean isRequestedSessionIdFromCookie() {
+            return false;
+        }
+
+        public boolean isRequestedSessionIdFromURL() {
+            return false;
+        }
+
+        @Deprecated
+        public boolean isRequestedSessionIdFromUrl() {
+            return false;
+        }
+
+        public boolean authenticate(HttpServletResponse response) {
+            return false;
+        }
+
+        public void login(String username, String password) {
+        }
+
+        public void logout() {
+        }
+
+        public Collection<Part> getParts() {
+            return Collections.emptyList();
+        }
+
+        public Part getPart(String name) {
+            return null;
+        }
+
+        public <T extends HttpUpgradeHandler> T upgrade(Class<T> handlerClass) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class SyntheticResponse implements HttpServletResponse {
+        private final Map<String, String> headers = new HashMap<>();
+        private final ServletOutputStream out = new NullServletOutputStream();
+        private final PrintWriter writer = new PrintWriter(out);
+        private int status = SC_OK;
+
+        public ServletOutputStream getOutputStream() {
+            return out;
+        }
+
+        public PrintWriter getWriter() {
+            return writer;
+        }
+
+        public void setHeader(String name, String value) {
+            headers.put(name, value);
+        }
+
+        public void addHeader(String name, String value) {
+            headers.put(name, value);
+        }
+
+        public void setDateHeader(String name, long date) {
+            headers.put(name, String.valueOf(date));
+        }
+
+        public void addDateHeader(String name, long date) {
+            headers.put(name, String.valueOf(date));
+        }
+
+        public void setIntHeader(String name, int value) {
+            headers.put(name, String.valueOf(value));
+        }
+
+        public void addIntHeader(String name, int value) {
+            headers.put(name, String.valueOf(value));
+        }
+
+        public String getHeader(String name) {
+            return headers.get(name);
+        }
+
+        public Collection<String> getHeaders(String name) {
+            final String value = headers.get(name);
+            return (value != null) ? Collections.singleton(value) : Collections.<String>emptySet();
+        }
+
+        public Collection<String> getHeaderNames() {
+            return headers.keySet();
+        }
+
+        public boolean containsHeader(String name) {
+            return headers.containsKey(name);
+        }
+
+        public void setStatus(int sc) {
+            status = sc;
+        }
+
+        @Deprecated
+        public void setStatus(int sc, String sm) {
+            status = sc;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public void sendError(int sc, String msg) {
+            status = sc;
+        }
+
+        public void sendError(int sc) {
+            status = sc;
+        }
+
+        public void sendRedirect(String location) {
+            status = SC_FOUND;
+        }
+
+        public void addCookie(Cookie cookie) {
+        }
+
+        public String encodeURL(String url) {
+            return url;
+        }
+
+        public String encodeRedirectURL(String url) {
+            return url;
+        }
+
+        @Deprecated
+        public String encodeUrl(String url) {
+            return url;
+        }
+
+        @Deprecated
+        public String encodeRedirectUrl(String url) {
+            return url;
+        }
+
+        public String getCharacterEncoding() {
+            return "UTF-8";
+        }
+
+        public void setCharacterEncoding(String charset) {
+        }
+
+        public String getContentType() {
+            return null;
+        }
+
+        public void setContentType(String type) {
+        }
+
+        public void setContentLength(int len) {
+        }
+
+        public void setContentLengthLong(long len) {
+        }
+
+        public void setBufferSize(int size) {
+        }
+
+        public int getBufferSize() {
+            return 0;
+        }
+
+        public void flushBuffer() {
+        }
+
+        public void resetBuffer() {
+        }
+
+        public boolean isCommitted() {
+            return false;
+        }
+
+        public void reset() {
+            headers.clear();
+            status = SC_OK;
+        }
+
+        public void setLocale(Locale loc) {
+        }
+
+        public Locale getLocale() {
+            return Locale.getDefault();
+        }
+    }
+
+    private static class NullServletOutputStream extends ServletOutputStream {
+        public void write(int b) throws IOException {
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+        }
+
+        public boolean isReady() {
+            return true;
+        }
+
+        public void setWriteListener(WriteListener writeListener) {
+        }
+    }
+}
@@ -0,0 +1,71 @@
+#!/bin/sh
+
+#trains an application class-data sharing archive for CapeDwarf, used by capedwarf.sh and the Docker image
+#boots WildFly with CapeDwarf configuration (and the deployment dir, like capedwarf.sh), waits until
+#/_ah/warmup answers, requests the paths listed in CDS_TRAINING_PATHS (one per line), shuts the server down,
+#and the JVM writes the classes it loaded to bin/capedwarf.jsa on exit
+#needs JDK 13+ (-XX:ArchiveClassesAtExit); the archive only matches the JVM and jars it was trained with
+
+DIRNAME=`dirname "$0"`
+REALPATH=`cd "$DIRNAME/../bin"; pwd`
+ARCHIVE="$REALPATH/capedwarf.jsa"
+PORT=${CDS_TRAINING_PORT:-8080}
+TIMEOUT=${CDS_TRAINING_TIMEOUT:-300}
+
+if [ "x$JAVA" = "x" ]; then
+    if [ "x$JAVA_HOME" != "x" ]; then
+        JAVA="$JAVA_HOME/bin/java"
+    else
+        JAVA="java"
+    fi
+fi
+
+#"1.8.0_292" -> 8, "17.0.2" -> 17
+JAVA_MAJOR=`"$JAVA" -version 2>&1 | head -1 | sed 's/.*version "\([^"]*\)".*/\1/' | sed 's/^1\.//' | cut -d. -f1 | cut -d- -f1`
+if ! [ "$JAVA_MAJOR" -ge 13 ] 2>/dev/null; then
+    echo "Java $JAVA_MAJOR cannot archive application classes (needs 13+), no class-data sharing archive created."
+    exit 0
+fi
+
+rm -f "$ARCHIVE"
+export CAPEDWARF_CDS_TRAINING=true
+export RUN_CONF="$REALPATH/capedwarf.conf"
+if [ -z "$1" ]; then
+    "$REALPATH/standalone.sh" -c standalone-capedwarf.xml &
+else
+    (cd "$1" && exec "$REALPATH/standalone.sh" -c standalone-capedwarf.xml -DrootDeployment=$1) &
+fi
+SERVER=$!
+
+status() {
+    curl -s -o /dev/null -w '%{http_code}' "http://127.0.0.1:$PORT$1"
+}
+
+ELAPSED=0
+until [ "`status /_ah/warmup`" -ge 200 ] 2>/dev/null && [ "`status /_ah/warmup`" -lt 400 ]; do
+    if [ $ELAPSED -ge $TIMEOUT ] || ! kill -0 $SERVER 2>/dev/null; then
+        echo "Deployment did not answer /_ah/warmup within ${TIMEOUT}s, no class-data sharing archive created."
+        "$REALPATH/jboss-cli.sh" --connect --command=:shutdown > /dev/null 2>&1
+        wait $SERVER
+        rm -f "$ARCHIVE"
+        exit 1
+    fi
+    sleep 1
+    ELAPSED=`expr $ELAPSED + 1`
+done
+
+if [ -r "$CDS_TRAINING_PATHS" ]; then
+    while read -r path; do
+        [ -n "$path" ] && status "$path" > /dev/null
+    done < "$CDS_TRAINING_PATHS"
+fi
+
+"$REALPATH/jboss-cli.sh" --connect --command=:shutdown > /dev/null
+wait $SERVER
+
+if [ -r "$ARCHIVE" ]; then
+    echo "Created class-data sharing archive $ARCHIVE"
+else
+    echo "JVM did not write a class-data sharing archive."
+    exit 1
+fi
@@ -6,6 +6,11 @@
 DIRNAME=`dirname "$0"`
 REALPATH=`cd "$DIRNAME/../bin"; pwd`
 
+#standalone.conf plus the class-data sharing archive, see capedwarf-cds.sh
+if [ "x$RUN_CONF" = "x" ]; then
+    export RUN_CONF="$REALPATH/capedwarf.conf"
+fi
+
 if [ -z "$1" ]; then
     ${DIRNAME}/standalone.sh -c standalone-capedwarf.xml
 else
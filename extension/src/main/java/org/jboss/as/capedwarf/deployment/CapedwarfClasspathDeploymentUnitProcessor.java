@@ -29,19 +29,27 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.jar.JarFile;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.jboss.as.server.deployment.Attachments;
 import org.jboss.as.server.deployment.DeploymentPhaseContext;
 import org.jboss.as.server.deployment.DeploymentUnit;
 import org.jboss.as.server.deployment.DeploymentUnitProcessingException;
+import org.jboss.as.server.deployment.module.ModuleDependency;
 import org.jboss.as.server.deployment.module.ModuleSpecification;
-import org.jboss.modules.ResourceLoader;
+import org.jboss.modules.Module;
+import org.jboss.modules.ModuleIdentifier;
+import org.jboss.modules.ModuleLoader;
 import org.jboss.modules.ResourceLoaderSpec;
-import org.jboss.modules.ResourceLoaders;
+import org.jboss.vfs.VirtualFile;
 
 /**
  * Add runtime and managed jars to classpath.
+ * The jars' loaders are shared by all deployments, or, with a shared runtime,
+ * the jars' modules are imported, so their classes are only defined once.
+ * The runtime then dispatches ApiProxy's server wide delegate per deployment (see the runtime's DeploymentRegistry).
+ * The server's AppEngine API shadows the deployment's own, so a deployment built against a newer one is refused.
  *
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
@@ -53,16 +61,102 @@ public class CapedwarfClasspathDeploymentUnitProcessor extends CapedwarfDeployme
         }
     };
 
+    private static final ModuleIdentifier RUNTIME_MODULE = ModuleIdentifier.create("org.jboss.capedwarf.runtime");
+    private static final ModuleIdentifier APPENGINE_API_MODULE = ModuleIdentifier.create("com.google.appengine.api");
+    private static final Pattern APPENGINE_API_JAR = Pattern.compile("appengine-api-1\\.0-sdk-(\\d+(?:\\.\\d+)*)\\.jar");
+
+    private final boolean sharedRuntime;
+    private String appEngineApiVersion;
     private List<ResourceLoaderSpec> capedwarfResources;
+    private List<LazyJarResourceLoader> capedwarfLoaders;
+
+    public CapedwarfClasspathDeploymentUnitProcessor(boolean sharedRuntime) {
+        this.sharedRuntime = sharedRuntime;
+    }
 
     protected void doDeploy(DeploymentPhaseContext phaseContext) throws DeploymentUnitProcessingException {
         DeploymentUnit unit = phaseContext.getDeploymentUnit();
 
         final ModuleSpecification moduleSpecification = unit.getAttachment(Attachments.MODULE_SPECIFICATION);
-        // add CapeDwarf resources directly as libs
-        for (ResourceLoaderSpec rls : getCapedwarfResources()) {
-            moduleSpecification.addResourceLoader(rls);
+        if (sharedRuntime) {
+            checkAppEngineApiVersion(unit);
+            // system dependencies come before the deployment's own jars, so its AppEngine API jar is shadowed too;
+            // services are imported for the runtime's ServletExtension
+            final ModuleLoader loader = Module.getBootModuleLoader();
+            moduleSpecification.addSystemDependency(new ModuleDependency(loader, APPENGINE_API_MODULE, false, false, false, false));
+            moduleSpecification.addSystemDependency(new ModuleDependency(loader, RUNTIME_MODULE, false, false, true, false));
+        } else {
+            // add CapeDwarf resources directly as libs
+            for (ResourceLoaderSpec rls : getCapedwarfResources()) {
+                moduleSpecification.addResourceLoader(rls);
+            }
+        }
+    }
+
+    /**
+     * The deployment's own AppEngine API jar is shadowed by the server's; refuse one built against a newer API.
+     */
+    protected void checkAppEngineApiVersion(DeploymentUnit unit) throws DeploymentUnitProcessingException {
+        final String serverVersion = getAppEngineApiVersion();
+        final String deploymentVersion = findAppEngineApiVersion(unit);
+        if (serverVersion == null || deploymentVersion == null || deploymentVersion.equals(serverVersion)) {
+            return;
+        }
+        if (compareVersions(deploymentVersion, serverVersion) > 0) {
+            throw new DeploymentUnitProcessingException(String.format(
+                "%s is built against AppEngine API %s, the shared runtime's is older (%s); turn shared-runtime off to use the deployment's own",
+                unit.getName(), deploymentVersion, serverVersion));
+        }
+        log.warnf("%s bundles AppEngine API %s, the shared runtime's %s is used instead", unit.getName(), deploymentVersion, serverVersion);
+    }
+
+    protected synchronized String getAppEngineApiVersion() {
+        if (appEngineApiVersion == null) {
+            for (File jar : findJars("com/google/appengine/api/", getModulePaths())) {
+                final Matcher matcher = APPENGINE_API_JAR.matcher(jar.getName());
+                if (matcher.matches()) {
+                    appEngineApiVersion = matcher.group(1);
+                }
+            }
+        }
+        return appEngineApiVersion;
+    }
+
+    /**
+     * @return the version of the AppEngine API jar in WEB-INF/lib, or in the EAR's lib, null if none is found
+     */
+    protected static String findAppEngineApiVersion(DeploymentUnit unit) {
+        final String version = findAppEngineApiVersion(unit.getAttachment(Attachments.DEPLOYMENT_ROOT).getRoot().getChild("WEB-INF/lib"));
+        final DeploymentUnit parent = unit.getParent();
+        if (version == null && parent != null) {
+            return findAppEngineApiVersion(parent.getAttachment(Attachments.DEPLOYMENT_ROOT).getRoot().getChild("lib"));
+        }
+        return version;
+    }
+
+    private static String findAppEngineApiVersion(VirtualFile lib) {
+        if (lib.exists()) {
+            for (VirtualFile jar : lib.getChildren()) {
+                final Matcher matcher = APPENGINE_API_JAR.matcher(jar.getName());
+                if (matcher.matches()) {
+                    return matcher.group(1);
+                }
+            }
+        }
+        return null;
+    }
+
+    static int compareVersions(String v1, String v2) {
+        final String[] s1 = v1.split("\\.");
+        final String[] s2 = v2.split("\\.");
+        for (int i = 0; i < Math.max(s1.length, s2.length); i++) {
+            final int n1 = (i < s1.length) ? Integer.parseInt(s1[i]) : 0;
+            final int n2 = (i < s2.length) ? Integer.parseInt(s2[i]) : 0;
+            if (n1 != n2) {
+                return (n1 < n2) ? -1 : 1;
+            }
         }
+        return 0;
     }
 
     protected synchronized List<ResourceLoaderSpec> getCapedwarfResources() throws DeploymentUnitProcessingException {
@@ -75,12 +169,16 @@ public class CapedwarfClasspathDeploymentUnitProcessor extends CapedwarfDeployme
                     throw new DeploymentUnitProcessingException(String.format("No jars found under %s", path));
                 }
 
+                // jars are only opened once used, their paths come from the index persisted by the previous boot
+                final CapedwarfJarIndex index = CapedwarfJarIndex.load(getJarIndexFile());
                 capedwarfResources = new ArrayList<>();
+                capedwarfLoaders = new ArrayList<>();
                 for (File jar : jars) {
-                    final JarFile jarFile = new JarFile(jar);
-                    final ResourceLoader rl = ResourceLoaders.createJarResourceLoader(jar.getName(), jarFile);
+                    final LazyJarResourceLoader rl = new LazyJarResourceLoader(jar, index.getPaths(jar));
                     capedwarfResources.add(ResourceLoaderSpec.createResourceLoaderSpec(rl));
+                    capedwarfLoaders.add(rl);
                 }
+                index.store(jars);
             } catch (DeploymentUnitProcessingException e) {
                 throw e;
             } catch (Exception e) {
@@ -90,6 +188,22 @@ public class CapedwarfClasspathDeploymentUnitProcessor extends CapedwarfDeployme
         return capedwarfResources;
     }
 
+    /**
+     * Close the shared jars; the subsystem is going away, and with it the deployments using them.
+     */
+    public synchronized void shutdown() {
+        if (capedwarfLoaders != null) {
+            for (LazyJarResourceLoader rl : capedwarfLoaders) {
+                rl.release();
+            }
+        }
+    }
+
+    protected static File getJarIndexFile() {
+        final String dataDir = System.getProperty("jboss.server.data.dir");
+        return (dataDir != null) ? new File(dataDir, "capedwarf/jar-index.dat") : null;
+    }
+
     protected static List<File> getModulePaths() {
         final List<File> mps;
         final String modulePaths = System.getProperty("module.path");
@@ -0,0 +1,171 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.as.capedwarf.deployment;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarFile;
+
+import org.jboss.logging.Logger;
+import org.jboss.modules.ResourceLoaders;
+
+/**
+ * Index of the CapeDwarf runtime jars' paths, persisted across restarts.
+ * <p/>
+ * Entries are keyed by the jar's path, size and mtime; a jar only has to be opened
+ * and scanned again when it changes.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class CapedwarfJarIndex {
+    private static final Logger log = Logger.getLogger(CapedwarfJarIndex.class);
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private boolean dirty;
+
+    private CapedwarfJarIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Load the index.
+     *
+     * @param file the index file, null if it is not persisted
+     * @return the index, empty if the file is missing or unreadable
+     */
+    static CapedwarfJarIndex load(File file) {
+        final CapedwarfJarIndex index = new CapedwarfJarIndex(file);
+        if (file != null && file.isFile()) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                if (in.readInt() == VERSION) {
+                    for (int i = in.readInt(); i > 0; i--) {
+                        final String jar = in.readUTF();
+                        final long size = in.readLong();
+                        final long lastModified = in.readLong();
+                        final List<String> paths = new ArrayList<>();
+                        for (int j = in.readInt(); j > 0; j--) {
+                            paths.add(in.readUTF());
+                        }
+                        index.entries.put(jar, new Entry(size, lastModified, paths));
+                    }
+                }
+            } catch (IOException e) {
+                log.debugf(e, "Ignoring unreadable jar index %s", file);
+                index.entries.clear();
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Get the jar's paths, from the index if the jar did not change.
+     *
+     * @param jar the jar
+     * @return the jar's paths
+     * @throws IOException for any I/O error scanning the jar
+     */
+    synchronized Collection<String> getPaths(File jar) throws IOException {
+        final String key = jar.getAbsolutePath();
+        final long size = jar.length();
+        final long lastModified = jar.lastModified();
+        Entry entry = entries.get(key);
+        if (entry == null || entry.size != size || entry.lastModified != lastModified) {
+            entry = new Entry(size, lastModified, scan(jar));
+            entries.put(key, entry);
+            dirty = true;
+        }
+        return entry.paths;
+    }
+
+    /**
+     * Drop the entries of jars that are gone, and persist the index if it changed.
+     *
+     * @param jars the current jars
+     */
+    synchronized void store(Collection<File> jars) {
+        final Set<String> keys = new HashSet<>();
+        for (File jar : jars) {
+            keys.add(jar.getAbsolutePath());
+        }
+        dirty |= entries.keySet().retainAll(keys);
+        if (!dirty || file == null) {
+            return;
+        }
+
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+            final File tmp = new File(file.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    final Entry entry = e.getValue();
+                    out.writeUTF(e.getKey());
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.lastModified);
+                    out.writeInt(entry.paths.size());
+                    for (String path : entry.paths) {
+                        out.writeUTF(path);
+                    }
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException e) {
+            log.warnf(e, "Cannot store jar index %s", file);
+        }
+    }
+
+    private static List<String> scan(File jar) throws IOException {
+        try (JarFile jarFile = new JarFile(jar)) {
+            return new ArrayList<>(ResourceLoaders.createJarResourceLoader(jar.getName(), jarFile).getPaths());
+        }
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long lastModified;
+        private final List<String> paths;
+
+        private Entry(long size, long lastModified, List<String> paths) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.paths = paths;
+        }
+    }
+}
@@ -26,7 +26,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
+import org.jboss.as.capedwarf.utils.Constants;
 import org.jboss.as.server.deployment.DeploymentUnit;
 import org.jboss.metadata.javaee.spec.ParamValueMetaData;
 import org.jboss.metadata.javaee.spec.SecurityRoleMetaData;
@@ -64,23 +66,16 @@ public class CapedwarfWebComponentsDeploymentProcessor extends CapedwarfWebModif
 
     private static final String CAPEDWARF_TGT = "CAPEDWARF";
 
-    private static final String TX_DETECTOR_FILTER_NAME = "AbandonedTransactionDetector";
-    private static final String SAVE_SESSION_FILTER_NAME = "SaveSessionFilter";
-    private static final String PARSE_BLOB_FILTER_NAME = "_ah_ParseBlobUploadFilter";
     private static final String VM_STOP_FILTER_NAME = "_ah_VmStopFilter";
     private static final String HEALTH_SERVLET_NAME = "_ah_health";
     private static final String SESSION_CLEANUP_SERVLET_NAME = "_ah_sessioncleanup";
     private static final String WARMUP_SERVLET_NAME = "_ah_warmup";
     private static final String QUEUE_DEFERRED_SERVLET_NAME = "_ah_queue_deferred";
 
-    private final FilterMetaData TX_DETECTOR_FILTER;
-    private final FilterMetaData SAVE_SESSION_FILTER;
-    private final FilterMetaData PARSE_BLOB_FILTER;
+    private static final String SESSION_CLEANUP_CONFIG = Constants.RUNTIME_CONFIG_PREFIX + "session-cleanup";
+
     private final FilterMetaData VM_STOP_FILTER;
 
-    private final FilterMappingMetaData TX_DETECTOR_FILTER_MAPPING;
-    private final FilterMappingMetaData SAVE_SESSION_FILTER_MAPPING;
-    private final FilterMappingMetaData PARSE_BLOB_FILTER_MAPPING;
     private final FilterMappingMetaData VM_STOP_FILTER_MAPPING;
 
     private final ServletMetaData HEALTH_SERVLET;
@@ -94,22 +89,22 @@ public class CapedwarfWebComponentsDeploymentProcessor extends CapedwarfWebModif
     private final ServletMappingMetaData QUEUE_DEFERRED_SERVLET_MAPPING;
 
     private final String adminTGT;
+    private final Map<String, String> runtimeConfig;
 
-    public CapedwarfWebComponentsDeploymentProcessor(String tgt) {
+    public CapedwarfWebComponentsDeploymentProcessor(String tgt, Map<String, String> runtimeConfig) {
         adminTGT = tgt;
+        this.runtimeConfig = runtimeConfig;
 
-        TX_DETECTOR_FILTER = createFilter(TX_DETECTOR_FILTER_NAME, "com.google.apphosting.utils.servlet.TransactionCleanupFilter");
-        SAVE_SESSION_FILTER = createFilter(SAVE_SESSION_FILTER_NAME, "org.jboss.capedwarf.managed.SaveSessionFilter");
-        PARSE_BLOB_FILTER = createFilter(PARSE_BLOB_FILTER_NAME, "com.google.apphosting.utils.servlet.ParseBlobUploadFilter");
         VM_STOP_FILTER = createFilter(VM_STOP_FILTER_NAME, "com.google.apphosting.utils.servlet.VmStopFilter");
 
-        TX_DETECTOR_FILTER_MAPPING = createFilterMapping(TX_DETECTOR_FILTER_NAME, "/*");
-        SAVE_SESSION_FILTER_MAPPING = createFilterMapping(SAVE_SESSION_FILTER_NAME, "/*");
-        PARSE_BLOB_FILTER_MAPPING = createFilterMapping(PARSE_BLOB_FILTER_NAME, "/*");
         VM_STOP_FILTER_MAPPING = createFilterMapping(VM_STOP_FILTER_NAME, "/_ah/stop");
 
         HEALTH_SERVLET = createServlet(HEALTH_SERVLET_NAME, "com.google.apphosting.utils.servlet.VmHealthServlet");
-        SESSION_CLEANUP_SERVLET = createServlet(SESSION_CLEANUP_SERVLET_NAME, "com.google.apphosting.utils.servlet.SessionCleanupServlet");
+        if ("paged".equals(runtimeConfig.get(SESSION_CLEANUP_CONFIG))) {
+            SESSION_CLEANUP_SERVLET = createServlet(SESSION_CLEANUP_SERVLET_NAME, "org.jboss.capedwarf.managed.PagedSessionCleanupServlet");
+        } else {
+            SESSION_CLEANUP_SERVLET = createServlet(SESSION_CLEANUP_SERVLET_NAME, "com.google.apphosting.utils.servlet.SessionCleanupServlet");
+        }
         WARMUP_SERVLET = createServlet(WARMUP_SERVLET_NAME, "com.google.apphosting.utils.servlet.WarmupServlet");
         QUEUE_DEFERRED_SERVLET = createServlet(QUEUE_DEFERRED_SERVLET_NAME, "com.google.apphosting.utils.servlet.DeferredTaskServlet");
 
@@ -126,14 +121,9 @@ public class CapedwarfWebComponentsDeploymentProcessor extends CapedwarfWebModif
     @Override
     protected void doDeploy(DeploymentUnit unit, WebMetaData webMetaData, Type type) {
         if (type == Type.SPEC) {
-            getFilterMappings(webMetaData).add(TX_DETECTOR_FILTER_MAPPING);
-            getFilterMappings(webMetaData).add(SAVE_SESSION_FILTER_MAPPING);
-            getFilterMappings(webMetaData).add(PARSE_BLOB_FILTER_MAPPING);
+            // transaction cleanup, session save and blob upload parsing are done by the runtime's RequestFiltersHandler
             getFilterMappings(webMetaData).add(VM_STOP_FILTER_MAPPING);
 
-            getFilters(webMetaData).add(TX_DETECTOR_FILTER);
-            getFilters(webMetaData).add(SAVE_SESSION_FILTER);
-            getFilters(webMetaData).add(PARSE_BLOB_FILTER);
             getFilters(webMetaData).add(VM_STOP_FILTER);
 
             addServletAndMapping(webMetaData, HEALTH_SERVLET, HEALTH_SERVLET_MAPPING);
@@ -144,6 +134,10 @@ public class CapedwarfWebComponentsDeploymentProcessor extends CapedwarfWebModif
             getSecurityConstraints(webMetaData).add(createServletSecurityConstraint("Queue Deferred", "/_ah/queue/__deferred__", "admin"));
 
             getSessionConfig(webMetaData).setSessionTimeout(1440);
+
+            for (Map.Entry<String, String> entry : runtimeConfig.entrySet()) {
+                addContextParamsTo(webMetaData, create(entry.getKey(), entry.getValue()));
+            }
         }
     }
 
@@ -0,0 +1,126 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.as.capedwarf.deployment;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.jar.JarFile;
+
+import org.jboss.modules.ClassSpec;
+import org.jboss.modules.IterableResourceLoader;
+import org.jboss.modules.PackageSpec;
+import org.jboss.modules.Resource;
+import org.jboss.modules.ResourceLoader;
+import org.jboss.modules.ResourceLoaders;
+
+/**
+ * Jar resource loader that only opens its jar once something is loaded from it.
+ * <p/>
+ * The paths come from the {@link CapedwarfJarIndex}, so the module's path index is built
+ * without opening the jar. Instances are shared by all deployments, so a module's unload
+ * must not close the jar under the others; it is only closed on subsystem shutdown, see {@link #release}.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class LazyJarResourceLoader implements IterableResourceLoader {
+    private final File jar;
+    private final Collection<String> paths;
+    private volatile ResourceLoader delegate;
+
+    LazyJarResourceLoader(File jar, Collection<String> paths) {
+        this.jar = jar;
+        this.paths = Collections.unmodifiableCollection(paths);
+    }
+
+    private ResourceLoader getDelegate() throws IOException {
+        ResourceLoader rl = delegate;
+        if (rl == null) {
+            synchronized (this) {
+                rl = delegate;
+                if (rl == null) {
+                    rl = ResourceLoaders.createJarResourceLoader(jar.getName(), new JarFile(jar));
+                    delegate = rl;
+                }
+            }
+        }
+        return rl;
+    }
+
+    public String getRootName() {
+        return jar.getName();
+    }
+
+    public ClassSpec getClassSpec(String fileName) throws IOException {
+        return getDelegate().getClassSpec(fileName);
+    }
+
+    public PackageSpec getPackageSpec(String name) throws IOException {
+        return getDelegate().getPackageSpec(name);
+    }
+
+    public Resource getResource(String name) {
+        try {
+            return getDelegate().getResource(name);
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Cannot open %s", jar), e);
+        }
+    }
+
+    public String getLibrary(String name) {
+        return null; // jars have no native libraries
+    }
+
+    public Collection<String> getPaths() {
+        return paths;
+    }
+
+    public Iterator<Resource> iterateResources(String startPath, boolean recursive) {
+        try {
+            final ResourceLoader rl = getDelegate();
+            if (rl instanceof IterableResourceLoader) {
+                return IterableResourceLoader.class.cast(rl).iterateResources(startPath, recursive);
+            }
+            return Collections.<Resource>emptyList().iterator();
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Cannot open %s", jar), e);
+        }
+    }
+
+    public void close() {
+        // shared, see release
+    }
+
+    /**
+     * Close the jar, once no module uses this loader anymore.
+     */
+    synchronized void release() {
+        final ResourceLoader rl = delegate;
+        if (rl != null) {
+            delegate = null;
+            rl.close();
+        }
+    }
+}
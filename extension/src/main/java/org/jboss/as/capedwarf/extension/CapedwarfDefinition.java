@@ -2,17 +2,21 @@ package org.jboss.as.capedwarf.extension;
 
 import java.util.EnumSet;
 
+import org.jboss.as.controller.OperationDefinition;
 import org.jboss.as.controller.PathElement;
 import org.jboss.as.controller.ReloadRequiredRemoveStepHandler;
 import org.jboss.as.controller.ReloadRequiredWriteAttributeHandler;
 import org.jboss.as.controller.SimpleAttributeDefinition;
 import org.jboss.as.controller.SimpleAttributeDefinitionBuilder;
+import org.jboss.as.controller.SimpleOperationDefinitionBuilder;
 import org.jboss.as.controller.SimpleResourceDefinition;
 import org.jboss.as.controller.descriptions.DefaultResourceAddDescriptionProvider;
 import org.jboss.as.controller.descriptions.DefaultResourceRemoveDescriptionProvider;
 import org.jboss.as.controller.descriptions.DescriptionProvider;
 import org.jboss.as.controller.descriptions.ModelDescriptionConstants;
 import org.jboss.as.controller.descriptions.ResourceDescriptionResolver;
+import org.jboss.as.controller.operations.validation.IntRangeValidator;
+import org.jboss.as.controller.operations.validation.StringAllowedValuesValidator;
 import org.jboss.as.controller.operations.validation.StringLengthValidator;
 import org.jboss.as.controller.registry.AttributeAccess;
 import org.jboss.as.controller.registry.ManagementResourceRegistration;
@@ -44,6 +48,134 @@ class CapedwarfDefinition extends SimpleResourceDefinition {
                     .setFlags(AttributeAccess.Flag.RESTART_ALL_SERVICES)
                     .build();
 
+    protected static final SimpleAttributeDefinition API_LIMITER =
+            new SimpleAttributeDefinitionBuilder(CapedwarfModel.API_LIMITER, ModelType.BOOLEAN, true)
+                    .setAllowExpression(true)
+                    .setXmlName(CapedwarfModel.API_LIMITER)
+                    .setFlags(AttributeAccess.Flag.RESTART_ALL_SERVICES)
+                    .build();
+
+    protected static final SimpleAttributeDefinition API_LIMIT_MAX =
+            new SimpleAttributeDefinitionBuilder(CapedwarfModel.API_LIMIT_MAX, ModelType.INT, true)
+                    .setAllowExpression(true)
+                    .setXmlName(CapedwarfModel.API_LIMIT_MAX)
+                    .setValidator(new IntRangeValidator(1, true, true))
+                    .setFlags(AttributeAccess.Flag.RESTART_ALL_SERVICES)
+                    .build();
+
+    protected static final SimpleAttributeDefinition API_LIMIT_PER_REQUEST =
+            new SimpleAttributeDefinitionBuilder(CapedwarfModel.API_LIMIT_PER_REQUEST, ModelType.INT, true)
+                    .setAllowExpression(true)
+                    .setXmlName(CapedwarfModel.API_LIMIT_PER_REQUEST)
+                    .setValidator(new IntRangeValidator(1, true, true))
+                    .setFlags(AttributeAccess.Flag.RESTART_ALL_SERVICES)
+                    .build();
+
+    protected static final SimpleAttributeDefinition RECORD_API_METRICS =
+            new SimpleAttributeDefinitionBuilder(CapedwarfModel.RECORD_API_METRICS, ModelType.BOOLEAN, true)
+                    .setAllowExpression(true)
+                    .setXmlName(CapedwarfModel.RECORD_API_METRICS)
+                    .setFlags(AttributeAccess.Flag.RESTART_ALL_SERVICES)
+                    .build();
+
+    protected static final SimpleAttributeDefinition SERVER_TIMING =
+            new SimpleAttributeDefinitionBuilder(CapedwarfModel.SERVER_TIMING, ModelType.STRING, true)
+                    .setAllowExpression(true)
+                    .setXmlName(CapedwarfModel.SERVER_TIMING)
+                    .setValidator(new StringAllowedValuesValidator("none", "admin", "all"))
+                    .setFlags(AttributeAccess.Flag.RESTART_ALL_SERVICES)
+                    .build();
+
+    protected static final SimpleAttributeDefinition SESSION_CLEANUP =
+            new SimpleAttributeDefinitionBuilder(CapedwarfModel.SESSION_CLEANUP, ModelType.STRING, true)
+                    .setAllowExpression(true)
+                    .setXmlName(CapedwarfModel.SESSION_CLEANUP)
+                    .setValidator(new StringAllowedValuesValidator("classic", "paged"))
+                    .setFlags(AttributeAccess.Flag.RESTART_ALL_SERVICES)
+                    .build();
+
+    protected static final SimpleAttributeDefinition SESSION_CLEANUP_BATCH_SIZE =
+            new SimpleAttributeDefinitionBuilder(CapedwarfModel.SESSION_CLEANUP_BATCH_SIZE, ModelType.INT, true)
+                    .setAllowExpression(true)
+                    .setXmlName(CapedwarfModel.SESSION_CLEANUP_BATCH_SIZE)
+                    .setValidator(new IntRangeValidator(1, true, true))
+                    .setFlags(AttributeAccess.Flag.RESTART_ALL_SERVICES)
+                    .build();
+
+    protected static final SimpleAttributeDefinition SESSION_CLEANUP_CONCURRENCY =
+            new SimpleAttributeDefinitionBuilder(CapedwarfModel.SESSION_CLEANUP_CONCURRENCY, ModelType.INT, true)
+                    .setAllowExpression(true)
+                    .setXmlName(CapedwarfModel.SESSION_CLEANUP_CONCURRENCY)
+                    .setValidator(new IntRangeValidator(1, true, true))
+                    .setFlags(AttributeAccess.Flag.RESTART_ALL_SERVICES)
+                    .build();
+
+    protected static final SimpleAttributeDefinition WARMUP =
+            new SimpleAttributeDefinitionBuilder(CapedwarfModel.WARMUP, ModelType.BOOLEAN, true)
+                    .setAllowExpression(true)
+                    .setXmlName(CapedwarfModel.WARMUP)
+                    .setFlags(AttributeAccess.Flag.RESTART_ALL_SERVICES)
+                    .build();
+
+    protected static final SimpleAttributeDefinition WARMUP_REPLAY =
+            new SimpleAttributeDefinitionBuilder(CapedwarfModel.WARMUP_REPLAY, ModelType.INT, true)
+                    .setAllowExpression(true)
+                    .setXmlName(CapedwarfModel.WARMUP_REPLAY)
+                    .setValidator(new IntRangeValidator(0, true, true))
+                    .setFlags(AttributeAccess.Flag.RESTART_ALL_SERVICES)
+                    .build();
+
+    protected static final SimpleAttributeDefinition WARMUP_PATHS =
+            new SimpleAttributeDefinitionBuilder(CapedwarfModel.WARMUP_PATHS, ModelType.STRING, true)
+                    .setAllowExpression(true)
+                    .setXmlName(CapedwarfModel.WARMUP_PATHS)
+                    .setFlags(AttributeAccess.Flag.RESTART_ALL_SERVICES)
+                    .build();
+
+    protected static final SimpleAttributeDefinition WARMUP_QUERY =
+            new SimpleAttributeDefinitionBuilder(CapedwarfModel.WARMUP_QUERY, ModelType.BOOLEAN, true)
+                    .setAllowExpression(true)
+                    .setXmlName(CapedwarfModel.WARMUP_QUERY)
+                    .setFlags(AttributeAccess.Flag.RESTART_ALL_SERVICES)
+                    .build();
+
+    protected static final SimpleAttributeDefinition WARMUP_THREADS =
+            new SimpleAttributeDefinitionBuilder(CapedwarfModel.WARMUP_THREADS, ModelType.INT, true)
+                    .setAllowExpression(true)
+                    .setXmlName(CapedwarfModel.WARMUP_THREADS)
+                    .setValidator(new IntRangeValidator(1, true, true))
+                    .setFlags(AttributeAccess.Flag.RESTART_ALL_SERVICES)
+                    .build();
+
+    protected static final SimpleAttributeDefinition SHARED_RUNTIME =
+            new SimpleAttributeDefinitionBuilder(CapedwarfModel.SHARED_RUNTIME, ModelType.BOOLEAN, true)
+                    .setAllowExpression(true)
+                    .setXmlName(CapedwarfModel.SHARED_RUNTIME)
+                    .setFlags(AttributeAccess.Flag.RESTART_ALL_SERVICES)
+                    .build();
+
+    protected static final SimpleAttributeDefinition API_METRICS =
+            new SimpleAttributeDefinitionBuilder(CapedwarfModel.API_METRICS, ModelType.OBJECT, true)
+                    .setStorageRuntime()
+                    .build();
+
+    protected static final SimpleAttributeDefinition REQUEST_PHASES =
+            new SimpleAttributeDefinitionBuilder(CapedwarfModel.REQUEST_PHASES, ModelType.OBJECT, true)
+                    .setStorageRuntime()
+                    .build();
+
+    protected static final OperationDefinition RESET_API_METRICS =
+            new SimpleOperationDefinitionBuilder(CapedwarfModel.RESET_API_METRICS, CapedwarfExtension.getResourceDescriptionResolver(CapedwarfExtension.SUBSYSTEM_NAME))
+                    .setRuntimeOnly()
+                    .build();
+
+    /**
+     * Attributes handed to the deployments' runtime as context params (same name, runtime config prefix).
+     */
+    protected static final SimpleAttributeDefinition[] RUNTIME_ATTRIBUTES = {API_LIMITER, API_LIMIT_MAX, API_LIMIT_PER_REQUEST, RECORD_API_METRICS, SERVER_TIMING,
+        SESSION_CLEANUP, SESSION_CLEANUP_BATCH_SIZE, SESSION_CLEANUP_CONCURRENCY, WARMUP, WARMUP_REPLAY, WARMUP_PATHS,
+        WARMUP_QUERY, WARMUP_THREADS};
+
     private CapedwarfDefinition() {
         super(PathElement.pathElement(
                 ModelDescriptionConstants.SUBSYSTEM, CapedwarfExtension.SUBSYSTEM_NAME),
@@ -60,11 +192,18 @@ class CapedwarfDefinition extends SimpleResourceDefinition {
         rootResourceRegistration.registerOperationHandler(ADD, subsystemAdd, subsystemAddDescription, EnumSet.of(OperationEntry.Flag.RESTART_ALL_SERVICES));
         final DescriptionProvider subsystemRemoveDescription = new DefaultResourceRemoveDescriptionProvider(rootResolver);
         rootResourceRegistration.registerOperationHandler(REMOVE, ReloadRequiredRemoveStepHandler.INSTANCE, subsystemRemoveDescription, EnumSet.of(OperationEntry.Flag.RESTART_ALL_SERVICES));
+        rootResourceRegistration.registerOperationHandler(RESET_API_METRICS, RuntimeMetricsHandler.RESET);
     }
 
     @Override
     public void registerAttributes(ManagementResourceRegistration resourceRegistration) {
         resourceRegistration.registerReadWriteAttribute(APPENGINE_API, null, new ReloadRequiredWriteAttributeHandler());
         resourceRegistration.registerReadWriteAttribute(ADMIN_TGT, null, new ReloadRequiredWriteAttributeHandler());
+        for (SimpleAttributeDefinition attribute : RUNTIME_ATTRIBUTES) {
+            resourceRegistration.registerReadWriteAttribute(attribute, null, new ReloadRequiredWriteAttributeHandler());
+        }
+        resourceRegistration.registerReadWriteAttribute(SHARED_RUNTIME, null, new ReloadRequiredWriteAttributeHandler());
+        resourceRegistration.registerReadOnlyAttribute(API_METRICS, RuntimeMetricsHandler.API_METRICS);
+        resourceRegistration.registerReadOnlyAttribute(REQUEST_PHASES, RuntimeMetricsHandler.REQUEST_PHASES);
     }
 }
@@ -29,6 +29,7 @@ import javax.xml.stream.XMLStreamException;
 
 import org.jboss.as.controller.Extension;
 import org.jboss.as.controller.ExtensionContext;
+import org.jboss.as.controller.SimpleAttributeDefinition;
 import org.jboss.as.controller.SubsystemRegistration;
 import org.jboss.as.controller.descriptions.ResourceDescriptionResolver;
 import org.jboss.as.controller.descriptions.StandardResourceDescriptionResolver;
@@ -106,6 +107,10 @@ public class CapedwarfExtension implements Extension {
             context.startSubsystemElement(CapedwarfExtension.NAMESPACE, false);
             CapedwarfDefinition.APPENGINE_API.marshallAsElement(context.getModelNode(),writer);
             CapedwarfDefinition.ADMIN_TGT.marshallAsElement(context.getModelNode(),writer);
+            for (SimpleAttributeDefinition attribute : CapedwarfDefinition.RUNTIME_ATTRIBUTES) {
+                attribute.marshallAsElement(context.getModelNode(), writer);
+            }
+            CapedwarfDefinition.SHARED_RUNTIME.marshallAsElement(context.getModelNode(), writer);
             writer.writeEndElement();
         }
 
@@ -122,8 +127,15 @@ public class CapedwarfExtension implements Extension {
                     CapedwarfDefinition.APPENGINE_API.parseAndSetParameter(reader.getElementText(), operation, reader);
                 } else if (CapedwarfModel.ADMIN_AUTH.equals(reader.getLocalName())) {
                     CapedwarfDefinition.ADMIN_TGT.parseAndSetParameter(reader.getElementText(), operation, reader);
+                } else if (CapedwarfModel.SHARED_RUNTIME.equals(reader.getLocalName())) {
+                    CapedwarfDefinition.SHARED_RUNTIME.parseAndSetParameter(reader.getElementText(), operation, reader);
                 } else {
-                    reader.handleAny(list);
+                    final SimpleAttributeDefinition attribute = findRuntimeAttribute(reader.getLocalName());
+                    if (attribute != null) {
+                        attribute.parseAndSetParameter(reader.getElementText(), operation, reader);
+                    } else {
+                        reader.handleAny(list);
+                    }
                 }
             }
             list.add(operation);
@@ -131,6 +143,15 @@ public class CapedwarfExtension implements Extension {
             //ParseUtils.requireNoContent(reader);
 
         }
+
+        private static SimpleAttributeDefinition findRuntimeAttribute(String name) {
+            for (SimpleAttributeDefinition attribute : CapedwarfDefinition.RUNTIME_ATTRIBUTES) {
+                if (attribute.getXmlName().equals(name)) {
+                    return attribute;
+                }
+            }
+            return null;
+        }
     }
 
 
@@ -7,4 +7,21 @@ package org.jboss.as.capedwarf.extension;
 interface CapedwarfModel {
     String APPENGINE_API = "appengine-api";
     String ADMIN_AUTH = "admin-auth";
+    String API_LIMITER = "api-limiter";
+    String API_LIMIT_MAX = "api-limit-max";
+    String API_LIMIT_PER_REQUEST = "api-limit-per-request";
+    String RECORD_API_METRICS = "record-api-metrics";
+    String SERVER_TIMING = "server-timing";
+    String SESSION_CLEANUP = "session-cleanup";
+    String SESSION_CLEANUP_BATCH_SIZE = "session-cleanup-batch-size";
+    String SESSION_CLEANUP_CONCURRENCY = "session-cleanup-concurrency";
+    String WARMUP = "warmup";
+    String WARMUP_REPLAY = "warmup-replay";
+    String WARMUP_PATHS = "warmup-paths";
+    String WARMUP_QUERY = "warmup-query";
+    String WARMUP_THREADS = "warmup-threads";
+    String SHARED_RUNTIME = "shared-runtime";
+    String API_METRICS = "api-metrics";
+    String REQUEST_PHASES = "request-phases";
+    String RESET_API_METRICS = "reset-api-metrics";
 }
@@ -22,7 +22,9 @@
 
 package org.jboss.as.capedwarf.extension;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.jboss.as.capedwarf.deployment.CapedwarfClasspathDeploymentUnitProcessor;
 import org.jboss.as.capedwarf.deployment.CapedwarfInitializationProcessor;
@@ -32,11 +34,14 @@ import org.jboss.as.controller.AbstractBoottimeAddStepHandler;
 import org.jboss.as.controller.OperationContext;
 import org.jboss.as.controller.OperationFailedException;
 import org.jboss.as.controller.ServiceVerificationHandler;
+import org.jboss.as.controller.SimpleAttributeDefinition;
 import org.jboss.as.server.AbstractDeploymentChainStep;
 import org.jboss.as.server.DeploymentProcessorTarget;
 import org.jboss.as.server.deployment.Phase;
 import org.jboss.dmr.ModelNode;
+import org.jboss.msc.service.AbstractService;
 import org.jboss.msc.service.ServiceController;
+import org.jboss.msc.service.StopContext;
 
 /**
  * Handler responsible for adding the subsystem resource to the model
@@ -59,6 +64,10 @@ class CapedwarfSubsystemAdd extends AbstractBoottimeAddStepHandler {
     protected void populateModel(ModelNode operation, ModelNode model) throws OperationFailedException {
         CapedwarfDefinition.APPENGINE_API.validateAndSet(operation, model);
         CapedwarfDefinition.ADMIN_TGT.validateAndSet(operation, model);
+        for (SimpleAttributeDefinition attribute : CapedwarfDefinition.RUNTIME_ATTRIBUTES) {
+            attribute.validateAndSet(operation, model);
+        }
+        CapedwarfDefinition.SHARED_RUNTIME.validateAndSet(operation, model);
     }
 
     /**
@@ -71,12 +80,32 @@ class CapedwarfSubsystemAdd extends AbstractBoottimeAddStepHandler {
         final ModelNode adminTGTModel = CapedwarfDefinition.ADMIN_TGT.resolveModelAttribute(context, model);
         final String adminTGT = adminTGTModel.isDefined() ? adminTGTModel.asString() : null;
 
+        final Map<String, String> runtimeConfig = new HashMap<>();
+        for (SimpleAttributeDefinition attribute : CapedwarfDefinition.RUNTIME_ATTRIBUTES) {
+            final ModelNode value = attribute.resolveModelAttribute(context, model);
+            if (value.isDefined()) {
+                runtimeConfig.put(Constants.RUNTIME_CONFIG_PREFIX + attribute.getName(), value.asString());
+            }
+        }
+
+        final ModelNode sharedRuntimeModel = CapedwarfDefinition.SHARED_RUNTIME.resolveModelAttribute(context, model);
+        final boolean sharedRuntime = sharedRuntimeModel.isDefined() && sharedRuntimeModel.asBoolean();
+        final CapedwarfClasspathDeploymentUnitProcessor classpathProcessor = new CapedwarfClasspathDeploymentUnitProcessor(sharedRuntime);
+
+        // the runtime jars' loaders are shared by all deployments, they are closed with the subsystem
+        newControllers.add(context.getServiceTarget().addService(Constants.CAPEDWARF_NAME.append("runtime-jars"), new AbstractService<Void>() {
+            @Override
+            public void stop(StopContext stopContext) {
+                classpathProcessor.shutdown();
+            }
+        }).install());
+
         context.addStep(new AbstractDeploymentChainStep() {
             public void execute(DeploymentProcessorTarget processorTarget) {
                 final int initialStructureOrder = Math.max(Math.max(Phase.STRUCTURE_WAR, Phase.STRUCTURE_WAR_DEPLOYMENT_INIT), Phase.STRUCTURE_EAR);
                 processorTarget.addDeploymentProcessor(Constants.CAPEDWARF, Phase.STRUCTURE, initialStructureOrder + 10, new CapedwarfInitializationProcessor());
-                processorTarget.addDeploymentProcessor(Constants.CAPEDWARF, Phase.PARSE, Phase.PARSE_WEB_COMPONENTS - 1, new CapedwarfWebComponentsDeploymentProcessor(adminTGT));
-                processorTarget.addDeploymentProcessor(Constants.CAPEDWARF, Phase.DEPENDENCIES, Phase.DEPENDENCIES_JPA - 5, new CapedwarfClasspathDeploymentUnitProcessor());
+                processorTarget.addDeploymentProcessor(Constants.CAPEDWARF, Phase.PARSE, Phase.PARSE_WEB_COMPONENTS - 1, new CapedwarfWebComponentsDeploymentProcessor(adminTGT, runtimeConfig));
+                processorTarget.addDeploymentProcessor(Constants.CAPEDWARF, Phase.DEPENDENCIES, Phase.DEPENDENCIES_JPA - 5, classpathProcessor);
             }
         }, OperationContext.Stage.RUNTIME);
 
@@ -0,0 +1,102 @@
+package org.jboss.as.capedwarf.extension;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.jboss.as.capedwarf.utils.Constants;
+import org.jboss.as.controller.AbstractRuntimeOnlyHandler;
+import org.jboss.as.controller.OperationContext;
+import org.jboss.as.controller.OperationFailedException;
+import org.jboss.dmr.ModelNode;
+
+/**
+ * Reads (or resets) the API and request phase metrics the deployments' runtime registers as MXBeans.
+ * <p/>
+ * Deployments load the runtime in their own classloader, hence the detour over the platform MBean server.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class RuntimeMetricsHandler extends AbstractRuntimeOnlyHandler {
+    static final RuntimeMetricsHandler API_METRICS = new RuntimeMetricsHandler(false, Constants.API_METRICS_OBJECT_NAME_PATTERN);
+    static final RuntimeMetricsHandler REQUEST_PHASES = new RuntimeMetricsHandler(false, Constants.REQUEST_METRICS_OBJECT_NAME_PATTERN);
+    static final RuntimeMetricsHandler RESET = new RuntimeMetricsHandler(true, Constants.API_METRICS_OBJECT_NAME_PATTERN, Constants.REQUEST_METRICS_OBJECT_NAME_PATTERN);
+
+    private final boolean reset;
+    private final String[] patterns;
+
+    private RuntimeMetricsHandler(boolean reset, String... patterns) {
+        this.reset = reset;
+        this.patterns = patterns;
+    }
+
+    @Override
+    protected void executeRuntimeStep(OperationContext context, ModelNode operation) throws OperationFailedException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ModelNode result = new ModelNode();
+        try {
+            for (String pattern : patterns) {
+                for (ObjectName name : server.queryNames(new ObjectName(pattern), null)) {
+                    try {
+                        if (reset) {
+                            server.invoke(name, "reset", null, null);
+                        } else {
+                            readMetrics(server, name, result.get(ObjectName.unquote(name.getKeyProperty("deployment"))));
+                        }
+                    } catch (InstanceNotFoundException ignored) {
+                        // undeployed meanwhile
+                    }
+                }
+            }
+        } catch (JMException e) {
+            throw new OperationFailedException(e.toString(), new ModelNode().set(e.toString()));
+        }
+        if (!reset) {
+            context.getResult().set(result);
+        }
+        context.stepCompleted();
+    }
+
+    private static void readMetrics(MBeanServer server, ObjectName name, ModelNode deployment) throws JMException {
+        if (!"ApiMetrics".equals(name.getKeyProperty("type"))) {
+            readStats((TabularData) server.getAttribute(name, "Phases"), deployment.setEmptyObject());
+            return;
+        }
+        readStats((TabularData) server.getAttribute(name, "ApiMethods"), deployment.get("methods").setEmptyObject());
+        final ModelNode counters = deployment.get("counters").setEmptyObject();
+        for (Object row : ((TabularData) server.getAttribute(name, "Counters")).values()) {
+            final CompositeData entry = (CompositeData) row;
+            counters.get((String) entry.get("key")).set((Long) entry.get("value"));
+        }
+    }
+
+    private static void readStats(TabularData table, ModelNode target) {
+        for (Object row : table.values()) {
+            final CompositeData entry = (CompositeData) row;
+            final CompositeData stats = (CompositeData) entry.get("value");
+            final ModelNode node = target.get((String) entry.get("key"));
+            for (String key : stats.getCompositeType().keySet()) {
+                node.get(toAttributeName(key)).set((Long) stats.get(key));
+            }
+        }
+    }
+
+    // latencyP50 -> latency-p50
+    private static String toAttributeName(String property) {
+        final StringBuilder builder = new StringBuilder(property.length() + 4);
+        for (int i = 0; i < property.length(); i++) {
+            final char ch = property.charAt(i);
+            if (Character.isUpperCase(ch)) {
+                builder.append('-').append(Character.toLowerCase(ch));
+            } else {
+                builder.append(ch);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -35,4 +35,19 @@ public final class Constants {
 
     public static final String APPENGINE_APPLICATION_XML = "META-INF/appengine-application.xml";
     public static final String APPENGINE_WEB_XML = "WEB-INF/appengine-web.xml";
+
+    /**
+     * Prefix of runtime settings passed to deployments as context params, see runtime's CapedwarfConfiguration.
+     */
+    public static final String RUNTIME_CONFIG_PREFIX = "org.jboss.capedwarf.";
+
+    /**
+     * API metrics MXBeans of all deployments, see runtime's ApiMetricsMXBean.
+     */
+    public static final String API_METRICS_OBJECT_NAME_PATTERN = "org.jboss.capedwarf:type=ApiMetrics,*";
+
+    /**
+     * Request phase metrics MXBeans of all deployments, see runtime's RequestMetricsMXBean.
+     */
+    public static final String REQUEST_METRICS_OBJECT_NAME_PATTERN = "org.jboss.capedwarf:type=RequestMetrics,*";
 }
@@ -14,6 +14,20 @@ public class SubsystemParsingTest extends AbstractSubsystemBaseTest {
             "<subsystem xmlns=\"urn:jboss:domain:capedwarf:1.0\">\n" +
                     "            <appengine-api>abc123</appengine-api>\n" +
                     "            <admin-auth>false</admin-auth>\n" +
+                    "            <api-limiter>true</api-limiter>\n" +
+                    "            <api-limit-max>200</api-limit-max>\n" +
+                    "            <api-limit-per-request>50</api-limit-per-request>\n" +
+                    "            <record-api-metrics>true</record-api-metrics>\n" +
+                    "            <server-timing>admin</server-timing>\n" +
+                    "            <session-cleanup>paged</session-cleanup>\n" +
+                    "            <session-cleanup-batch-size>500</session-cleanup-batch-size>\n" +
+                    "            <session-cleanup-concurrency>4</session-cleanup-concurrency>\n" +
+                    "            <warmup>true</warmup>\n" +
+                    "            <warmup-replay>100</warmup-replay>\n" +
+                    "            <warmup-paths>/,/static</warmup-paths>\n" +
+                    "            <warmup-query>false</warmup-query>\n" +
+                    "            <warmup-threads>4</warmup-threads>\n" +
+                    "            <shared-runtime>false</shared-runtime>\n" +
                     "         </subsystem>";
 
     public SubsystemParsingTest() {
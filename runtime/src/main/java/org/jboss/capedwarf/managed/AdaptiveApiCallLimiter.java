@@ -0,0 +1,237 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.vmruntime.VmApiProxyEnvironment;
+
+/**
+ * Limits concurrent API calls, per instance and per request.
+ * <p/>
+ * The instance limit starts at the configured max, so a cold instance takes bursts as before;
+ * nothing is limited until the gradient (see GradientLimit) first shrinks it, on calls getting slower or dropped.
+ * Each request gets a fair share of it (limit / requests with calls in flight, capped by perRequestMax).
+ * Calls over either limit fail fast with {@link RejectedException} instead of queueing up.
+ * Log flushes are never limited, the request's logs would be lost.
+ * <p/>
+ * Async calls hold their permit until their future is done, as noticed by the CompletionWatcher.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class AdaptiveApiCallLimiter extends ForwardingApiProxyDelegate {
+    private static final Logger logger = Logger.getLogger(AdaptiveApiCallLimiter.class.getName());
+    private static final String LOG_PACKAGE = "logservice";
+    private static final String FLUSH_METHOD = "Flush";
+
+    private final GradientLimit limit;
+    private final int perRequestMax;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ConcurrentMap<Object, AtomicInteger> perRequest = new ConcurrentHashMap<>();
+    private final AtomicLong rejected = new AtomicLong();
+    private final CompletionWatcher completionWatcher;
+
+    AdaptiveApiCallLimiter(ApiProxy.Delegate<VmApiProxyEnvironment> delegate, GradientLimit limit, int perRequestMax, CompletionWatcher completionWatcher) {
+        super(delegate);
+        this.limit = limit;
+        this.perRequestMax = perRequestMax;
+        this.completionWatcher = completionWatcher;
+    }
+
+    static AdaptiveApiCallLimiter create(ApiProxy.Delegate<VmApiProxyEnvironment> delegate, CapedwarfConfiguration configuration, CompletionWatcher completionWatcher) {
+        final int max = configuration.getInt(CapedwarfConfiguration.API_LIMIT_MAX, 500);
+        final int perRequestMax = configuration.getInt(CapedwarfConfiguration.API_LIMIT_PER_REQUEST, 100);
+        return new AdaptiveApiCallLimiter(delegate, new GradientLimit(max, 1, max), perRequestMax, completionWatcher);
+    }
+
+    int getLimit() {
+        return limit.getLimit();
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    long getRejected() {
+        return rejected.get();
+    }
+
+    void addCounters(ApiMetrics metrics) {
+        metrics.addCounter("limiter-limit", new ApiMetrics.Counter() {
+            public long get() {
+                return getLimit();
+            }
+        });
+        metrics.addCounter("limiter-in-flight", new ApiMetrics.Counter() {
+            public long get() {
+                return getInFlight();
+            }
+        });
+        metrics.addCounter("limiter-rejected", new ApiMetrics.Counter() {
+            public long get() {
+                return getRejected();
+            }
+        });
+    }
+
+    @Override
+    public byte[] makeSyncCall(VmApiProxyEnvironment environment, String packageName, String methodName, byte[] request) throws ApiProxy.ApiProxyException {
+        if (isExempt(packageName, methodName)) {
+            return super.makeSyncCall(environment, packageName, methodName, request);
+        }
+        final Permit permit = acquire(environment, packageName, methodName);
+        boolean dropped = false;
+        try {
+            return super.makeSyncCall(environment, packageName, methodName, request);
+        } catch (RuntimeException e) {
+            dropped = isDrop(e);
+            throw e;
+        } finally {
+            permit.release(dropped);
+        }
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(VmApiProxyEnvironment environment, String packageName, String methodName, byte[] request, ApiProxy.ApiConfig apiConfig) {
+        if (isExempt(packageName, methodName)) {
+            return super.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+        }
+        final Permit permit = acquire(environment, packageName, methodName);
+        final Future<byte[]> future;
+        try {
+            future = super.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+        } catch (RuntimeException e) {
+            permit.release(isDrop(e));
+            throw e;
+        }
+        return completionWatcher.watch(future, permit);
+    }
+
+    /**
+     * @param request the calling request, its environment
+     * @return the permit to release once the call is done
+     * @throws RejectedException if over the instance limit or the request's share of it
+     */
+    Permit acquire(Object request, String packageName, String methodName) {
+        final int current = limit.getLimit();
+        if (inFlight.incrementAndGet() > current) {
+            inFlight.decrementAndGet();
+            throw reject(packageName, methodName, "instance limit " + current);
+        }
+
+        final AtomicInteger requestCount = requestCounter(request);
+        final int quota = Math.min(perRequestMax, Math.max(1, (current + perRequest.size() - 1) / perRequest.size()));
+        final int inFlightForRequest = requestCount.get();
+        if (inFlightForRequest > quota) {
+            releaseRequest(request, requestCount);
+            inFlight.decrementAndGet();
+            throw reject(packageName, methodName, "request quota " + quota);
+        }
+        return new Permit(request, requestCount, inFlight.get());
+    }
+
+    private AtomicInteger requestCounter(Object request) {
+        while (true) {
+            AtomicInteger counter = perRequest.get(request);
+            if (counter == null) {
+                counter = new AtomicInteger();
+                final AtomicInteger previous = perRequest.putIfAbsent(request, counter);
+                if (previous != null) {
+                    counter = previous;
+                }
+            }
+            counter.incrementAndGet();
+            if (perRequest.get(request) == counter) {
+                return counter;
+            }
+            counter.decrementAndGet(); // raced with removal, retry with a new counter
+        }
+    }
+
+    private void releaseRequest(Object request, AtomicInteger counter) {
+        if (counter.decrementAndGet() == 0) {
+            perRequest.remove(request, counter);
+        }
+    }
+
+    private ApiProxy.ApiProxyException reject(String packageName, String methodName, String reason) {
+        rejected.incrementAndGet();
+        logger.fine(String.format("Rejected API call %s.%s, %s reached.", packageName, methodName, reason));
+        return new RejectedException(packageName, methodName);
+    }
+
+    private static boolean isExempt(String packageName, String methodName) {
+        return LOG_PACKAGE.equals(packageName) && FLUSH_METHOD.equals(methodName);
+    }
+
+    // congestion only; a real OverQuotaException is the app's quota, not the instance's load
+    private static boolean isDrop(Throwable t) {
+        return t instanceof ApiProxy.ApiDeadlineExceededException || t instanceof ApiProxy.RPCFailedException;
+    }
+
+    /**
+     * The call was not made, as the instance is overloaded; unlike a quota error, retrying later may well succeed.
+     */
+    static final class RejectedException extends ApiProxy.ApiProxyException {
+        private static final long serialVersionUID = 1L;
+
+        RejectedException(String packageName, String methodName) {
+            super("The API call %s.%s() was rejected as the instance has too many calls in flight, it can be retried.", packageName, methodName);
+        }
+    }
+
+    class Permit implements CompletionWatcher.Listener {
+        private final Object request;
+        private final AtomicInteger requestCount;
+        private final int inFlightAtStart;
+        private final long start = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(Object request, AtomicInteger requestCount, int inFlightAtStart) {
+            this.request = request;
+            this.requestCount = requestCount;
+            this.inFlightAtStart = inFlightAtStart;
+        }
+
+        public void onComplete(byte[] response, Throwable failure) {
+            // a cancelled call counts as dropped, as it did before completion moved to the CompletionWatcher
+            release(failure instanceof CancellationException || (failure != null && isDrop(failure)));
+        }
+
+        void release(boolean dropped) {
+            if (released.compareAndSet(false, true)) {
+                limit.onSample(System.nanoTime() - start, inFlightAtStart, dropped);
+                releaseRequest(request, requestCount);
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+}
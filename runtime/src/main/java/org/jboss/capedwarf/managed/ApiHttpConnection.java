@@ -0,0 +1,330 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Minimal persistent HTTP/1.1 client connection, as used for API calls.
+ * <p/>
+ * Request head and chunk buffers are kept per connection and reused for every call made over it;
+ * the chunk buffer is dropped back to its initial size after an unusually large response.
+ * Head and (small) body go out in a single write, as TCP_NODELAY is on.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+final class ApiHttpConnection implements Closeable {
+    private final String hostHeader;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_RETAINED_CHUNKS = 64 * 1024;
+
+    private final ReusableBuffer head = new ReusableBuffer(512);
+    private final ReusableBuffer chunks = new ReusableBuffer(4096);
+    private final StringBuilder line = new StringBuilder(128);
+    private long lastUsed;
+
+    private ApiHttpConnection(String hostHeader, Socket socket) throws IOException {
+        this.hostHeader = hostHeader;
+        this.socket = socket;
+        this.in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+        // coalesces head and body, bodies larger than the buffer are written straight through
+        this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        this.lastUsed = System.nanoTime();
+    }
+
+    static ApiHttpConnection open(String host, int port, int connectTimeoutMillis) throws IOException {
+        final Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+            return new ApiHttpConnection(host + ":" + port, socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    boolean isOpen() {
+        return !socket.isClosed() && !socket.isInputShutdown() && !socket.isOutputShutdown();
+    }
+
+    /**
+     * POST body to path.
+     *
+     * @param path               the request path
+     * @param headers            additional request headers
+     * @param body               the request body
+     * @param readTimeoutMillis  the read timeout
+     * @return the response
+     * @throws StaleConnectionException if the request could not be written
+     * @throws IOException              for any other I/O error, including the peer closing the connection w/o answering
+     */
+    Response post(String path, Map<String, String> headers, byte[] body, int readTimeoutMillis) throws IOException {
+        socket.setSoTimeout(readTimeoutMillis);
+
+        head.reset();
+        ascii("POST ").ascii(path).ascii(" HTTP/1.1\r\n");
+        header("Host", hostHeader);
+        header("Content-Length", Integer.toString(body.length));
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            header(entry.getKey(), entry.getValue());
+        }
+        ascii("\r\n");
+        try {
+            head.writeTo(out);
+            out.write(body);
+            out.flush();
+        } catch (IOException e) {
+            throw new StaleConnectionException(e);
+        }
+
+        String statusLine;
+        int status;
+        do {
+            statusLine = readLine();
+            if (statusLine == null) {
+                // the request might have been processed anyway
+                throw new EOFException("Connection closed before response.");
+            }
+            if (statusLine.length() < 12 || !statusLine.startsWith("HTTP/1.")) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            status = Integer.parseInt(statusLine.substring(9, 12));
+            if (status == 101) {
+                throw new IOException("Unexpected protocol switch: " + statusLine);
+            }
+            if (status < 200) {
+                skipHeaders(); // interim response (100 Continue, 102 Processing, ...), the real one follows
+            }
+        } while (status < 200);
+        boolean keepAlive = statusLine.startsWith("HTTP/1.1");
+        int contentLength = -1;
+        boolean chunked = false;
+
+        String header;
+        while ((header = readLine()) != null && header.length() > 0) {
+            final int colon = header.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            final String name = header.substring(0, colon).trim();
+            final String value = header.substring(colon + 1).trim();
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                contentLength = Integer.parseInt(value);
+            } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                chunked = "chunked".equalsIgnoreCase(value);
+            } else if ("Connection".equalsIgnoreCase(name)) {
+                keepAlive = "keep-alive".equalsIgnoreCase(value) || (keepAlive && !"close".equalsIgnoreCase(value));
+            }
+        }
+
+        final byte[] responseBody;
+        if (chunked) {
+            responseBody = readChunked();
+        } else if (contentLength >= 0) {
+            responseBody = new byte[contentLength];
+            readFully(responseBody, 0, contentLength);
+        } else {
+            responseBody = readToEnd();
+            keepAlive = false;
+        }
+
+        lastUsed = System.nanoTime();
+        return new Response(status, responseBody, keepAlive);
+    }
+
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private ApiHttpConnection ascii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            head.write(s.charAt(i));
+        }
+        return this;
+    }
+
+    private void header(String name, String value) {
+        ascii(name).ascii(": ").ascii(value).ascii("\r\n");
+    }
+
+    private void skipHeaders() throws IOException {
+        String header;
+        while ((header = readLine()) != null && header.length() > 0) {
+            // ignore
+        }
+    }
+
+    private String readLine() throws IOException {
+        line.setLength(0);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                final int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+        if (line.length() == 0) {
+            return null;
+        }
+        throw new EOFException("Unexpected end of stream while reading line: " + line);
+    }
+
+    private void readFully(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            final int n = in.read(bytes, offset, length);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of stream, " + length + " bytes missing.");
+            }
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private byte[] readChunked() throws IOException {
+        chunks.reset();
+        while (true) {
+            final String sizeLine = readLine();
+            if (sizeLine == null) {
+                throw new EOFException("Unexpected end of stream while reading chunk size.");
+            }
+            final int semicolon = sizeLine.indexOf(';');
+            final int size = Integer.parseInt((semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+            if (size == 0) {
+                String trailer;
+                while ((trailer = readLine()) != null && trailer.length() > 0) {
+                    // ignore trailers
+                }
+                return chunks.drain();
+            }
+            chunks.ensureCapacity(size);
+            readFully(chunks.buffer(), chunks.size(), size);
+            chunks.skip(size);
+            readLine(); // CRLF after chunk data
+        }
+    }
+
+    private byte[] readToEnd() throws IOException {
+        chunks.reset();
+        final byte[] tmp = new byte[4096];
+        int n;
+        while ((n = in.read(tmp)) != -1) {
+            chunks.write(tmp, 0, n);
+        }
+        return chunks.drain();
+    }
+
+    static final class Response {
+        private final int status;
+        private final byte[] body;
+        private final boolean keepAlive;
+
+        Response(int status, byte[] body, boolean keepAlive) {
+            this.status = status;
+            this.body = body;
+            this.keepAlive = keepAlive;
+        }
+
+        int getStatus() {
+            return status;
+        }
+
+        byte[] getBody() {
+            return body;
+        }
+
+        boolean isKeepAlive() {
+            return keepAlive;
+        }
+    }
+
+    /**
+     * Writing the request failed, so the peer never got all of it; safe to retry on a new connection.
+     */
+    static final class StaleConnectionException extends IOException {
+        StaleConnectionException(IOException cause) {
+            super("Stale API connection", cause);
+        }
+    }
+
+    private static final class ReusableBuffer extends ByteArrayOutputStream {
+        private final int initialSize;
+
+        ReusableBuffer(int size) {
+            super(size);
+            this.initialSize = size;
+        }
+
+        /**
+         * @return the content; the buffer is released if it grew too large to keep around per connection
+         */
+        byte[] drain() {
+            final byte[] bytes = toByteArray();
+            count = 0;
+            if (buf.length > MAX_RETAINED_CHUNKS) {
+                buf = new byte[initialSize];
+            }
+            return bytes;
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        void ensureCapacity(int additional) {
+            if (count + additional > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + additional));
+            }
+        }
+
+        void skip(int n) {
+            count += n;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keep-alive HTTP transport to the API server(s).
+ * <p/>
+ * Connections are pooled per host; a host never has more than maxPerHost connections leased,
+ * callers beyond that wait up to acquireTimeout for a connection to free up.
+ * Idle connections are reused most-recently-used first, and dropped once idle longer than idleTimeout.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+final class ApiHttpTransport {
+    private final int maxPerHost;
+    private final int connectTimeoutMillis;
+    private final long acquireTimeoutMillis;
+    private final long idleTimeoutNanos;
+    private final ConcurrentMap<String, HostPool> pools = new ConcurrentHashMap<>();
+
+    private final AtomicLong waiting = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong saturated = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+
+    private volatile boolean closed;
+
+    ApiHttpTransport(int maxPerHost, int connectTimeoutMillis, long acquireTimeoutMillis, long idleTimeoutMillis) {
+        if (maxPerHost <= 0) {
+            throw new IllegalArgumentException("Max connections per host must be positive: " + maxPerHost);
+        }
+        this.maxPerHost = maxPerHost;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    }
+
+    /**
+     * POST body to server (host[:port]) and path.
+     */
+    ApiHttpConnection.Response post(String server, String path, Map<String, String> headers, byte[] body, int readTimeoutMillis) throws IOException {
+        if (closed) {
+            throw new IOException("API transport is closed.");
+        }
+        final HostPool pool = getPool(server);
+        acquire(pool, server);
+        try {
+            ApiHttpConnection connection = pool.poll();
+            final boolean pooled = (connection != null);
+            if (pooled) {
+                reused.incrementAndGet();
+            } else {
+                connection = open(pool);
+            }
+            try {
+                return exchange(pool, connection, path, headers, body, readTimeoutMillis);
+            } catch (ApiHttpConnection.StaleConnectionException e) {
+                if (!pooled) {
+                    throw e;
+                }
+                // server dropped an idle keep-alive connection before we could send the whole request
+                retried.incrementAndGet();
+                return exchange(pool, open(pool), path, headers, body, readTimeoutMillis);
+            }
+        } finally {
+            pool.permits.release();
+        }
+    }
+
+    void close() {
+        closed = true;
+        for (HostPool pool : pools.values()) {
+            ApiHttpConnection connection;
+            while ((connection = pool.idle.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    int getMaxPerHost() {
+        return maxPerHost;
+    }
+
+    /**
+     * @return connections currently leased, over all hosts
+     */
+    long getLeased() {
+        long leased = 0;
+        for (HostPool pool : pools.values()) {
+            leased += maxPerHost - pool.permits.availablePermits();
+        }
+        return leased;
+    }
+
+    /**
+     * @return idle connections, over all hosts
+     */
+    long getIdle() {
+        long idle = 0;
+        for (HostPool pool : pools.values()) {
+            idle += pool.idle.size();
+        }
+        return idle;
+    }
+
+    /**
+     * @return callers currently waiting for a connection
+     */
+    long getWaiting() {
+        return waiting.get();
+    }
+
+    long getCreated() {
+        return created.get();
+    }
+
+    long getReused() {
+        return reused.get();
+    }
+
+    /**
+     * @return number of calls that timed out waiting for a connection
+     */
+    long getSaturated() {
+        return saturated.get();
+    }
+
+    long getRetried() {
+        return retried.get();
+    }
+
+    private HostPool getPool(String server) {
+        HostPool pool = pools.get(server);
+        if (pool == null) {
+            pool = new HostPool(server, maxPerHost);
+            final HostPool previous = pools.putIfAbsent(server, pool);
+            if (previous != null) {
+                pool = previous;
+            }
+        }
+        return pool;
+    }
+
+    private void acquire(HostPool pool, String server) throws IOException {
+        if (pool.permits.tryAcquire()) {
+            return;
+        }
+        waiting.incrementAndGet();
+        try {
+            if (!pool.permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                saturated.incrementAndGet();
+                throw new IOException(String.format("No API connection to %s available within %sms, %s already in use.", server, acquireTimeoutMillis, maxPerHost));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for API connection to " + server);
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    private ApiHttpConnection open(HostPool pool) throws IOException {
+        final ApiHttpConnection connection = ApiHttpConnection.open(pool.host, pool.port, connectTimeoutMillis);
+        created.incrementAndGet();
+        return connection;
+    }
+
+    private ApiHttpConnection.Response exchange(HostPool pool, ApiHttpConnection connection, String path, Map<String, String> headers, byte[] body, int readTimeoutMillis) throws IOException {
+        final ApiHttpConnection.Response response;
+        try {
+            response = connection.post(path, headers, body, readTimeoutMillis);
+        } catch (IOException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+        if (response.isKeepAlive() && !closed) {
+            pool.idle.offerFirst(connection);
+        } else {
+            connection.close();
+        }
+        return response;
+    }
+
+    private final class HostPool {
+        private final String host;
+        private final int port;
+        private final Semaphore permits;
+        private final Deque<ApiHttpConnection> idle = new ConcurrentLinkedDeque<>();
+
+        private HostPool(String server, int maxConnections) {
+            final int colon = server.lastIndexOf(':');
+            if (colon > 0) {
+                this.host = server.substring(0, colon);
+                this.port = Integer.parseInt(server.substring(colon + 1));
+            } else {
+                this.host = server;
+                this.port = 80;
+            }
+            this.permits = new Semaphore(maxConnections, true);
+        }
+
+        private ApiHttpConnection poll() {
+            final long now = System.nanoTime();
+            ApiHttpConnection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                if (connection.isOpen() && now - connection.getLastUsed() < idleTimeoutNanos) {
+                    return connection;
+                }
+                connection.close();
+            }
+            return null;
+        }
+    }
+}
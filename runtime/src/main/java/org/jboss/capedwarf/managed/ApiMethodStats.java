@@ -0,0 +1,103 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Snapshot of a single service.method's API call stats; latencies in micros, sizes in bytes.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class ApiMethodStats {
+    private final long count;
+    private final long errors;
+    private final long latencyMean;
+    private final long latencyP50;
+    private final long latencyP99;
+    private final long latencyP999;
+    private final long latencyMax;
+    private final long requestSizeMean;
+    private final long requestSizeP99;
+    private final long responseSizeMean;
+    private final long responseSizeP99;
+
+    @ConstructorProperties({"count", "errors", "latencyMean", "latencyP50", "latencyP99", "latencyP999", "latencyMax", "requestSizeMean", "requestSizeP99", "responseSizeMean", "responseSizeP99"})
+    public ApiMethodStats(long count, long errors, long latencyMean, long latencyP50, long latencyP99, long latencyP999, long latencyMax, long requestSizeMean, long requestSizeP99, long responseSizeMean, long responseSizeP99) {
+        this.count = count;
+        this.errors = errors;
+        this.latencyMean = latencyMean;
+        this.latencyP50 = latencyP50;
+        this.latencyP99 = latencyP99;
+        this.latencyP999 = latencyP999;
+        this.latencyMax = latencyMax;
+        this.requestSizeMean = requestSizeMean;
+        this.requestSizeP99 = requestSizeP99;
+        this.responseSizeMean = responseSizeMean;
+        this.responseSizeP99 = responseSizeP99;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public long getLatencyMean() {
+        return latencyMean;
+    }
+
+    public long getLatencyP50() {
+        return latencyP50;
+    }
+
+    public long getLatencyP99() {
+        return latencyP99;
+    }
+
+    public long getLatencyP999() {
+        return latencyP999;
+    }
+
+    public long getLatencyMax() {
+        return latencyMax;
+    }
+
+    public long getRequestSizeMean() {
+        return requestSizeMean;
+    }
+
+    public long getRequestSizeP99() {
+        return requestSizeP99;
+    }
+
+    public long getResponseSizeMean() {
+        return responseSizeMean;
+    }
+
+    public long getResponseSizeP99() {
+        return responseSizeP99;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+/**
+ * Per service.method API call histograms, plus counters of the delegate chain.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class ApiMetrics implements ApiMetricsMXBean {
+    interface Counter {
+        long get();
+    }
+
+    // swapped as a whole on reset, so recorders never see half reset histograms
+    private volatile ConcurrentMap<String, MethodMetrics> methods = new ConcurrentHashMap<>();
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private ObjectName objectName;
+
+    void record(String packageName, String methodName, long latencyNanos, int requestSize, int responseSize, boolean error) {
+        final String key = packageName + "." + methodName;
+        final ConcurrentMap<String, MethodMetrics> methods = this.methods;
+        MethodMetrics metrics = methods.get(key);
+        if (metrics == null) {
+            metrics = new MethodMetrics();
+            final MethodMetrics previous = methods.putIfAbsent(key, metrics);
+            if (previous != null) {
+                metrics = previous;
+            }
+        }
+        metrics.latency.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+        metrics.requestSize.record(requestSize);
+        if (error) {
+            metrics.errors.incrementAndGet();
+        } else {
+            metrics.responseSize.record(responseSize);
+        }
+    }
+
+    void addCounter(String name, Counter counter) {
+        counters.put(name, counter);
+    }
+
+    public Map<String, ApiMethodStats> getApiMethods() {
+        final Map<String, ApiMethodStats> stats = new TreeMap<>();
+        for (Map.Entry<String, MethodMetrics> entry : methods.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return stats;
+    }
+
+    public Map<String, Long> getCounters() {
+        final Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        return values;
+    }
+
+    public void reset() {
+        methods = new ConcurrentHashMap<>();
+    }
+
+    void register(String deploymentName) {
+        objectName = MBeans.register(this, OBJECT_NAME_PREFIX, deploymentName);
+    }
+
+    void unregister() {
+        MBeans.unregister(objectName);
+        objectName = null;
+    }
+
+    private static class MethodMetrics {
+        private final LogLinearHistogram latency = new LogLinearHistogram();
+        private final LogLinearHistogram requestSize = new LogLinearHistogram();
+        private final LogLinearHistogram responseSize = new LogLinearHistogram();
+        private final AtomicLong errors = new AtomicLong();
+
+        private ApiMethodStats snapshot() {
+            return new ApiMethodStats(
+                latency.getCount(),
+                errors.get(),
+                latency.getMean(),
+                latency.getValueAtQuantile(0.5),
+                latency.getValueAtQuantile(0.99),
+                latency.getValueAtQuantile(0.999),
+                latency.getMax(),
+                requestSize.getMean(),
+                requestSize.getValueAtQuantile(0.99),
+                responseSize.getMean(),
+                responseSize.getValueAtQuantile(0.99));
+        }
+    }
+}
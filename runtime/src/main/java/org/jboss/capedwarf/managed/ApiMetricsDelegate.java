@@ -0,0 +1,77 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.util.concurrent.Future;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.vmruntime.VmApiProxyEnvironment;
+
+/**
+ * Records latency, payload sizes and errors of every API call into ApiMetrics.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class ApiMetricsDelegate extends ForwardingApiProxyDelegate {
+    private final ApiMetrics metrics;
+    private final CompletionWatcher completionWatcher;
+
+    ApiMetricsDelegate(ApiProxy.Delegate<VmApiProxyEnvironment> delegate, ApiMetrics metrics, CompletionWatcher completionWatcher) {
+        super(delegate);
+        this.metrics = metrics;
+        this.completionWatcher = completionWatcher;
+    }
+
+    @Override
+    public byte[] makeSyncCall(VmApiProxyEnvironment environment, String packageName, String methodName, byte[] request) throws ApiProxy.ApiProxyException {
+        final long start = System.nanoTime();
+        byte[] response = null;
+        try {
+            response = super.makeSyncCall(environment, packageName, methodName, request);
+            return response;
+        } finally {
+            metrics.record(packageName, methodName, System.nanoTime() - start, length(request), length(response), response == null);
+        }
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(VmApiProxyEnvironment environment, final String packageName, final String methodName, final byte[] request, ApiProxy.ApiConfig apiConfig) {
+        final long start = System.nanoTime();
+        final Future<byte[]> future;
+        try {
+            future = super.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+        } catch (RuntimeException e) {
+            metrics.record(packageName, methodName, System.nanoTime() - start, length(request), 0, true);
+            throw e;
+        }
+        return completionWatcher.watch(future, new CompletionWatcher.Listener() {
+            public void onComplete(byte[] response, Throwable failure) {
+                metrics.record(packageName, methodName, System.nanoTime() - start, length(request), length(response), failure != null);
+            }
+        });
+    }
+
+    private static int length(byte[] bytes) {
+        return (bytes != null) ? bytes.length : 0;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.util.Map;
+
+/**
+ * Runtime metrics of a deployment's API calls, read by the capedwarf subsystem.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public interface ApiMetricsMXBean {
+    String OBJECT_NAME_PREFIX = "org.jboss.capedwarf:type=ApiMetrics,deployment=";
+
+    /**
+     * @return stats per service.method
+     */
+    Map<String, ApiMethodStats> getApiMethods();
+
+    /**
+     * @return counters of the API delegate chain (pool, near-cache, limiter, ...)
+     */
+    Map<String, Long> getCounters();
+
+    void reset();
+}
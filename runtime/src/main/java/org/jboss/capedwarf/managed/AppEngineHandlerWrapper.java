@@ -23,10 +23,14 @@
 package org.jboss.capedwarf.managed;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.DispatcherType;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -42,7 +46,6 @@ import com.google.apphosting.utils.servlet.HttpServletResponseAdapter;
 import com.google.apphosting.vmruntime.CommitDelayingResponse;
 import com.google.apphosting.vmruntime.VmApiProxyDelegate;
 import com.google.apphosting.vmruntime.VmApiProxyEnvironment;
-import com.google.apphosting.vmruntime.VmEnvironmentFactory;
 import com.google.apphosting.vmruntime.VmMetadataCache;
 import com.google.apphosting.vmruntime.VmRuntimeFileLogHandler;
 import com.google.apphosting.vmruntime.VmRuntimeLogHandler;
@@ -51,13 +54,16 @@ import com.google.apphosting.vmruntime.VmTimer;
 import io.undertow.server.HandlerWrapper;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
+import io.undertow.server.ServerConnection;
 import io.undertow.servlet.handlers.ServletRequestContext;
+import org.xnio.Pool;
 
 /**
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
 public class AppEngineHandlerWrapper implements HandlerWrapper {
     private static final Logger logger = Logger.getLogger(AppEngineHandlerWrapper.class.getName());
+    private static final String SERVER_TIMING_HEADER = "Server-Timing";
 
     static {
         System.setProperty(ServiceFactoryFactory.USE_THREAD_CONTEXT_CLASSLOADER_PROPERTY, Boolean.TRUE.toString());
@@ -65,39 +71,179 @@ public class AppEngineHandlerWrapper implements HandlerWrapper {
     }
 
     private final AppEngineWebXml appEngineWebXml;
+    private final CapedwarfSessionManagerFactory sessionManagerFactory;
+    private final BlobUploadParser blobUploadParser;
+    private final int responseBufferThreshold;
+    private final ApiMetrics apiMetrics;
+    private final RequestMetrics requestMetrics;
+    private final String serverTiming;
+    private final CompletionWatcher completionWatcher;
+    private PooledApiProxyDelegate pooledDelegate;
+    private LogShippingDelegate logShipping;
+    private final AsyncApiCallTracker apiCallTracker;
+    private final AsyncRequestTeardown asyncTeardown;
+    private final HealthCheck healthCheck;
 
     private final VmMetadataCache metadataCache;
     private final Timer wallclockTimer;
+    private AsyncFileLogHandler fileLogHandler;
+    private DeploymentRegistry.Registration registration;
+    private RequestEnvironmentTemplate environmentTemplate;
     private VmApiProxyEnvironment defaultEnvironment;
 
     public AppEngineHandlerWrapper(AppEngineWebXml appEngineWebXml) {
+        this(appEngineWebXml, CapedwarfConfiguration.fromSystemProperties());
+    }
+
+    AppEngineHandlerWrapper(AppEngineWebXml appEngineWebXml, CapedwarfConfiguration configuration) {
+        this(appEngineWebXml, configuration, null, Thread.currentThread().getContextClassLoader());
+    }
+
+    /**
+     * @param sessionManagerFactory saves the requests' sessions, null if sessions are disabled
+     * @param classLoader           the deployment's class loader
+     */
+    AppEngineHandlerWrapper(AppEngineWebXml appEngineWebXml, CapedwarfConfiguration configuration, CapedwarfSessionManagerFactory sessionManagerFactory, ClassLoader classLoader) {
         this.appEngineWebXml = appEngineWebXml;
+        this.sessionManagerFactory = sessionManagerFactory;
+        this.blobUploadParser = new BlobUploadParser(configuration.getInt(CapedwarfConfiguration.BLOB_UPLOAD_SPILL_THRESHOLD, 64 * 1024));
+        this.responseBufferThreshold = configuration.getInt(CapedwarfConfiguration.RESPONSE_BUFFER_THRESHOLD, 0);
         // GAE env
         metadataCache = new VmMetadataCache();
         wallclockTimer = new VmTimer();
-        ApiProxy.setDelegate(new VmApiProxyDelegate());
+        apiMetrics = new ApiMetrics();
+        requestMetrics = new RequestMetrics();
+        serverTiming = configuration.getString(CapedwarfConfiguration.SERVER_TIMING, "none");
+        // only needed by the consumers of async call completion
+        if (configuration.getBoolean(CapedwarfConfiguration.API_METRICS, false) || configuration.getBoolean(CapedwarfConfiguration.API_LIMITER, false)) {
+            completionWatcher = new CompletionWatcher();
+        } else {
+            completionWatcher = null;
+        }
+        ApiProxy.Delegate<VmApiProxyEnvironment> delegate = createDelegate(configuration);
+        final boolean asyncTeardownEnabled = configuration.getBoolean(CapedwarfConfiguration.ASYNC_TEARDOWN, false);
+        // the SDK's own call permits cover the inline teardown
+        if (asyncTeardownEnabled) {
+            apiCallTracker = new AsyncApiCallTracker(delegate);
+            delegate = apiCallTracker;
+        } else {
+            apiCallTracker = null;
+        }
+
+        if (asyncTeardownEnabled) {
+            final long timeout = configuration.getLong(CapedwarfConfiguration.ASYNC_TEARDOWN_TIMEOUT, 60000L);
+            final int threads = configuration.getInt(CapedwarfConfiguration.ASYNC_TEARDOWN_THREADS, 2 * Runtime.getRuntime().availableProcessors());
+            asyncTeardown = new AsyncRequestTeardown(apiCallTracker, timeout, threads);
+        } else {
+            asyncTeardown = null;
+        }
 
-        init();
+        init(configuration, delegate, classLoader);
+
+        if ("native".equals(configuration.getString(CapedwarfConfiguration.HEALTH_CHECK, null))) {
+            healthCheck = HealthCheck.create(configuration, defaultEnvironment.getServer());
+        } else {
+            healthCheck = null;
+        }
     }
 
-    private void init() {
+    private ApiProxy.Delegate<VmApiProxyEnvironment> createDelegate(CapedwarfConfiguration configuration) {
+        ApiProxy.Delegate<VmApiProxyEnvironment> delegate;
+        if ("pooled".equals(configuration.getString(CapedwarfConfiguration.API_TRANSPORT, null))) {
+            pooledDelegate = PooledApiProxyDelegate.create(new VmApiProxyDelegate(), configuration);
+            pooledDelegate.addCounters(apiMetrics);
+            delegate = pooledDelegate;
+        } else {
+            delegate = new VmApiProxyDelegate();
+        }
+        if (configuration.getBoolean(CapedwarfConfiguration.API_LIMITER, false)) {
+            final AdaptiveApiCallLimiter limiter = AdaptiveApiCallLimiter.create(delegate, configuration, completionWatcher);
+            limiter.addCounters(apiMetrics);
+            delegate = limiter;
+        }
+        if (configuration.getBoolean(CapedwarfConfiguration.API_COALESCING, false)) {
+            final CoalescingApiProxyDelegate coalescing = CoalescingApiProxyDelegate.create(delegate, configuration);
+            coalescing.addCounters(apiMetrics);
+            delegate = coalescing;
+        }
+        if (configuration.getBoolean(CapedwarfConfiguration.MEMCACHE_NEAR_CACHE, false)) {
+            final MemcacheNearCacheDelegate nearCache = MemcacheNearCacheDelegate.create(delegate, configuration);
+            nearCache.addCounters(apiMetrics);
+            delegate = nearCache;
+        }
+        if (configuration.getBoolean(CapedwarfConfiguration.LOG_SHIPPING, false)) {
+            logShipping = LogShippingDelegate.create(delegate, configuration);
+            logShipping.addCounters(apiMetrics);
+            delegate = logShipping;
+        }
+        if (configuration.getBoolean(CapedwarfConfiguration.API_METRICS, false)) {
+            // outermost, so it sees what the app sees
+            delegate = new ApiMetricsDelegate(delegate, apiMetrics, completionWatcher);
+        }
+        return delegate;
+    }
+
+    private void init(CapedwarfConfiguration configuration, ApiProxy.Delegate<VmApiProxyEnvironment> delegate, ClassLoader classLoader) {
         try {
-            defaultEnvironment = VmApiProxyEnvironment.createDefaultContext(System.getenv(), metadataCache, VmRuntimeUtils.getApiServerAddress(), wallclockTimer, VmRuntimeUtils.ONE_DAY_IN_MILLIS, "/tmp"); // FAKE path
+            environmentTemplate = RequestEnvironmentTemplate.create(metadataCache, wallclockTimer, "/tmp"); // FAKE path
+            defaultEnvironment = environmentTemplate.getDefaultEnvironment();
             ApiProxy.setEnvironmentForCurrentThread(defaultEnvironment);
-            if (ApiProxy.getEnvironmentFactory() == null) {
-                ApiProxy.setEnvironmentFactory(new VmEnvironmentFactory(defaultEnvironment));
-            }
+            // sets ApiProxy's delegate and environment factory, shared with other deployments when the runtime is
+            registration = DeploymentRegistry.register(classLoader, delegate, defaultEnvironment);
 
             VmRuntimeUtils.installSystemProperties(defaultEnvironment, appEngineWebXml);
             VmRuntimeLogHandler.init();
-            VmRuntimeFileLogHandler.init();
+            if ("async".equals(configuration.getString(CapedwarfConfiguration.LOG_HANDLER, null))) {
+                fileLogHandler = DeploymentRegistry.installFileLogHandler(configuration);
+                fileLogHandler.addCounters(apiMetrics);
+            } else {
+                VmRuntimeFileLogHandler.init();
+            }
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
     }
 
+    void registerMetrics(String deploymentName) {
+        apiMetrics.register(deploymentName);
+        requestMetrics.register(deploymentName);
+    }
+
+    /**
+     * @return the native health check, null if /_ah/health is left to the servlet
+     */
+    HealthCheck getHealthCheck() {
+        return healthCheck;
+    }
+
+    void stop() {
+        if (healthCheck != null) {
+            healthCheck.stop();
+        }
+        if (asyncTeardown != null) {
+            asyncTeardown.stop();
+        }
+        if (logShipping != null) {
+            logShipping.stop(); // before the transport goes away
+        }
+        if (pooledDelegate != null) {
+            pooledDelegate.stop();
+        }
+        if (fileLogHandler != null) {
+            DeploymentRegistry.uninstallFileLogHandler();
+        }
+        registration.unregister();
+        if (completionWatcher != null) {
+            completionWatcher.stop();
+        }
+        apiMetrics.unregister();
+        requestMetrics.unregister();
+    }
+
     public HttpHandler wrap(HttpHandler handler) {
-        return new AppEngineHttpHandler(handler);
+        final HttpHandler appEngineHandler = new AppEngineHttpHandler(new RequestFiltersHandler(handler, blobUploadParser, sessionManagerFactory));
+        // health checks are answered before any request environment is set up
+        return (healthCheck != null) ? healthCheck.wrap(appEngineHandler) : appEngineHandler;
     }
 
     protected void setScheme(HttpServerExchange exchange) {
@@ -106,6 +252,39 @@ public class AppEngineHandlerWrapper implements HandlerWrapper {
         exchange.setRequestScheme(httpsOn ? "https" : "http");
     }
 
+    protected HttpServletResponse wrapResponse(HttpServerExchange exchange, HttpServletResponse response, final HttpResponse responseWrapper, final VmApiProxyEnvironment environment) throws IOException {
+        if (responseBufferThreshold > 0) {
+            return new BoundedCommitDelayingResponse(response, getBufferPool(exchange), responseBufferThreshold, new BoundedCommitDelayingResponse.CommitCallback() {
+                public void beforeCommit() {
+                    VmRuntimeUtils.flushLogsAndAddHeader(responseWrapper, environment);
+                }
+            });
+        } else {
+            return new CommitDelayingResponse(response);
+        }
+    }
+
+    private static Pool<ByteBuffer> getBufferPool(HttpServerExchange exchange) {
+        final ServerConnection connection = exchange.getConnection();
+        return (connection != null) ? connection.getBufferPool() : null;
+    }
+
+    private boolean addServerTiming(VmApiProxyEnvironment environment) {
+        return "all".equals(serverTiming) || ("admin".equals(serverTiming) && environment.isAdmin());
+    }
+
+    private static boolean isStreaming(HttpServletResponse wrappedResponse) {
+        return (wrappedResponse instanceof BoundedCommitDelayingResponse) && ((BoundedCommitDelayingResponse) wrappedResponse).isStreaming();
+    }
+
+    private static void commit(HttpServletResponse wrappedResponse) throws IOException {
+        if (wrappedResponse instanceof BoundedCommitDelayingResponse) {
+            ((BoundedCommitDelayingResponse) wrappedResponse).commit();
+        } else {
+            ((CommitDelayingResponse) wrappedResponse).commit();
+        }
+    }
+
     private class AppEngineHttpHandler implements HttpHandler {
         private final HttpHandler next;
 
@@ -118,57 +297,111 @@ public class AppEngineHandlerWrapper implements HandlerWrapper {
             HttpServletRequest request = (HttpServletRequest) servletRequestContext.getServletRequest();
             HttpServletResponse response = (HttpServletResponse) servletRequestContext.getServletResponse();
 
-/* What happened to this healt check code?
-
-            boolean isDevMode = true; // TODO
-            String remoteAddr = request.getRemoteAddr();
-
-            if (VmRequestUtils.isHealthCheck(request)) {
-                if (!VmRequestUtils.isValidHealthCheckAddr(isDevMode, remoteAddr)) {
-                    response.sendError(HttpServletResponse.SC_FORBIDDEN, "403 Forbidden");
-                    return;
-                }
-
-                if (VmRequestUtils.isLocalHealthCheck(request, remoteAddr)) {
-                    VmRequestUtils.handleLocalHealthCheck(response);
-                    return;
-                } else {
-                    VmRequestUtils.recordLastNormalHealthCheckStatus(request);
-                }
-            }
-*/
             if(!DispatcherType.INCLUDE.equals(request.getDispatcherType()) && !DispatcherType.FORWARD.equals(request.getDispatcherType())) {
+                RequestTimings timings = RequestTimings.start(exchange);
                 HttpRequest requestWrapper = new HttpServletRequestAdapter(request);
                 HttpResponse responseWrapper = new HttpServletResponseAdapter(response);
 
-                VmApiProxyEnvironment requestSpecificEnvironment = VmApiProxyEnvironment.createFromHeaders(System.getenv(), metadataCache, requestWrapper, VmRuntimeUtils.getApiServerAddress(), wallclockTimer, VmRuntimeUtils.ONE_DAY_IN_MILLIS, defaultEnvironment);
+                VmApiProxyEnvironment requestSpecificEnvironment = environmentTemplate.createRequestEnvironment(requestWrapper);
+                registration.tag(requestSpecificEnvironment);
+                if (apiCallTracker != null) {
+                    apiCallTracker.begin(requestSpecificEnvironment);
+                }
 
-                CommitDelayingResponse wrappedResponse = new CommitDelayingResponse(response);
+                HttpServletResponse wrappedResponse = wrapResponse(exchange, response, responseWrapper, requestSpecificEnvironment);
                 servletRequestContext.setServletResponse(wrappedResponse);
+                timings.mark(RequestTimings.Phase.ENVIRONMENT);
+                boolean deferred = false;
                 try {
                     ApiProxy.setEnvironmentForCurrentThread(requestSpecificEnvironment);
                     VmRuntimeUtils.handleSkipAdminCheck(requestWrapper);
                     setScheme(exchange);
+                    timings.mark(RequestTimings.Phase.SKIP_ADMIN_CHECK);
                     next.handleRequest(exchange);
+                    timings.mark(RequestTimings.Phase.HANDLER);
+                    deferred = deferTeardown(exchange, servletRequestContext, response, wrappedResponse, responseWrapper, requestSpecificEnvironment);
                 } finally {
+                    if (deferred) {
+                        ApiProxy.setEnvironmentForCurrentThread(defaultEnvironment);
+                    } else {
+                        teardown(exchange, response, wrappedResponse, responseWrapper, requestSpecificEnvironment);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Hand teardown over to async completion if it would otherwise have to wait.
+         */
+        private boolean deferTeardown(final HttpServerExchange exchange, ServletRequestContext servletRequestContext, final HttpServletResponse response, final HttpServletResponse wrappedResponse, final HttpResponse responseWrapper, final VmApiProxyEnvironment requestSpecificEnvironment) {
+            if (asyncTeardown == null || asyncTeardown.isQuiescent(requestSpecificEnvironment)) {
+                return false; // nothing to wait for, teardown inline
+            }
+            final ServletRequest current = servletRequestContext.getServletRequest();
+            if (!current.isAsyncSupported() || current.isAsyncStarted()) {
+                return false; // can only complete the exchange later if the whole chain supports async
+            }
+
+            final AsyncContext asyncContext = current.startAsync();
+            asyncContext.setTimeout(0); // our own deadline applies
+            asyncTeardown.whenQuiescent(requestSpecificEnvironment, new Runnable() {
+                public void run() {
+                    ApiProxy.setEnvironmentForCurrentThread(requestSpecificEnvironment);
+                    exchange.getAttachment(RequestTimings.ATTACHMENT_KEY).mark(RequestTimings.Phase.WAIT_API_CALLS);
                     try {
-                        VmRuntimeUtils.interruptRequestThreads(requestSpecificEnvironment, VmRuntimeUtils.MAX_REQUEST_THREAD_INTERRUPT_WAIT_TIME_MS);
-                        if (!VmRuntimeUtils.waitForAsyncApiCalls(requestSpecificEnvironment, new HttpServletResponseAdapter(wrappedResponse))) {
-                            logger.warning("Timed out or interrupted while waiting for async API calls to complete.");
-                        }
-                        if (!response.isCommitted()) {
-                            VmRuntimeUtils.flushLogsAndAddHeader(responseWrapper, requestSpecificEnvironment);
-                        } else {
-                            //noinspection ThrowFromFinallyBlock
-                            throw new ServletException("Response for request to '" + exchange.getRequestPath() + "' was already commited (code=" + response.getStatus() + "). This might result in lost log messages.'");
+                        teardown(exchange, response, wrappedResponse, responseWrapper, requestSpecificEnvironment);
+                    } catch (Throwable t) {
+                        logger.log(Level.WARNING, "Error during async teardown of request to '" + exchange.getRequestPath() + "'.", t);
+                    } finally {
+                        asyncContext.complete();
+                    }
+                }
+            });
+            return true;
+        }
+
+        private void teardown(HttpServerExchange exchange, HttpServletResponse response, HttpServletResponse wrappedResponse, HttpResponse responseWrapper, VmApiProxyEnvironment requestSpecificEnvironment) throws Exception {
+            final RequestTimings timings = exchange.getAttachment(RequestTimings.ATTACHMENT_KEY);
+            try {
+                VmRuntimeUtils.interruptRequestThreads(requestSpecificEnvironment, VmRuntimeUtils.MAX_REQUEST_THREAD_INTERRUPT_WAIT_TIME_MS);
+                timings.mark(RequestTimings.Phase.INTERRUPT_THREADS);
+                if (!VmRuntimeUtils.waitForAsyncApiCalls(requestSpecificEnvironment, new HttpServletResponseAdapter(wrappedResponse))) {
+                    logger.warning("Timed out or interrupted while waiting for async API calls to complete.");
+                }
+                timings.mark(RequestTimings.Phase.WAIT_API_CALLS);
+                if (isStreaming(wrappedResponse)) {
+                    // log header already went out with the first streamed bytes
+                    ApiProxy.flushLogs();
+                    timings.mark(RequestTimings.Phase.FLUSH_LOGS);
+                } else if (!response.isCommitted()) {
+                    VmRuntimeUtils.flushLogsAndAddHeader(responseWrapper, requestSpecificEnvironment);
+                    timings.mark(RequestTimings.Phase.FLUSH_LOGS);
+                    if (addServerTiming(requestSpecificEnvironment)) {
+                        response.addHeader(SERVER_TIMING_HEADER, timings.toServerTiming());
+                    }
+                } else {
+                    throw new ServletException("Response for request to '" + exchange.getRequestPath() + "' was already commited (code=" + response.getStatus() + "). This might result in lost log messages.'");
+                }
+            } finally {
+                try {
+                    try {
+                        commit(wrappedResponse);
+                        timings.mark(RequestTimings.Phase.COMMIT);
+                        if (logShipping != null && logShipping.isPending(requestSpecificEnvironment)) {
+                            response.flushBuffer(); // the client has its response, while we ship the logs
                         }
                     } finally {
-                        try {
-                            wrappedResponse.commit();
-                        } finally {
-                            ApiProxy.setEnvironmentForCurrentThread(defaultEnvironment);
+                        if (logShipping != null) {
+                            logShipping.finish(requestSpecificEnvironment); // before the exchange ends, the request's ticket is still valid
+                            timings.mark(RequestTimings.Phase.SHIP_LOGS);
                         }
                     }
+                    requestMetrics.record(timings);
+                } finally {
+                    if (apiCallTracker != null) {
+                        apiCallTracker.release(requestSpecificEnvironment);
+                    }
+                    ApiProxy.setEnvironmentForCurrentThread(defaultEnvironment);
                 }
             }
         }
@@ -0,0 +1,141 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.vmruntime.VmApiProxyEnvironment;
+
+/**
+ * Keeps track of async API calls per request environment,
+ * so request teardown can tell whether it would have to wait.
+ * <p/>
+ * Only calls made between {@link #begin} and {@link #release} of a request are tracked,
+ * so calls on the default environment or on background threads leave nothing behind.
+ * Calls which signal completion are dropped once done, the others when their request is released.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class AsyncApiCallTracker extends ForwardingApiProxyDelegate {
+    private final ConcurrentMap<VmApiProxyEnvironment, Queue<Future<byte[]>>> pending = new ConcurrentHashMap<>();
+
+    AsyncApiCallTracker(ApiProxy.Delegate<VmApiProxyEnvironment> delegate) {
+        super(delegate);
+    }
+
+    /**
+     * Start tracking the request's async calls.
+     *
+     * @param environment the request environment
+     */
+    void begin(VmApiProxyEnvironment environment) {
+        pending.put(environment, new ConcurrentLinkedQueue<Future<byte[]>>());
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(VmApiProxyEnvironment environment, String packageName, String methodName, byte[] request, ApiProxy.ApiConfig apiConfig) {
+        final Future<byte[]> future = super.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+        final Queue<Future<byte[]>> futures = pending.get(environment);
+        if (futures != null) {
+            futures.add(future);
+            if (future instanceof CompletionWatcher.Listenable) {
+                ((CompletionWatcher.Listenable) future).addListener(new Runnable() {
+                    public void run() {
+                        futures.remove(future);
+                    }
+                });
+            }
+        }
+        return future;
+    }
+
+    /**
+     * @param environment the request environment
+     * @return the request's async calls which might still be running
+     */
+    Collection<Future<byte[]>> getPendingCalls(VmApiProxyEnvironment environment) {
+        final Queue<Future<byte[]>> futures = pending.get(environment);
+        if (futures == null) {
+            return Collections.emptyList();
+        }
+        pruneDone(futures);
+        return futures;
+    }
+
+    boolean hasPendingCalls(VmApiProxyEnvironment environment) {
+        final Queue<Future<byte[]>> futures = pending.get(environment);
+        if (futures == null) {
+            return false;
+        }
+        pruneDone(futures);
+        return !futures.isEmpty();
+    }
+
+    private static void pruneDone(Queue<Future<byte[]>> futures) {
+        for (Iterator<Future<byte[]>> iter = futures.iterator(); iter.hasNext(); ) {
+            if (iter.next().isDone()) {
+                iter.remove();
+            }
+        }
+    }
+
+    boolean hasLiveRequestThreads(VmApiProxyEnvironment environment) {
+        final List<Thread> threads = getRequestThreads(environment);
+        if (threads == null) {
+            return false;
+        }
+        final Thread current = Thread.currentThread();
+        for (Thread thread : threads) {
+            if (thread != current && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void interruptRequestThreads(VmApiProxyEnvironment environment) {
+        final List<Thread> threads = getRequestThreads(environment);
+        if (threads == null) {
+            return;
+        }
+        final Thread current = Thread.currentThread();
+        for (Thread thread : threads) {
+            if (thread != current && thread.isAlive()) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    void release(VmApiProxyEnvironment environment) {
+        pending.remove(environment);
+    }
+}
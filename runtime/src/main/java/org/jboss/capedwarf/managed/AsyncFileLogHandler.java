@@ -0,0 +1,477 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.apphosting.vmruntime.VmRuntimeFileLogHandler;
+
+/**
+ * Drop-in for VmRuntimeFileLogHandler which never does file I/O on the logging thread.
+ * <p/>
+ * Records are copied, their message formatted, while still on the logging thread, as their parameters may change once it returns;
+ * the copies go into a preallocated ring buffer and a single writer thread drains it in batches,
+ * encodes them (as the same JSON lines the SDK handler writes, or BinaryLogEncoder's compact frames)
+ * and appends them over a FileChannel, rotating files by size or age the way FileHandler does with a %g pattern.
+ * Rotated files can be gzipped in the background.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class AsyncFileLogHandler extends Handler {
+    static final String DEFAULT_PATTERN = "/var/log/app_engine/app.%g.log.json";
+    static final String DEFAULT_BINARY_PATTERN = "/var/log/app_engine/app.%g.log.bin";
+    static final long DEFAULT_LIMIT = 100 * 1024 * 1024;
+    static final int DEFAULT_COUNT = 3;
+
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * What a logging thread does when the ring buffer is full.
+     */
+    enum OverflowPolicy {
+        /**
+         * Wait for the writer to make room.
+         */
+        BLOCK,
+        /**
+         * Drop the record.
+         */
+        DROP,
+        /**
+         * Drop records below WARNING, wait with the rest.
+         */
+        DROP_BELOW_WARNING;
+
+        static OverflowPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private final AtomicReferenceArray<LogRecord> ring;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // next slot to claim
+    private final AtomicLong head = new AtomicLong(); // next slot to write
+    private final OverflowPolicy overflowPolicy;
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final LogRecordEncoder encoder;
+    private final String pattern;
+    private final long limit;
+    private final long interval;
+    private final int count;
+    private final ExecutorService compressor;
+    private final Thread writer;
+    private volatile boolean writerParked;
+    private volatile boolean closed;
+
+    // writer thread only
+    private final LogRecordEncoder.Output frame = new LogRecordEncoder.Output(1024);
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+    private FileChannel channel;
+    private long written;
+    private long segmentStart;
+    private Future<?> compression;
+
+    AsyncFileLogHandler(String pattern, long limit, int count, int capacity, OverflowPolicy overflowPolicy) {
+        this(new JsonLogEncoder(), pattern, limit, 0, count, false, capacity, overflowPolicy);
+    }
+
+    /**
+     * @param limit    max file size, in bytes
+     * @param interval max file age (in millis), 0 for none
+     * @param count    number of files kept, the current one included
+     * @param compress gzip rotated files
+     */
+    AsyncFileLogHandler(LogRecordEncoder encoder, String pattern, long limit, long interval, int count, boolean compress, int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Ring buffer capacity must be at least 2: " + capacity);
+        }
+        this.ring = new AtomicReferenceArray<>(Integer.highestOneBit(capacity - 1) << 1);
+        this.mask = ring.length() - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.encoder = encoder;
+        this.pattern = pattern;
+        this.limit = limit;
+        this.interval = interval;
+        this.count = Math.max(1, count);
+        this.compressor = compress ? Executors.newSingleThreadExecutor(new AsyncRequestTeardown.DaemonThreadFactory("capedwarf-log-compressor")) : null;
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "capedwarf-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    static AsyncFileLogHandler create(CapedwarfConfiguration configuration) {
+        final boolean binary = "binary".equals(configuration.getString(CapedwarfConfiguration.LOG_FORMAT, "json"));
+        return new AsyncFileLogHandler(
+            binary ? new BinaryLogEncoder() : new JsonLogEncoder(),
+            configuration.getString(CapedwarfConfiguration.LOG_FILE_PATTERN, binary ? DEFAULT_BINARY_PATTERN : DEFAULT_PATTERN),
+            configuration.getLong(CapedwarfConfiguration.LOG_ROTATE_SIZE, DEFAULT_LIMIT),
+            configuration.getLong(CapedwarfConfiguration.LOG_ROTATE_INTERVAL, 0L),
+            configuration.getInt(CapedwarfConfiguration.LOG_FILES, DEFAULT_COUNT),
+            configuration.getBoolean(CapedwarfConfiguration.LOG_COMPRESS, false),
+            configuration.getInt(CapedwarfConfiguration.LOG_BUFFER_SIZE, 8192),
+            OverflowPolicy.parse(configuration.getString(CapedwarfConfiguration.LOG_OVERFLOW_POLICY, "block")));
+    }
+
+    /**
+     * Replace the SDK's file handler (or a previous instance of ours) on the root logger.
+     */
+    static AsyncFileLogHandler install(CapedwarfConfiguration configuration) {
+        final Logger root = Logger.getLogger("");
+        for (Handler handler : root.getHandlers()) {
+            if (handler instanceof VmRuntimeFileLogHandler || handler instanceof AsyncFileLogHandler) {
+                root.removeHandler(handler);
+                handler.close();
+            }
+        }
+        final AsyncFileLogHandler handler = create(configuration);
+        root.addHandler(handler);
+        return handler;
+    }
+
+    void uninstall() {
+        Logger.getLogger("").removeHandler(this);
+        close();
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    void addCounters(ApiMetrics metrics) {
+        metrics.addCounter("log-file-dropped", new ApiMetrics.Counter() {
+            public long get() {
+                return getDropped();
+            }
+        });
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            return;
+        }
+        final int capacity = ring.length();
+        long slot;
+        while (true) {
+            slot = tail.get();
+            if (slot - head.get() >= capacity) {
+                if (overflowPolicy == OverflowPolicy.DROP || (overflowPolicy == OverflowPolicy.DROP_BELOW_WARNING && record.getLevel().intValue() < Level.WARNING.intValue())) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                if (closed) {
+                    return;
+                }
+                wakeWriter();
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+            } else if (tail.compareAndSet(slot, slot + 1)) {
+                break;
+            }
+        }
+        ring.lazySet((int) slot & mask, snapshot(record));
+        if (writerParked) {
+            wakeWriter();
+        }
+    }
+
+    /**
+     * @return a copy of the record with its message formatted, and its caller inferred, on the logging thread
+     */
+    static LogRecord snapshot(LogRecord record) {
+        final LogRecord snapshot = new LogRecord(record.getLevel(), formatMessage(record));
+        snapshot.setLoggerName(record.getLoggerName());
+        snapshot.setMillis(record.getMillis());
+        snapshot.setSequenceNumber(record.getSequenceNumber());
+        snapshot.setSourceClassName(record.getSourceClassName());
+        snapshot.setSourceMethodName(record.getSourceMethodName());
+        snapshot.setThreadID(record.getThreadID());
+        snapshot.setThrown(record.getThrown());
+        return snapshot;
+    }
+
+    // as Formatter.formatMessage, without its lock, which all logging threads would contend on
+    static String formatMessage(LogRecord record) {
+        String format = record.getMessage();
+        final ResourceBundle bundle = record.getResourceBundle();
+        if (bundle != null && format != null) {
+            try {
+                format = bundle.getString(format);
+            } catch (MissingResourceException ignored) {
+            }
+        }
+        final Object[] parameters = record.getParameters();
+        if (format == null || parameters == null || parameters.length == 0) {
+            return format;
+        }
+        try {
+            if (format.contains("{0") || format.contains("{1") || format.contains("{2") || format.contains("{3")) {
+                return MessageFormat.format(format, parameters);
+            }
+            return format;
+        } catch (RuntimeException e) {
+            return format;
+        }
+    }
+
+    private void wakeWriter() {
+        writerParked = false;
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Wait (a bit) for what was published so far to hit the file.
+     */
+    @Override
+    public void flush() {
+        final long target = tail.get();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (head.get() < target && writer.isAlive() && System.nanoTime() - deadline < 0) {
+            wakeWriter();
+            LockSupport.parkNanos(FULL_PARK_NANOS);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        wakeWriter();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+            if (compressor != null) {
+                compressor.shutdown();
+                compressor.awaitTermination(30, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                final long from = head.get();
+                final long available = Math.min(tail.get() - from, BATCH_SIZE);
+                long position = from;
+                for (; position < from + available; position++) {
+                    final int index = (int) position & mask;
+                    LogRecord record = ring.get(index);
+                    while (record == null) { // claimed, not published yet
+                        Thread.yield();
+                        record = ring.get(index);
+                    }
+                    ring.lazySet(index, null);
+                    write(record);
+                }
+                if (position > from) {
+                    writeBuffer();
+                    head.lazySet(position);
+                } else if (closed) {
+                    break;
+                } else {
+                    writerParked = true;
+                    if (tail.get() == head.get() && !closed) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    writerParked = false;
+                }
+            }
+        } finally {
+            closeChannel();
+        }
+    }
+
+    private void write(LogRecord record) {
+        try {
+            frame.reset();
+            encoder.encode(record, frame);
+            if (channel == null || isRotationDue(record)) {
+                writeBuffer(); // pending bytes belong to the current file
+                rotate();
+                // encode again against the new file's header and state
+                frame.reset();
+                encoder.startSegment(frame);
+                encoder.encode(record, frame);
+            }
+        } catch (IOException e) {
+            reportError("Cannot rotate log file.", e, ErrorManager.OPEN_FAILURE);
+            closeChannel();
+            return;
+        } catch (RuntimeException e) {
+            reportError("Cannot format log record.", e, ErrorManager.FORMAT_FAILURE);
+            return;
+        }
+        if (frame.size() > buffer.remaining()) {
+            writeBuffer();
+        }
+        if (frame.size() > buffer.remaining()) {
+            write(ByteBuffer.wrap(frame.array(), 0, frame.size()));
+        } else {
+            buffer.put(frame.array(), 0, frame.size());
+        }
+    }
+
+    private boolean isRotationDue(LogRecord record) {
+        final long size = written + buffer.position();
+        return (size > 0 && size + frame.size() > limit) || (interval > 0 && record.getMillis() - segmentStart >= interval);
+    }
+
+    private void writeBuffer() {
+        buffer.flip();
+        write(buffer);
+        buffer.clear();
+    }
+
+    private void write(ByteBuffer bytes) {
+        if (channel == null) {
+            return; // failed to open, next record retries
+        }
+        try {
+            while (bytes.hasRemaining()) {
+                written += channel.write(bytes);
+            }
+        } catch (IOException e) {
+            reportError("Cannot write log file.", e, ErrorManager.WRITE_FAILURE);
+            closeChannel();
+        }
+    }
+
+    private void rotate() throws IOException {
+        final File current = file(0);
+        if (channel != null || (current.exists() && current.length() > 0)) {
+            closeChannel();
+            awaitCompression();
+            for (int i = count - 2; i >= 0; i--) {
+                shift(i);
+            }
+            if (compressor != null && count > 1) {
+                final File rotated = file(1);
+                compression = compressor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        gzip(rotated);
+                        return null;
+                    }
+                });
+            }
+        }
+        final File parent = current.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Cannot create log directory " + parent);
+        }
+        channel = FileChannel.open(current.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        written = 0;
+        segmentStart = System.currentTimeMillis();
+    }
+
+    // generation -> generation + 1, plain or gzipped
+    private void shift(int generation) throws IOException {
+        final File target = file(generation + 1);
+        final File gzipTarget = gzipped(target);
+        Files.deleteIfExists(target.toPath());
+        Files.deleteIfExists(gzipTarget.toPath());
+        final File source = file(generation);
+        if (source.exists()) {
+            Files.move(source.toPath(), target.toPath());
+        }
+        final File gzipSource = gzipped(source);
+        if (gzipSource.exists()) {
+            Files.move(gzipSource.toPath(), gzipTarget.toPath());
+        }
+    }
+
+    private void awaitCompression() {
+        if (compression != null) {
+            try {
+                compression.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                reportError("Cannot compress log file.", (Exception) e.getCause(), ErrorManager.GENERIC_FAILURE);
+            }
+            compression = null;
+        }
+    }
+
+    private static void gzip(File file) throws IOException {
+        final File gzipped = gzipped(file);
+        final File temp = new File(gzipped.getPath() + ".tmp");
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), 64 * 1024)) {
+            Files.copy(file.toPath(), out);
+        }
+        Files.move(temp.toPath(), gzipped.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.delete(file.toPath());
+    }
+
+    private static File gzipped(File file) {
+        return new File(file.getPath() + ".gz");
+    }
+
+    private File file(int generation) {
+        return new File(pattern.replace("%g", String.valueOf(generation)));
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+        }
+    }
+}
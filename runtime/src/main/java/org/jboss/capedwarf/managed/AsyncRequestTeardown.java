@@ -0,0 +1,187 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.apphosting.vmruntime.VmApiProxyEnvironment;
+
+/**
+ * Runs request teardown once the request's async API calls and request threads are done,
+ * w/o parking a worker thread while waiting for them.
+ * <p/>
+ * Calls which signal completion trigger the check themselves; only calls which don't,
+ * and live request threads, are re-checked by a single timer thread, with backoff.
+ * The continuation runs on a small dedicated pool.
+ * <p/>
+ * Teardown can only be deferred for servlets (and filters) which support async,
+ * as the exchange is completed via {@link javax.servlet.AsyncContext}; the others tear down inline.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class AsyncRequestTeardown {
+    private static final long MIN_RECHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+    private static final long MAX_RECHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(64);
+
+    private final AsyncApiCallTracker tracker;
+    private final long timeoutNanos;
+    private final ScheduledThreadPoolExecutor timer;
+    private final ExecutorService executor;
+
+    AsyncRequestTeardown(AsyncApiCallTracker tracker, long timeoutMillis, int threads) {
+        this.tracker = tracker;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.timer = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("capedwarf-teardown-timer"));
+        this.timer.setRemoveOnCancelPolicy(true); // don't keep finished requests around until their deadline
+        this.executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("capedwarf-teardown"));
+    }
+
+    /**
+     * Would teardown of this request have to wait?
+     *
+     * @param environment the request environment
+     * @return true if there is nothing to wait for
+     */
+    boolean isQuiescent(VmApiProxyEnvironment environment) {
+        return !tracker.hasPendingCalls(environment) && !tracker.hasLiveRequestThreads(environment);
+    }
+
+    /**
+     * Interrupt request threads and run continuation once all request work is done, or timeout expires.
+     *
+     * @param environment  the request environment
+     * @param continuation the teardown continuation
+     */
+    void whenQuiescent(final VmApiProxyEnvironment environment, final Runnable continuation) {
+        tracker.interruptRequestThreads(environment);
+        final Waiter waiter = new Waiter(environment, continuation);
+        try {
+            waiter.deadline = timer.schedule(new Runnable() {
+                public void run() {
+                    waiter.finish();
+                }
+            }, timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            waiter.finish();
+            return;
+        }
+        waiter.check();
+    }
+
+    void stop() {
+        timer.shutdown();
+        executor.shutdown();
+    }
+
+    private class Waiter implements Runnable {
+        private final VmApiProxyEnvironment environment;
+        private final Runnable continuation;
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private final Set<Future<byte[]>> hooked = Collections.newSetFromMap(new ConcurrentHashMap<Future<byte[]>, Boolean>());
+        private volatile ScheduledFuture<?> deadline;
+        private long recheckNanos = MIN_RECHECK_NANOS;
+
+        private Waiter(VmApiProxyEnvironment environment, Runnable continuation) {
+            this.environment = environment;
+            this.continuation = continuation;
+        }
+
+        public void run() {
+            check();
+        }
+
+        /**
+         * Finish if quiescent, otherwise make sure something triggers the next check.
+         */
+        void check() {
+            if (finished.get()) {
+                return;
+            }
+            boolean recheck = tracker.hasLiveRequestThreads(environment);
+            for (Future<byte[]> future : tracker.getPendingCalls(environment)) {
+                if (future instanceof CompletionWatcher.Listenable) {
+                    if (hooked.add(future)) {
+                        ((CompletionWatcher.Listenable) future).addListener(this);
+                    }
+                } else if (!future.isDone()) {
+                    recheck = true;
+                }
+            }
+            if (isQuiescent(environment)) {
+                finish();
+            } else if (recheck) {
+                scheduleRecheck();
+            }
+        }
+
+        private synchronized void scheduleRecheck() {
+            try {
+                timer.schedule(this, recheckNanos, TimeUnit.NANOSECONDS);
+                recheckNanos = Math.min(2 * recheckNanos, MAX_RECHECK_NANOS);
+            } catch (RejectedExecutionException e) {
+                finish();
+            }
+        }
+
+        void finish() {
+            if (finished.compareAndSet(false, true)) {
+                final ScheduledFuture<?> timeout = deadline;
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+                try {
+                    executor.execute(continuation);
+                } catch (RejectedExecutionException e) {
+                    continuation.run();
+                }
+            }
+        }
+    }
+
+    static class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+        private final String prefix;
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.LogRecord;
+
+/**
+ * Compact binary log records, read back with BinaryLogReader.
+ * <p/>
+ * A segment (file) starts with MAGIC and VERSION, followed by frames, each a type byte, varint body length and body:
+ * <ul>
+ * <li>NAME: varint id, string -- adds a logger, class or method name to the segment's dictionary</li>
+ * <li>RECORD: zigzag varlong millis delta to the previous record, zigzag varint level,
+ * varint thread id, name refs of logger, source class and source method, string message, string thrown</li>
+ * </ul>
+ * Strings are a varint of UTF-8 length + 1 (0 is null) and the bytes; name refs are dictionary ids, 0 is null.
+ * Dictionary and millis base reset per segment, so each file can be read on its own.
+ * Readers skip frames of unknown type by their length, so new frame types or trailing fields don't break them.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class BinaryLogEncoder implements LogRecordEncoder {
+    static final byte[] MAGIC = {'C', 'D', 'L', 'G'};
+    static final int VERSION = 2;
+    static final int NAME = 1;
+    static final int RECORD = 2;
+
+    private final Map<String, Integer> names = new HashMap<>();
+    private final Output frame = new Output(256);
+    private long lastMillis;
+
+    public void startSegment(Output out) {
+        names.clear();
+        lastMillis = 0;
+        out.write(MAGIC, 0, MAGIC.length);
+        out.write(VERSION);
+    }
+
+    public void encode(LogRecord record, Output out) {
+        // dictionary entries go out first, so the record can refer to them
+        final int logger = name(record.getLoggerName(), out);
+        final int sourceClass = name(record.getSourceClassName(), out);
+        final int sourceMethod = name(record.getSourceMethodName(), out);
+
+        writeVarLong(frame, zigzag(record.getMillis() - lastMillis));
+        lastMillis = record.getMillis();
+        writeVarLong(frame, zigzag(record.getLevel().intValue()));
+        writeVarLong(frame, record.getThreadID() & 0xFFFFFFFFL);
+        writeVarLong(frame, logger);
+        writeVarLong(frame, sourceClass);
+        writeVarLong(frame, sourceMethod);
+        writeString(frame, record.getMessage());
+        if (record.getThrown() != null) {
+            final StringWriter stackTrace = new StringWriter();
+            record.getThrown().printStackTrace(new PrintWriter(stackTrace));
+            writeString(frame, stackTrace.toString());
+        } else {
+            writeString(frame, null);
+        }
+        writeFrame(RECORD, out);
+    }
+
+    private int name(String name, Output out) {
+        if (name == null) {
+            return 0;
+        }
+        Integer id = names.get(name);
+        if (id == null) {
+            id = names.size() + 1;
+            names.put(name, id);
+            writeVarLong(frame, id);
+            writeString(frame, name);
+            writeFrame(NAME, out);
+        }
+        return id;
+    }
+
+    private void writeFrame(int type, Output out) {
+        out.write(type);
+        writeVarLong(out, frame.size());
+        out.write(frame.array(), 0, frame.size());
+        frame.reset();
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static void writeVarLong(Output out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeString(Output out, String value) {
+        if (value == null) {
+            out.write(0);
+            return;
+        }
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length + 1L);
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.logging.Level;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streams records out of BinaryLogEncoder segments, plain or gzipped.
+ * <p/>
+ * Usage: java -cp capedwarf-managed-runtime.jar org.jboss.capedwarf.managed.BinaryLogReader app.2.log.bin.gz app.1.log.bin.gz app.0.log.bin
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public final class BinaryLogReader implements Closeable {
+    private final DataInputStream in;
+    private final List<String> names = new ArrayList<>();
+    private byte[] frame = new byte[256];
+    private int position;
+    private int limit;
+    private long lastMillis;
+
+    public BinaryLogReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        final byte[] magic = new byte[BinaryLogEncoder.MAGIC.length];
+        this.in.readFully(magic);
+        if (!Arrays.equals(magic, BinaryLogEncoder.MAGIC)) {
+            throw new IOException("Not a binary log segment.");
+        }
+        final int version = this.in.readUnsignedByte();
+        if (version != BinaryLogEncoder.VERSION) {
+            throw new IOException("Unsupported binary log version: " + version);
+        }
+        names.add(null); // ref 0
+    }
+
+    public static BinaryLogReader open(String file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            return new BinaryLogReader(file.endsWith(".gz") ? new GZIPInputStream(in) : in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return next record, null at the end of the segment
+     */
+    public Entry next() throws IOException {
+        while (true) {
+            final int type = in.read();
+            if (type < 0) {
+                return null;
+            }
+            try {
+                readFrame();
+            } catch (EOFException e) {
+                return null; // truncated last frame of a segment still being written
+            }
+            if (type == BinaryLogEncoder.NAME) {
+                final int id = (int) readVarLong();
+                if (id != names.size()) {
+                    throw new IOException("Corrupt name dictionary, expected id " + names.size() + " but got " + id);
+                }
+                names.add(readString());
+            } else if (type == BinaryLogEncoder.RECORD) {
+                lastMillis += unzigzag(readVarLong());
+                final int level = (int) unzigzag(readVarLong());
+                final int threadId = (int) readVarLong();
+                final String logger = name(readVarLong());
+                final String sourceClass = name(readVarLong());
+                final String sourceMethod = name(readVarLong());
+                return new Entry(lastMillis, level, threadId, logger, sourceClass, sourceMethod, readString(), readString());
+            }
+            // unknown frame type, already skipped
+        }
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private String name(long ref) throws IOException {
+        if (ref >= names.size()) {
+            throw new IOException("Unknown name ref: " + ref);
+        }
+        return names.get((int) ref);
+    }
+
+    /**
+     * Read the next frame's body, which the fields are then read from.
+     */
+    private void readFrame() throws IOException {
+        long length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift >= 35) {
+                throw new IOException("Malformed frame length.");
+            }
+            final int b = in.readUnsignedByte();
+            length |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Frame too large: " + length);
+        }
+        if (length > frame.length) {
+            frame = new byte[Math.max((int) length, 2 * frame.length)];
+        }
+        in.readFully(frame, 0, (int) length);
+        position = 0;
+        limit = (int) length;
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position >= limit) {
+                throw new IOException("Frame too short.");
+            }
+            final int b = frame[position++] & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint.");
+    }
+
+    private String readString() throws IOException {
+        final long length = readVarLong();
+        if (length == 0) {
+            return null;
+        }
+        if (length - 1 > limit - position) {
+            throw new IOException("Frame too short.");
+        }
+        final String value = new String(frame, position, (int) (length - 1), StandardCharsets.UTF_8);
+        position += (int) (length - 1);
+        return value;
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: BinaryLogReader <segment>...");
+            System.exit(1);
+        }
+        final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        for (String file : args) {
+            try (BinaryLogReader reader = open(file)) {
+                Entry entry;
+                while ((entry = reader.next()) != null) {
+                    out.write(entry.toString());
+                    out.write('\n');
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * A decoded log record.
+     */
+    public static final class Entry {
+        private final long millis;
+        private final int level;
+        private final int threadId;
+        private final String logger;
+        private final String sourceClass;
+        private final String sourceMethod;
+        private final String message;
+        private final String thrown;
+
+        private Entry(long millis, int level, int threadId, String logger, String sourceClass, String sourceMethod, String message, String thrown) {
+            this.millis = millis;
+            this.level = level;
+            this.threadId = threadId;
+            this.logger = logger;
+            this.sourceClass = sourceClass;
+            this.sourceMethod = sourceMethod;
+            this.message = message;
+            this.thrown = thrown;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public Level getLevel() {
+            return Level.parse(String.valueOf(level));
+        }
+
+        public int getThreadId() {
+            return threadId;
+        }
+
+        public String getLogger() {
+            return logger;
+        }
+
+        public String getSourceClass() {
+            return sourceClass;
+        }
+
+        public String getSourceMethod() {
+            return sourceMethod;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public String getThrown() {
+            return thrown;
+        }
+
+        @Override
+        public String toString() {
+            final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            final StringBuilder builder = new StringBuilder(128);
+            builder.append(format.format(new Date(millis))).append(' ').append(getLevel().getName())
+                .append(" [").append(threadId).append("] ");
+            if (logger != null) {
+                builder.append(logger).append(' ');
+            }
+            if (sourceClass != null) {
+                builder.append(sourceClass);
+                if (sourceMethod != null) {
+                    builder.append('.').append(sourceMethod);
+                }
+                builder.append(": ");
+            }
+            builder.append(message);
+            if (thrown != null) {
+                builder.append('\n').append(thrown);
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.ServerConnection;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.Headers;
+import io.undertow.util.MultipartParser;
+import org.xnio.Pool;
+import org.xnio.Pooled;
+
+/**
+ * Parses blob upload callbacks as they stream in, in place of the SDK's ParseBlobUploadFilter,
+ * which builds the whole multipart body in heap.
+ * <p/>
+ * Sets the same request attributes (blob keys and blob infos per field) and exposes the other form fields
+ * as request parameters, as the filter did. Form field bodies are kept in pooled buffers up to a threshold,
+ * past which they are spilled to a temp file and only read back if the app asks for the parameter.
+ * Bodies of file parts that are not uploaded blobs are skipped, as the filter ignored them too.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class BlobUploadParser {
+    private static final Logger logger = Logger.getLogger(BlobUploadParser.class.getName());
+
+    static final String UPLOADED_BLOBKEY_ATTR = "com.google.appengine.api.blobstore.upload.blobkeys";
+    static final String UPLOADED_BLOBINFO_ATTR = "com.google.appengine.api.blobstore.upload.blobinfos";
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final int spillThreshold;
+
+    /**
+     * @param spillThreshold form field size (in bytes) past which its body goes to a temp file
+     */
+    BlobUploadParser(int spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    /**
+     * Reads the request body; the returned upload must be closed once the request is done with it.
+     */
+    Upload parse(HttpServerExchange exchange, HttpServletRequest request) throws IOException {
+        final Upload upload = new Upload(request, getBufferPool(exchange));
+        final String contentType = request.getContentType();
+        final String boundary = (contentType != null) ? Headers.extractQuotedValueFromHeader(contentType, "boundary") : null;
+        if (boundary == null) {
+            logger.warning("Blob upload callback to '" + exchange.getRequestPath() + "' is not a multipart request.");
+            return upload;
+        }
+        final String encoding = request.getCharacterEncoding();
+        final Charset charset = (encoding != null) ? Charset.forName(encoding) : StandardCharsets.UTF_8;
+        final Collector collector = new Collector(upload, charset);
+        final MultipartParser.ParseState state = MultipartParser.beginParse(upload.pool, collector, boundary.getBytes(StandardCharsets.US_ASCII), charset.name());
+        final byte[] bytes = new byte[READ_BUFFER_SIZE];
+        try {
+            final InputStream in = request.getInputStream();
+            int read;
+            while (!state.isComplete() && (read = in.read(bytes)) != -1) {
+                state.parse(ByteBuffer.wrap(bytes, 0, read));
+            }
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Could not parse multipart message:", e);
+        }
+        request.setAttribute(UPLOADED_BLOBKEY_ATTR, collector.blobKeys);
+        request.setAttribute(UPLOADED_BLOBINFO_ATTR, collector.blobInfos);
+        return upload;
+    }
+
+    private static Pool<ByteBuffer> getBufferPool(HttpServerExchange exchange) {
+        final ServerConnection connection = exchange.getConnection();
+        return (connection != null) ? connection.getBufferPool() : null;
+    }
+
+    private static Map<String, String> parseHeaders(String text) {
+        final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        String name = null;
+        for (String line : text.split("\r?\n")) {
+            if (line.isEmpty()) {
+                break;
+            }
+            if (name != null && Character.isWhitespace(line.charAt(0))) {
+                headers.put(name, headers.get(name) + " " + line.trim()); // folded
+                continue;
+            }
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                name = line.substring(0, colon).trim();
+                headers.put(name, line.substring(colon + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    private static <T> void add(Map<String, List<T>> map, String name, T value) {
+        List<T> values = map.get(name);
+        if (values == null) {
+            values = new ArrayList<>(1);
+            map.put(name, values);
+        }
+        values.add(value);
+    }
+
+    private class Collector implements MultipartParser.PartHandler {
+        private final Upload upload;
+        private final Charset charset;
+        private final Map<String, List<String>> blobKeys = new HashMap<>();
+        private final Map<String, List<Map<String, String>>> blobInfos = new HashMap<>();
+
+        private String fieldName;
+        private String blobKey;
+        private Charset partCharset;
+        private Body body;
+
+        private Collector(Upload upload, Charset charset) {
+            this.upload = upload;
+            this.charset = charset;
+        }
+
+        public void beginPart(HeaderMap headers) {
+            final String disposition = headers.getFirst(Headers.CONTENT_DISPOSITION);
+            final String contentType = headers.getFirst(Headers.CONTENT_TYPE);
+            fieldName = (disposition != null) ? Headers.extractQuotedValueFromHeader(disposition, "name") : null;
+            blobKey = null;
+            partCharset = charset;
+            body = null;
+            if (fieldName == null) {
+                return;
+            }
+            if (disposition.contains("filename")) {
+                if (contentType != null && contentType.startsWith("message/external-body")) {
+                    blobKey = Headers.extractQuotedValueFromHeader(contentType, "blob-key");
+                    body = new Body(upload.pool, spillThreshold); // just the blob's headers
+                }
+            } else {
+                final String partEncoding = (contentType != null) ? Headers.extractQuotedValueFromHeader(contentType, "charset") : null;
+                if (partEncoding != null && Charset.isSupported(partEncoding)) {
+                    partCharset = Charset.forName(partEncoding);
+                }
+                body = new Body(upload.pool, spillThreshold);
+            }
+            if (body != null) {
+                upload.bodies.add(body);
+            }
+        }
+
+        public void data(ByteBuffer buffer) throws IOException {
+            if (body != null) {
+                body.write(buffer);
+            } else {
+                buffer.position(buffer.limit());
+            }
+        }
+
+        public void endPart() {
+            if (body == null) {
+                return;
+            }
+            if (blobKey != null) {
+                add(blobKeys, fieldName, blobKey);
+                add(blobInfos, fieldName, blobInfo(body));
+            } else {
+                add(upload.fields, fieldName, new Field(body, partCharset));
+            }
+        }
+
+        private Map<String, String> blobInfo(Body body) {
+            Map<String, String> headers;
+            try {
+                headers = parseHeaders(body.text(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                headers = Collections.emptyMap();
+            }
+            final Map<String, String> info = new HashMap<>(8);
+            info.put("key", blobKey);
+            info.put("content-type", headers.get("Content-Type"));
+            info.put("creation-date", headers.get("X-AppEngine-Upload-Creation"));
+            final String disposition = headers.get("Content-Disposition");
+            info.put("filename", (disposition != null) ? Headers.extractQuotedValueFromHeader(disposition, "filename") : null);
+            info.put("size", headers.get("Content-Length"));
+            info.put("md5-hash", headers.get("Content-MD5"));
+            final String gsName = headers.get("X-AppEngine-Cloud-Storage-Object");
+            if (gsName != null) {
+                info.put("gs-name", gsName);
+            }
+            return info;
+        }
+    }
+
+    /**
+     * A part's body, in pooled buffers until it outgrows the threshold, then in a temp file.
+     */
+    private static class Body {
+        private final Pool<ByteBuffer> pool;
+        private final int threshold;
+        private final List<Pooled<ByteBuffer>> buffers = new ArrayList<>(1);
+        private long size;
+        private Path file;
+        private FileChannel channel;
+
+        private Body(Pool<ByteBuffer> pool, int threshold) {
+            this.pool = pool;
+            this.threshold = threshold;
+        }
+
+        private void write(ByteBuffer data) throws IOException {
+            size += data.remaining();
+            if (channel == null && size > threshold) {
+                spill();
+            }
+            if (channel != null) {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                return;
+            }
+            while (data.hasRemaining()) {
+                ByteBuffer last = buffers.isEmpty() ? null : buffers.get(buffers.size() - 1).getResource();
+                if (last == null || !last.hasRemaining()) {
+                    final Pooled<ByteBuffer> pooled = allocate();
+                    buffers.add(pooled);
+                    last = pooled.getResource();
+                }
+                final int n = Math.min(last.remaining(), data.remaining());
+                final ByteBuffer chunk = data.duplicate();
+                chunk.limit(chunk.position() + n);
+                last.put(chunk);
+                data.position(data.position() + n);
+            }
+        }
+
+        private Pooled<ByteBuffer> allocate() {
+            if (pool != null) {
+                final Pooled<ByteBuffer> pooled = pool.allocate();
+                pooled.getResource().clear();
+                return pooled;
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            return new Pooled<ByteBuffer>() {
+                public void discard() {
+                }
+
+                public void free() {
+                }
+
+                public ByteBuffer getResource() {
+                    return buffer;
+                }
+            };
+        }
+
+        private void spill() throws IOException {
+            file = Files.createTempFile("capedwarf-upload", ".part");
+            channel = FileChannel.open(file, StandardOpenOption.WRITE);
+            for (Pooled<ByteBuffer> pooled : buffers) {
+                final ByteBuffer buffer = pooled.getResource();
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                pooled.free();
+            }
+            buffers.clear();
+        }
+
+        private String text(Charset charset) throws IOException {
+            if (channel != null) {
+                return new String(Files.readAllBytes(file), charset);
+            }
+            final byte[] bytes = new byte[(int) size];
+            int offset = 0;
+            for (Pooled<ByteBuffer> pooled : buffers) {
+                final ByteBuffer buffer = pooled.getResource().duplicate();
+                buffer.flip();
+                final int n = buffer.remaining();
+                buffer.get(bytes, offset, n);
+                offset += n;
+            }
+            return new String(bytes, charset);
+        }
+
+        private void release() {
+            for (Pooled<ByteBuffer> pooled : buffers) {
+                pooled.free();
+            }
+            buffers.clear();
+            if (channel != null) {
+                try {
+                    channel.close();
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "Cannot delete " + file, e);
+                }
+            }
+        }
+    }
+
+    private static class Field {
+        private final Body body;
+        private final Charset charset;
+
+        private Field(Body body, Charset charset) {
+            this.body = body;
+            this.charset = charset;
+        }
+    }
+
+    /**
+     * A parsed upload; holds pooled buffers and temp files until closed.
+     */
+    static class Upload implements Closeable {
+        private final HttpServletRequest request;
+        private final Pool<ByteBuffer> pool;
+        private final List<Body> bodies = new ArrayList<>();
+        private final Map<String, List<Field>> fields = new LinkedHashMap<>();
+        private Map<String, String[]> parameters;
+
+        private Upload(HttpServletRequest request, Pool<ByteBuffer> pool) {
+            this.request = request;
+            this.pool = pool;
+        }
+
+        /**
+         * @return the request with the upload's form fields added to its parameters
+         */
+        HttpServletRequest getRequest() {
+            return fields.isEmpty() ? request : new ParametersRequest(request, this);
+        }
+
+        private synchronized Map<String, String[]> getParameters() {
+            if (parameters == null) {
+                final Map<String, String[]> map = new LinkedHashMap<>(request.getParameterMap());
+                for (Map.Entry<String, List<Field>> entry : fields.entrySet()) {
+                    final List<String> values = new ArrayList<>();
+                    final String[] existing = map.get(entry.getKey());
+                    if (existing != null) {
+                        Collections.addAll(values, existing);
+                    }
+                    for (Field field : entry.getValue()) {
+                        try {
+                            values.add(field.body.text(field.charset));
+                        } catch (IOException e) {
+                            throw new IllegalStateException("Cannot read upload form field " + entry.getKey(), e);
+                        }
+                    }
+                    map.put(entry.getKey(), values.toArray(new String[values.size()]));
+                }
+                parameters = Collections.unmodifiableMap(map);
+            }
+            return parameters;
+        }
+
+        public void close() {
+            for (Body body : bodies) {
+                body.release();
+            }
+            bodies.clear();
+        }
+    }
+
+    private static class ParametersRequest extends HttpServletRequestWrapper {
+        private final Upload upload;
+
+        private ParametersRequest(HttpServletRequest request, Upload upload) {
+            super(request);
+            this.upload = upload;
+        }
+
+        @Override
+        public String getParameter(String name) {
+            final String[] values = upload.getParameters().get(name);
+            return (values != null && values.length > 0) ? values[0] : null;
+        }
+
+        @Override
+        public Map<String, String[]> getParameterMap() {
+            return upload.getParameters();
+        }
+
+        @Override
+        public Enumeration<String> getParameterNames() {
+            return Collections.enumeration(upload.getParameters().keySet());
+        }
+
+        @Override
+        public String[] getParameterValues(String name) {
+            return upload.getParameters().get(name);
+        }
+    }
+}
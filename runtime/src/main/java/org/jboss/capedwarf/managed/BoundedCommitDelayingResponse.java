@@ -0,0 +1,312 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.xnio.Pool;
+import org.xnio.Pooled;
+
+/**
+ * Commit delaying response which keeps the body in pooled buffers up to a threshold,
+ * and switches to streaming once the body grows past it.
+ * <p/>
+ * Before the first byte hits the wire the commit callback is invoked,
+ * so logs are flushed and the log header is added while headers can still be changed.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class BoundedCommitDelayingResponse extends HttpServletResponseWrapper {
+    private static final int HEAP_BUFFER_SIZE = 16 * 1024;
+
+    interface CommitCallback {
+        void beforeCommit() throws IOException;
+    }
+
+    private final Pool<ByteBuffer> bufferPool;
+    private final int threshold;
+    private final CommitCallback callback;
+
+    private final List<Pooled<ByteBuffer>> pooledBuffers = new ArrayList<>();
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    private final BufferingOutputStream outputStream = new BufferingOutputStream();
+    private PrintWriter writer;
+    private byte[] transfer;
+    private int buffered;
+    private boolean streaming;
+    private boolean committed;
+    private boolean discarding;
+
+    BoundedCommitDelayingResponse(HttpServletResponse response, Pool<ByteBuffer> bufferPool, int threshold, CommitCallback callback) {
+        super(response);
+        this.bufferPool = bufferPool;
+        this.threshold = threshold;
+        this.callback = callback;
+    }
+
+    /**
+     * Did we already switch to streaming, hence invoked the commit callback.
+     *
+     * @return true if streaming, false otherwise
+     */
+    boolean isStreaming() {
+        return streaming;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter() has already been called.");
+        }
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            writer = new PrintWriter(new OutputStreamWriter(outputStream, getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    @Override
+    public boolean isCommitted() {
+        return streaming || committed;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (streaming) {
+            if (writer != null) {
+                writer.flush();
+            }
+            super.flushBuffer();
+        }
+        // else delay until commit
+    }
+
+    @Override
+    public void resetBuffer() {
+        if (streaming) {
+            super.resetBuffer();
+        } else {
+            discardBuffered();
+        }
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        if (!streaming) {
+            discardBuffered();
+        }
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        startStreaming();
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        startStreaming();
+        super.sendError(sc);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        startStreaming();
+        super.sendRedirect(location);
+    }
+
+    /**
+     * Write out what is still buffered and flush the underlying response.
+     *
+     * @throws IOException for any I/O error
+     */
+    void commit() throws IOException {
+        try {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (!streaming) {
+                drainBuffers(super.getOutputStream());
+            }
+            committed = true;
+            super.flushBuffer();
+        } finally {
+            releaseBuffers();
+        }
+    }
+
+    private void startStreaming() throws IOException {
+        if (!streaming) {
+            callback.beforeCommit();
+            streaming = true;
+            try {
+                drainBuffers(super.getOutputStream());
+            } finally {
+                releaseBuffers();
+            }
+        }
+    }
+
+    private void append(byte[] bytes, int offset, int length) throws IOException {
+        if (buffered + length > threshold) {
+            startStreaming();
+            super.getOutputStream().write(bytes, offset, length);
+            return;
+        }
+
+        while (length > 0) {
+            ByteBuffer buffer = buffers.isEmpty() ? null : buffers.get(buffers.size() - 1);
+            if (buffer == null || !buffer.hasRemaining()) {
+                buffer = allocate();
+            }
+            final int n = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, n);
+            offset += n;
+            length -= n;
+            buffered += n;
+        }
+    }
+
+    private ByteBuffer allocate() {
+        final ByteBuffer buffer;
+        if (bufferPool != null) {
+            final Pooled<ByteBuffer> pooled = bufferPool.allocate();
+            pooledBuffers.add(pooled);
+            buffer = pooled.getResource();
+            buffer.clear();
+        } else {
+            buffer = ByteBuffer.allocate(HEAP_BUFFER_SIZE);
+        }
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    private void drainBuffers(ServletOutputStream out) throws IOException {
+        for (ByteBuffer buffer : buffers) {
+            buffer.flip();
+            if (buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                if (transfer == null) {
+                    transfer = new byte[Math.min(HEAP_BUFFER_SIZE, threshold)];
+                }
+                while (buffer.hasRemaining()) {
+                    final int n = Math.min(transfer.length, buffer.remaining());
+                    buffer.get(transfer, 0, n);
+                    out.write(transfer, 0, n);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop the buffered body, including what the writer has not encoded into our buffers yet.
+     */
+    private void discardBuffered() {
+        if (writer != null) {
+            discarding = true;
+            try {
+                writer.flush();
+            } finally {
+                discarding = false;
+            }
+        }
+        releaseBuffers();
+    }
+
+    private void releaseBuffers() {
+        for (Pooled<ByteBuffer> pooled : pooledBuffers) {
+            pooled.free();
+        }
+        pooledBuffers.clear();
+        buffers.clear();
+        buffered = 0;
+    }
+
+    private class BufferingOutputStream extends ServletOutputStream {
+        private final byte[] single = new byte[1];
+
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (discarding) {
+                return;
+            }
+            if (streaming) {
+                BoundedCommitDelayingResponse.super.getOutputStream().write(b, off, len);
+            } else {
+                append(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (streaming) {
+                BoundedCommitDelayingResponse.super.getOutputStream().flush();
+            }
+        }
+
+        public boolean isReady() {
+            if (streaming) {
+                try {
+                    return BoundedCommitDelayingResponse.super.getOutputStream().isReady();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return true; // buffered writes never block
+        }
+
+        /**
+         * Non-blocking writes cannot be delayed, so the response starts streaming
+         * and the listener is handed to the underlying stream.
+         */
+        public void setWriteListener(WriteListener writeListener) {
+            try {
+                startStreaming();
+                BoundedCommitDelayingResponse.super.getOutputStream().setWriteListener(writeListener);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.session.Session;
+import io.undertow.server.session.SessionConfig;
+import io.undertow.server.session.SessionListener;
+import io.undertow.server.session.SessionManager;
+
+/**
+ * Keeps loaded sessions in heap, so requests routed to the same instance skip reading and deserializing them.
+ * <p/>
+ * Every save replaces the session's version in memcache with a new random one; a cached session is only served
+ * while that version still matches the one it was loaded (or saved) with, else it is loaded again.
+ * The new version is set with compare-and-set against the version read right before the save,
+ * so if another save got in between, nobody's copy is trusted and the version is reset once more.
+ * Version keys live in an internal namespace, which the memcache near-cache never serves.
+ * <p/>
+ * A hit still costs the version read, one memcache round trip, like loading a session from memcache does;
+ * what it saves is transferring and deserializing the session, so it only pays off for big sessions.
+ * Bounded by number of sessions and by their approximate serialized size, evicting least recently used first.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class CachingSessionManager extends ForwardingSessionManager {
+    private static final Logger logger = Logger.getLogger(CachingSessionManager.class.getName());
+    static final String VERSION_NAMESPACE = "_ah_session_version";
+    private static final Object ABSENT = new Object();
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService(VERSION_NAMESPACE);
+
+    // access ordered
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    CachingSessionManager(SessionManager delegate, int maxEntries, long maxBytes) {
+        super(delegate);
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        delegate.registerSessionListener(new Invalidator());
+    }
+
+    @Override
+    public Session getSession(HttpServerExchange exchange, SessionConfig config) {
+        final String id = config.findSessionId(exchange);
+        if (id == null) {
+            return delegate.getSession(exchange, config);
+        }
+        final Long version = currentVersion(id);
+        if (version != null) {
+            final Session cached = lookup(id, version);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        // version read before loading: a save racing with the load only makes the next request reload
+        final Session session = delegate.getSession(exchange, config);
+        if (session != null && version != null) {
+            put(id, new Entry(session, version, estimateSize(session)));
+        }
+        return session;
+    }
+
+    /**
+     * The session is about to be saved.
+     *
+     * @return the version the save replaces, to be handed to {@link #saved}
+     */
+    Object beforeSave(String id) {
+        try {
+            final MemcacheService.IdentifiableValue version = memcache.getIdentifiable(id);
+            return (version != null) ? version : ABSENT;
+        } catch (RuntimeException e) {
+            logger.log(Level.FINE, "Cannot read version of session " + id, e);
+            return null;
+        }
+    }
+
+    /**
+     * The session was saved; others' copies are stale now, ours is current unless another save raced with it.
+     *
+     * @param before what {@link #beforeSave} returned
+     */
+    void saved(String id, Object before) {
+        final long version = ThreadLocalRandom.current().nextLong();
+        boolean current = false;
+        if (before != null) {
+            try {
+                if (before == ABSENT) {
+                    current = memcache.put(id, version, null, MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+                } else {
+                    current = memcache.putIfUntouched(id, (MemcacheService.IdentifiableValue) before, version);
+                }
+            } catch (RuntimeException e) {
+                logger.log(Level.FINE, "Cannot set version of session " + id, e);
+            }
+        }
+        if (current) {
+            synchronized (this) {
+                final Entry entry = entries.get(id);
+                if (entry != null) {
+                    entry.version = version;
+                }
+            }
+        } else {
+            invalidate(id);
+        }
+    }
+
+    private synchronized Session lookup(String id, long version) {
+        final Entry entry = entries.get(id);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.version != version) {
+            remove(id);
+            return null;
+        }
+        return entry.session;
+    }
+
+    private synchronized void put(String id, Entry entry) {
+        remove(id);
+        if (entry.size > maxBytes) {
+            return;
+        }
+        entries.put(id, entry);
+        bytes += entry.size;
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+            bytes -= iterator.next().size;
+            iterator.remove();
+        }
+    }
+
+    private synchronized void remove(String id) {
+        final Entry entry = entries.remove(id);
+        if (entry != null) {
+            bytes -= entry.size;
+        }
+    }
+
+    /**
+     * @return the session's version, null if unknown
+     */
+    private Long currentVersion(String id) {
+        try {
+            final Object version = memcache.get(id);
+            if (version instanceof Long) {
+                return (Long) version;
+            }
+            // first load, or the key was evicted; versions are random, so old entries can't match
+            final long initial = ThreadLocalRandom.current().nextLong();
+            return memcache.put(id, initial, null, MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT) ? initial : null;
+        } catch (RuntimeException e) {
+            logger.log(Level.FINE, "Cannot read version of session " + id, e);
+            return null;
+        }
+    }
+
+    /**
+     * Drop our copy, and make everybody else drop theirs.
+     */
+    private void invalidate(String id) {
+        remove(id);
+        try {
+            memcache.put(id, ThreadLocalRandom.current().nextLong());
+        } catch (RuntimeException e) {
+            logger.log(Level.FINE, "Cannot reset version of session " + id, e);
+        }
+    }
+
+    private long estimateSize(Session session) {
+        final ByteCounter counter = new ByteCounter();
+        try (ObjectOutputStream out = new ObjectOutputStream(counter)) {
+            for (String name : session.getAttributeNames()) {
+                out.writeUTF(name);
+                out.writeObject(session.getAttribute(name));
+            }
+        } catch (IOException | RuntimeException e) {
+            return Long.MAX_VALUE; // unknown, don't cache
+        }
+        return counter.count;
+    }
+
+    @Override
+    public void stop() {
+        synchronized (this) {
+            entries.clear();
+            bytes = 0;
+        }
+        super.stop();
+    }
+
+    private static final class ByteCounter extends OutputStream {
+        private long count;
+
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    private static final class Entry {
+        private final Session session;
+        private final long size;
+        private long version;
+
+        private Entry(Session session, long version, long size) {
+            this.session = session;
+            this.version = version;
+            this.size = size;
+        }
+    }
+
+    private class Invalidator implements SessionListener {
+        public void sessionCreated(Session session, HttpServerExchange exchange) {
+        }
+
+        public void sessionDestroyed(Session session, HttpServerExchange exchange, SessionDestroyedReason reason) {
+            invalidate(session.getId());
+        }
+
+        public void attributeAdded(Session session, String name, Object value) {
+        }
+
+        public void attributeUpdated(Session session, String name, Object newValue, Object oldValue) {
+        }
+
+        public void attributeRemoved(Session session, String name, Object oldValue) {
+        }
+
+        public void sessionIdChanged(Session session, String oldSessionId) {
+            remove(oldSessionId);
+        }
+    }
+}
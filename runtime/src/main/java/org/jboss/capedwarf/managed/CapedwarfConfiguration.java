@@ -0,0 +1,355 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import javax.servlet.ServletContext;
+
+/**
+ * CapeDwarf runtime configuration.
+ * <p/>
+ * Values are looked up as servlet context init parameters first (the subsystem can put them there),
+ * then as system properties.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+final class CapedwarfConfiguration {
+    private static final String PREFIX = "org.jboss.capedwarf.";
+
+    /**
+     * Response size (in bytes) up to which the body is kept in pooled buffers; 0 keeps the whole body on heap until commit.
+     */
+    static final String RESPONSE_BUFFER_THRESHOLD = PREFIX + "response-buffer-threshold";
+
+    /**
+     * Complete requests with pending async API calls or request threads asynchronously, w/o parking the worker thread.
+     * Only applies to servlets (and filters) which support async; the others still tear down inline.
+     */
+    static final String ASYNC_TEARDOWN = PREFIX + "async-teardown";
+
+    /**
+     * Max time (in millis) async teardown waits for async API calls and request threads.
+     */
+    static final String ASYNC_TEARDOWN_TIMEOUT = PREFIX + "async-teardown-timeout";
+
+    /**
+     * Number of threads running async teardown continuations.
+     */
+    static final String ASYNC_TEARDOWN_THREADS = PREFIX + "async-teardown-threads";
+
+    /**
+     * API call transport; "pooled" uses CapeDwarf's keep-alive connection pool, anything else the SDK's delegate.
+     */
+    static final String API_TRANSPORT = PREFIX + "api-transport";
+
+    /**
+     * Max connections per API server host of the pooled transport.
+     */
+    static final String API_POOL_MAX_PER_HOST = PREFIX + "api-pool-max-per-host";
+
+    /**
+     * Connect timeout (in millis) of the pooled transport.
+     */
+    static final String API_POOL_CONNECT_TIMEOUT = PREFIX + "api-pool-connect-timeout";
+
+    /**
+     * Max time (in millis) an API call waits for a pooled connection before it fails.
+     */
+    static final String API_POOL_ACQUIRE_TIMEOUT = PREFIX + "api-pool-acquire-timeout";
+
+    /**
+     * Time (in millis) after which idle pooled connections are dropped.
+     */
+    static final String API_POOL_IDLE_TIMEOUT = PREFIX + "api-pool-idle-timeout";
+
+    /**
+     * Limit concurrent API calls adaptively, per instance and per request.
+     */
+    static final String API_LIMITER = PREFIX + "api-limiter";
+
+    /**
+     * Upper bound, and starting point, of the adaptive instance wide API call limit.
+     */
+    static final String API_LIMIT_MAX = PREFIX + "api-limit-max";
+
+    /**
+     * Max concurrent API calls of a single request.
+     */
+    static final String API_LIMIT_PER_REQUEST = PREFIX + "api-limit-per-request";
+
+    /**
+     * Record latency, payload size and error histograms of every API call, per service.method.
+     */
+    static final String API_METRICS = PREFIX + "record-api-metrics";
+
+    /**
+     * Share one round trip between identical read-only API calls in flight at the same time.
+     */
+    static final String API_COALESCING = PREFIX + "api-coalescing";
+
+    /**
+     * Comma separated service.method API calls which may be coalesced; by default memcache.Get.
+     */
+    static final String API_COALESCING_CALLS = PREFIX + "api-coalescing-calls";
+
+    /**
+     * Serve memcache Gets of hot keys from a local near-cache.
+     */
+    static final String MEMCACHE_NEAR_CACHE = PREFIX + "memcache-near-cache";
+
+    /**
+     * Max number of entries in the memcache near-cache.
+     */
+    static final String MEMCACHE_NEAR_CACHE_SIZE = PREFIX + "memcache-near-cache-size";
+
+    /**
+     * Max approximate size (in bytes) of the memcache near-cache's keys and values.
+     */
+    static final String MEMCACHE_NEAR_CACHE_MEMORY = PREFIX + "memcache-near-cache-memory";
+
+    /**
+     * Time (in millis) a memcache near-cache entry is served before it is fetched again.
+     */
+    static final String MEMCACHE_NEAR_CACHE_TTL = PREFIX + "memcache-near-cache-ttl";
+
+    /**
+     * Which requests get a Server-Timing response header: none, admin or all.
+     */
+    static final String SERVER_TIMING = PREFIX + "server-timing";
+
+    /**
+     * Application file log handler; "async" writes through CapeDwarf's ring buffer, anything else the SDK's handler.
+     */
+    static final String LOG_HANDLER = PREFIX + "log-handler";
+
+    /**
+     * File pattern (%g is the generation) of the async log handler.
+     */
+    static final String LOG_FILE_PATTERN = PREFIX + "log-file-pattern";
+
+    /**
+     * Number of log records the async log handler buffers.
+     */
+    static final String LOG_BUFFER_SIZE = PREFIX + "log-buffer-size";
+
+    /**
+     * What logging does once the async log handler's buffer is full: block, drop or drop-below-warning.
+     */
+    static final String LOG_OVERFLOW_POLICY = PREFIX + "log-overflow-policy";
+
+    /**
+     * Encoding of the async log handler's files: json or binary (read back with BinaryLogReader).
+     */
+    static final String LOG_FORMAT = PREFIX + "log-format";
+
+    /**
+     * Size (in bytes) at which the async log handler starts a new file.
+     */
+    static final String LOG_ROTATE_SIZE = PREFIX + "log-rotate-size";
+
+    /**
+     * Age (in millis) at which the async log handler starts a new file; 0 rotates by size only.
+     */
+    static final String LOG_ROTATE_INTERVAL = PREFIX + "log-rotate-interval";
+
+    /**
+     * Number of log files the async log handler keeps, the current one included.
+     */
+    static final String LOG_FILES = PREFIX + "log-files";
+
+    /**
+     * Gzip the async log handler's rotated files in the background.
+     */
+    static final String LOG_COMPRESS = PREFIX + "log-compress";
+
+    /**
+     * Coalesce saves of the same session and save them in the background; until saved, the session is served from heap.
+     */
+    static final String SESSION_WRITE_BEHIND = PREFIX + "session-write-behind";
+
+    /**
+     * Time (in millis) a session's save waits for more changes to the same session.
+     */
+    static final String SESSION_WRITE_BEHIND_WINDOW = PREFIX + "session-write-behind-window";
+
+    /**
+     * Number of threads saving sessions in write-behind mode.
+     */
+    static final String SESSION_WRITE_BEHIND_THREADS = PREFIX + "session-write-behind-threads";
+
+    /**
+     * Keep loaded sessions in heap, checked against a memcache version key instead of reloaded.
+     */
+    static final String SESSION_CACHE = PREFIX + "session-cache";
+
+    /**
+     * Max number of sessions kept in heap.
+     */
+    static final String SESSION_CACHE_SIZE = PREFIX + "session-cache-size";
+
+    /**
+     * Max approximate size (in bytes, as serialized) of sessions kept in heap.
+     */
+    static final String SESSION_CACHE_MEMORY = PREFIX + "session-cache-memory";
+
+    /**
+     * Number of expired sessions the paged session cleanup reads and deletes at a time.
+     */
+    static final String SESSION_CLEANUP_BATCH_SIZE = PREFIX + "session-cleanup-batch-size";
+
+    /**
+     * Max number of the paged session cleanup's batch deletes in flight.
+     */
+    static final String SESSION_CLEANUP_CONCURRENCY = PREFIX + "session-cleanup-concurrency";
+
+    /**
+     * Time (in millis) a paged session cleanup invocation spends reading pages before it checkpoints.
+     */
+    static final String SESSION_CLEANUP_TIME_LIMIT = PREFIX + "session-cleanup-time-limit";
+
+    /**
+     * Size (in bytes) of a blob upload's form field past which it is spilled from pooled buffers to a temp file.
+     */
+    static final String BLOB_UPLOAD_SPILL_THRESHOLD = PREFIX + "blob-upload-spill-threshold";
+
+    /**
+     * How /_ah/health is answered; "native" answers it in front of the request environment setup, anything else by the servlet.
+     */
+    static final String HEALTH_CHECK = PREFIX + "health-check";
+
+    /**
+     * Accept native health checks from any address.
+     */
+    static final String HEALTH_CHECK_DEV_MODE = PREFIX + "health-check-dev-mode";
+
+    /**
+     * Max age (in millis) of the load balancer's last health check verdict local health checks are answered with.
+     */
+    static final String HEALTH_CHECK_INTERVAL = PREFIX + "health-check-interval";
+
+    /**
+     * Time (in millis) between evaluations of the readiness probes.
+     */
+    static final String HEALTH_CHECK_REFRESH = PREFIX + "health-check-refresh";
+
+    /**
+     * Built-in readiness probes, comma separated: api-server, worker-pool.
+     */
+    static final String HEALTH_CHECK_PROBES = PREFIX + "health-check-probes";
+
+    /**
+     * Share (in percent) of the worker pool's threads busy with requests past which the worker-pool probe is not ready.
+     */
+    static final String HEALTH_CHECK_WORKER_SATURATION = PREFIX + "health-check-worker-saturation";
+
+    /**
+     * Warm the deployment up right after it is deployed, and hold readiness until that is done.
+     */
+    static final String WARMUP = PREFIX + "warmup";
+
+    /**
+     * Number of recorded GET paths replayed after /_ah/warmup; 0 turns recording and replay off.
+     */
+    static final String WARMUP_REPLAY = PREFIX + "warmup-replay";
+
+    /**
+     * Comma separated path prefixes that may be recorded and replayed; none means nothing is.
+     */
+    static final String WARMUP_PATHS = PREFIX + "warmup-paths";
+
+    /**
+     * Record and replay query strings too; off by default, as they may carry tokens and end up in a plain file.
+     */
+    static final String WARMUP_QUERY = PREFIX + "warmup-query";
+
+    /**
+     * Number of threads replaying the recorded paths.
+     */
+    static final String WARMUP_THREADS = PREFIX + "warmup-threads";
+
+    /**
+     * Time (in millis) after which warmup gives up, and readiness is no longer held.
+     */
+    static final String WARMUP_TIMEOUT = PREFIX + "warmup-timeout";
+
+    /**
+     * Host and port the warmup requests are sent to; by default the loopback address and the http port.
+     */
+    static final String WARMUP_SERVER = PREFIX + "warmup-server";
+
+    /**
+     * Ship the request logs' flushes in the background; request teardown only sends or waits for what is still pending.
+     */
+    static final String LOG_SHIPPING = PREFIX + "log-shipping";
+
+    /**
+     * Max number of log flushes waiting to be shipped; once full, flushes go out inline.
+     */
+    static final String LOG_SHIPPING_QUEUE_SIZE = PREFIX + "log-shipping-queue-size";
+
+    /**
+     * Max number of log flushes shipped in one batch.
+     */
+    static final String LOG_SHIPPING_BATCH_SIZE = PREFIX + "log-shipping-batch-size";
+
+    /**
+     * Time (in millis) a batch waits for more log flushes before it is shipped.
+     */
+    static final String LOG_SHIPPING_LINGER = PREFIX + "log-shipping-linger";
+
+    private final ServletContext servletContext;
+
+    private CapedwarfConfiguration(ServletContext servletContext) {
+        this.servletContext = servletContext;
+    }
+
+    static CapedwarfConfiguration create(ServletContext servletContext) {
+        return new CapedwarfConfiguration(servletContext);
+    }
+
+    static CapedwarfConfiguration fromSystemProperties() {
+        return new CapedwarfConfiguration(null);
+    }
+
+    String getString(String key, String defaultValue) {
+        String value = (servletContext != null) ? servletContext.getInitParameter(key) : null;
+        if (value == null) {
+            value = System.getProperty(key);
+        }
+        return (value != null) ? value.trim() : defaultValue;
+    }
+
+    boolean getBoolean(String key, boolean defaultValue) {
+        final String value = getString(key, null);
+        return (value != null) ? Boolean.parseBoolean(value) : defaultValue;
+    }
+
+    int getInt(String key, int defaultValue) {
+        final String value = getString(key, null);
+        return (value != null) ? Integer.parseInt(value) : defaultValue;
+    }
+
+    long getLong(String key, long defaultValue) {
+        final String value = getString(key, null);
+        return (value != null) ? Long.parseLong(value) : defaultValue;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Starts CapeDwarf runtime services once the deployment is up, and stops them when it goes away.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class CapedwarfLifecycleListener implements ServletContextListener {
+    private static final Logger logger = Logger.getLogger(CapedwarfLifecycleListener.class.getName());
+
+    private final List<Runnable> startTasks = new ArrayList<>();
+    private final List<Runnable> stopTasks = new ArrayList<>();
+
+    synchronized void addStartTask(Runnable task) {
+        startTasks.add(task);
+    }
+
+    synchronized void addStopTask(Runnable task) {
+        stopTasks.add(task);
+    }
+
+    public void contextInitialized(ServletContextEvent sce) {
+        final List<Runnable> tasks;
+        synchronized (this) {
+            tasks = new ArrayList<>(startTasks);
+            startTasks.clear();
+        }
+        for (Runnable task : tasks) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                logger.log(Level.WARNING, "Error starting CapeDwarf runtime service.", t);
+            }
+        }
+    }
+
+    public void contextDestroyed(ServletContextEvent sce) {
+        final List<Runnable> tasks;
+        synchronized (this) {
+            tasks = new ArrayList<>(stopTasks);
+            stopTasks.clear();
+        }
+        // stop in reverse order of registration
+        Collections.reverse(tasks);
+        for (Runnable task : tasks) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                logger.log(Level.WARNING, "Error stopping CapeDwarf runtime service.", t);
+            }
+        }
+    }
+}
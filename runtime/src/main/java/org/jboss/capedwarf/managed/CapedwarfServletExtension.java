@@ -25,6 +25,7 @@ package org.jboss.capedwarf.managed;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.logging.Logger;
 
 import javax.servlet.ServletContext;
 
@@ -32,7 +33,9 @@ import com.google.apphosting.utils.config.AppEngineWebXml;
 import com.google.apphosting.utils.config.AppEngineWebXmlReader;
 import io.undertow.servlet.ServletExtension;
 import io.undertow.servlet.api.DeploymentInfo;
+import io.undertow.servlet.api.ListenerInfo;
 import io.undertow.servlet.api.SessionManagerFactory;
+import io.undertow.servlet.util.ImmediateInstanceFactory;
 import org.jboss.capedwarf.shared.common.http.StubSessionManagerFactory;
 import org.kohsuke.MetaInfServices;
 
@@ -41,19 +44,64 @@ import org.kohsuke.MetaInfServices;
  */
 @MetaInfServices(ServletExtension.class)
 public class CapedwarfServletExtension implements ServletExtension {
+    private static final Logger logger = Logger.getLogger(CapedwarfServletExtension.class.getName());
+
     public void handleDeployment(DeploymentInfo deploymentInfo, ServletContext servletContext) {
         AppEngineWebXml appEngineWebXml = getAppEngineWebXml(deploymentInfo);
+        CapedwarfConfiguration configuration = CapedwarfConfiguration.create(servletContext);
 
 
         SessionManagerFactory sessionManagerFactory;
+        final CapedwarfSessionManagerFactory capedwarfSessionManagerFactory;
         if (appEngineWebXml.getSessionsEnabled()) {
-            sessionManagerFactory = new CapedwarfSessionManagerFactory(appEngineWebXml);
+            capedwarfSessionManagerFactory = new CapedwarfSessionManagerFactory(appEngineWebXml, configuration);
+            sessionManagerFactory = capedwarfSessionManagerFactory;
         } else {
+            capedwarfSessionManagerFactory = null;
             sessionManagerFactory = StubSessionManagerFactory.INSTANCE;
         }
         deploymentInfo.setSessionManagerFactory(sessionManagerFactory);
 
-        deploymentInfo.addOuterHandlerChainWrapper(new AppEngineHandlerWrapper(appEngineWebXml));
+        final CapedwarfLifecycleListener lifecycle = new CapedwarfLifecycleListener();
+        deploymentInfo.addListener(new ListenerInfo(CapedwarfLifecycleListener.class, new ImmediateInstanceFactory<>(lifecycle)));
+
+        final AppEngineHandlerWrapper handlerWrapper = new AppEngineHandlerWrapper(appEngineWebXml, configuration, capedwarfSessionManagerFactory, deploymentInfo.getClassLoader());
+        handlerWrapper.registerMetrics(deploymentInfo.getDeploymentName());
+        lifecycle.addStopTask(new Runnable() {
+            public void run() {
+                handlerWrapper.stop();
+            }
+        });
+        if (capedwarfSessionManagerFactory != null) {
+            // registered last, so pending sessions are saved while API calls still work
+            lifecycle.addStopTask(new Runnable() {
+                public void run() {
+                    capedwarfSessionManagerFactory.stop();
+                }
+            });
+        }
+        if (configuration.getBoolean(CapedwarfConfiguration.WARMUP, false)) {
+            final Warmup warmup = Warmup.create(configuration, deploymentInfo.getDeploymentName(), servletContext.getContextPath());
+            HealthCheck healthCheck = handlerWrapper.getHealthCheck();
+            if (healthCheck != null) {
+                healthCheck.addProbe(warmup);
+            } else {
+                logger.info("Native health checks are off, readiness of " + deploymentInfo.getDeploymentName() + " is not held during warmup.");
+            }
+            lifecycle.addStartTask(new Runnable() {
+                public void run() {
+                    warmup.start();
+                }
+            });
+            lifecycle.addStopTask(new Runnable() {
+                public void run() {
+                    warmup.stop();
+                }
+            });
+            // inside the AppEngine handler, so health checks are not recorded
+            deploymentInfo.addOuterHandlerChainWrapper(warmup);
+        }
+        deploymentInfo.addOuterHandlerChainWrapper(handlerWrapper);
     }
 
     private static AppEngineWebXml getAppEngineWebXml(DeploymentInfo deployment) {
@@ -23,6 +23,8 @@
 package org.jboss.capedwarf.managed;
 
 import com.google.apphosting.utils.config.AppEngineWebXml;
+import io.undertow.server.session.SessionManager;
+import io.undertow.servlet.api.Deployment;
 import org.jboss.capedwarf.shared.common.http.AbstractCapedwarfSessionManagerFactory;
 import org.jboss.capedwarf.shared.common.http.AppEngineSession;
 
@@ -31,9 +33,46 @@ import org.jboss.capedwarf.shared.common.http.AppEngineSession;
  */
 class CapedwarfSessionManagerFactory extends AbstractCapedwarfSessionManagerFactory {
     private final AppEngineWebXml appEngineWebXml;
+    private final SessionWriteBehind writeBehind;
+    private final int cacheSize;
+    private final long cacheMemory;
+    private volatile CachingSessionManager sessionCache;
 
     public CapedwarfSessionManagerFactory(AppEngineWebXml appEngineWebXml) {
+        this(appEngineWebXml, CapedwarfConfiguration.fromSystemProperties());
+    }
+
+    CapedwarfSessionManagerFactory(AppEngineWebXml appEngineWebXml, CapedwarfConfiguration configuration) {
         this.appEngineWebXml = appEngineWebXml;
+        if (configuration.getBoolean(CapedwarfConfiguration.SESSION_WRITE_BEHIND, false)) {
+            writeBehind = new SessionWriteBehind(
+                this,
+                configuration.getLong(CapedwarfConfiguration.SESSION_WRITE_BEHIND_WINDOW, 500L),
+                configuration.getInt(CapedwarfConfiguration.SESSION_WRITE_BEHIND_THREADS, 2));
+        } else {
+            writeBehind = null;
+        }
+        if (configuration.getBoolean(CapedwarfConfiguration.SESSION_CACHE, false)) {
+            cacheSize = configuration.getInt(CapedwarfConfiguration.SESSION_CACHE_SIZE, 1000);
+            cacheMemory = configuration.getLong(CapedwarfConfiguration.SESSION_CACHE_MEMORY, 64L * 1024 * 1024);
+        } else {
+            cacheSize = 0;
+            cacheMemory = 0;
+        }
+    }
+
+    @Override
+    public SessionManager createSessionManager(Deployment deployment) {
+        SessionManager manager = super.createSessionManager(deployment);
+        if (cacheSize > 0) {
+            sessionCache = new CachingSessionManager(manager, cacheSize, cacheMemory);
+            manager = sessionCache;
+        }
+        if (writeBehind != null) {
+            // outermost, a pending session is newer than any cached or stored copy
+            manager = writeBehind.wrap(manager);
+        }
+        return manager;
     }
 
     protected boolean isAsyncSessionPersistence() {
@@ -51,4 +90,43 @@ class CapedwarfSessionManagerFactory extends AbstractCapedwarfSessionManagerFact
     static void doSave(AppEngineSession session) {
         save(session);
     }
+
+    /**
+     * Save the session if the request changed it, now or (in write-behind mode) coalesced with later changes.
+     */
+    void saveIfDirty(AppEngineSession session) {
+        if (checkDirty(session)) {
+            if (writeBehind != null) {
+                writeBehind.schedule(session);
+            } else {
+                persist(session);
+            }
+        }
+    }
+
+    void persist(AppEngineSession session) {
+        final CachingSessionManager cache = sessionCache;
+        if (cache == null) {
+            doSave(session);
+            return;
+        }
+        final Object version = cache.beforeSave(session.getId());
+        doSave(session);
+        cache.saved(session.getId(), version);
+    }
+
+    /**
+     * Save sessions whose write-behind save is pending.
+     */
+    void flush() {
+        if (writeBehind != null) {
+            writeBehind.flushAll();
+        }
+    }
+
+    void stop() {
+        if (writeBehind != null) {
+            writeBehind.stop();
+        }
+    }
 }
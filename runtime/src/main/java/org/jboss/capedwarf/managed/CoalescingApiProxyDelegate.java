@@ -0,0 +1,288 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.vmruntime.VmApiProxyEnvironment;
+
+/**
+ * Shares one upstream round trip between identical read-only API calls in flight at the same time.
+ * <p/>
+ * Calls are identical if app, service, method and request bytes match; only allow-listed calls are coalesced.
+ * A call joining one already in flight may see a result older than its own preceding write,
+ * so only list calls where that is acceptable; datastore_v3.Get is not, lookups by key are strongly consistent.
+ * <p/>
+ * The shared round trip is made with the first caller's ticket. That is fine for the calls this is meant for:
+ * they are authorized per app (which is part of the key), not per request, and the request bytes carry
+ * everything else that affects the answer (e.g. the namespace). A joining sync call still honors its own deadline.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class CoalescingApiProxyDelegate extends ForwardingApiProxyDelegate {
+    static final String DEFAULT_CALLS = "memcache.Get";
+
+    private static final int PURGE_THRESHOLD = 1024;
+
+    private final Set<String> calls;
+    private final ConcurrentMap<CallKey, SharedCall> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    CoalescingApiProxyDelegate(ApiProxy.Delegate<VmApiProxyEnvironment> delegate, Set<String> calls) {
+        super(delegate);
+        this.calls = calls;
+    }
+
+    static CoalescingApiProxyDelegate create(ApiProxy.Delegate<VmApiProxyEnvironment> delegate, CapedwarfConfiguration configuration) {
+        return new CoalescingApiProxyDelegate(delegate, parseCalls(configuration.getString(CapedwarfConfiguration.API_COALESCING_CALLS, DEFAULT_CALLS)));
+    }
+
+    static Set<String> parseCalls(String value) {
+        final Set<String> calls = new HashSet<>();
+        for (String call : value.split(",")) {
+            call = call.trim();
+            if (call.length() > 0) {
+                calls.add(call);
+            }
+        }
+        return Collections.unmodifiableSet(calls);
+    }
+
+    /**
+     * @return number of calls which were served by another call's round trip
+     */
+    long getCoalesced() {
+        return coalesced.get();
+    }
+
+    void addCounters(ApiMetrics metrics) {
+        metrics.addCounter("coalesced", new ApiMetrics.Counter() {
+            public long get() {
+                return getCoalesced();
+            }
+        });
+    }
+
+    @Override
+    public byte[] makeSyncCall(VmApiProxyEnvironment environment, String packageName, String methodName, byte[] request) throws ApiProxy.ApiProxyException {
+        if (!calls.contains(packageName + "." + methodName)) {
+            return super.makeSyncCall(environment, packageName, methodName, request);
+        }
+
+        final CallKey key = new CallKey(environment.getAppId(), packageName, methodName, request);
+        final SharedCall call = new SharedCall();
+        final SharedCall existing = join(key, call);
+        if (existing != null) {
+            return await(existing, packageName, methodName, PooledApiProxyDelegate.getDeadline(environment, packageName, null));
+        }
+        try {
+            final byte[] response = super.makeSyncCall(environment, packageName, methodName, request);
+            call.complete(response, null);
+            return response;
+        } catch (RuntimeException | Error e) {
+            call.complete(null, e);
+            throw e;
+        } finally {
+            inFlight.remove(key, call);
+        }
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(VmApiProxyEnvironment environment, String packageName, String methodName, byte[] request, ApiProxy.ApiConfig apiConfig) {
+        if (!calls.contains(packageName + "." + methodName)) {
+            return super.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+        }
+
+        final CallKey key = new CallKey(environment.getAppId(), packageName, methodName, request);
+        final SharedCall call = new SharedCall();
+        final SharedCall existing = join(key, call);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            call.delegateTo(super.makeAsyncCall(environment, packageName, methodName, request, apiConfig));
+            return call;
+        } catch (RuntimeException | Error e) {
+            call.complete(null, e);
+            inFlight.remove(key, call);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the call to join, or null if the given call is now the one in flight
+     */
+    private SharedCall join(CallKey key, SharedCall call) {
+        while (true) {
+            final SharedCall existing = inFlight.putIfAbsent(key, call);
+            if (existing == null) {
+                if (inFlight.size() > PURGE_THRESHOLD) {
+                    purge();
+                }
+                return null;
+            }
+            if (!existing.isDone()) {
+                coalesced.incrementAndGet();
+                return existing;
+            }
+            inFlight.remove(key, existing);
+        }
+    }
+
+    // async calls nobody waited for are never removed by their caller
+    private void purge() {
+        for (Iterator<Map.Entry<CallKey, SharedCall>> iter = inFlight.entrySet().iterator(); iter.hasNext(); ) {
+            if (iter.next().getValue().isDone()) {
+                iter.remove();
+            }
+        }
+    }
+
+    private static byte[] await(SharedCall call, String packageName, String methodName, double deadlineSeconds) {
+        try {
+            return call.get((long) (deadlineSeconds * 1000), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new ApiProxy.ApiDeadlineExceededException(packageName, methodName);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ApiProxy.UnknownException(packageName, methodName, cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApiProxy.CancelledException(packageName, methodName);
+        }
+    }
+
+    private static final class CallKey {
+        private final String appId;
+        private final String packageName;
+        private final String methodName;
+        private final byte[] request;
+        private final int hash;
+
+        private CallKey(String appId, String packageName, String methodName, byte[] request) {
+            this.appId = String.valueOf(appId);
+            this.packageName = packageName;
+            this.methodName = methodName;
+            this.request = request;
+            this.hash = 31 * (31 * (31 * this.appId.hashCode() + packageName.hashCode()) + methodName.hashCode()) + Arrays.hashCode(request);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof CallKey)) {
+                return false;
+            }
+            final CallKey other = (CallKey) obj;
+            return hash == other.hash && appId.equals(other.appId) && packageName.equals(other.packageName) && methodName.equals(other.methodName) && Arrays.equals(request, other.request);
+        }
+    }
+
+    /**
+     * Result of a call in flight; either completed directly (sync leader) or backed by the delegate's future (async leader).
+     */
+    private static final class SharedCall implements Future<byte[]> {
+        private final CountDownLatch ready = new CountDownLatch(1);
+        private volatile Future<byte[]> target;
+        private volatile byte[] response;
+        private volatile Throwable failure;
+
+        void delegateTo(Future<byte[]> future) {
+            target = future;
+            ready.countDown();
+        }
+
+        void complete(byte[] response, Throwable failure) {
+            this.response = response;
+            this.failure = failure;
+            ready.countDown();
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false; // shared, one caller must not cancel it for the others
+        }
+
+        public boolean isCancelled() {
+            final Future<byte[]> future = target;
+            return future != null && future.isCancelled();
+        }
+
+        public boolean isDone() {
+            if (ready.getCount() > 0) {
+                return false;
+            }
+            final Future<byte[]> future = target;
+            return future == null || future.isDone();
+        }
+
+        public byte[] get() throws InterruptedException, ExecutionException {
+            ready.await();
+            return result((target != null) ? target.get() : null);
+        }
+
+        public byte[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            if (!ready.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return result((target != null) ? target.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS) : null);
+        }
+
+        private byte[] result(byte[] targetResult) throws ExecutionException {
+            if (target != null) {
+                return targetResult;
+            }
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return response;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Notices completion of async API call futures.
+ * <p/>
+ * Futures created by our own delegates ({@link NotifyingFuture}) signal their completion.
+ * The SDK's futures have no completion callback, so while any of those are pending,
+ * and only then, a poller checks them; a listener fires once, on whichever comes first:
+ * the caller's get() returning, or the poller seeing the future done.
+ * The poller backs off, from 1ms up to 32ms, while none of the pending futures completes,
+ * so slow calls (e.g. a long urlfetch) don't keep it spinning.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+final class CompletionWatcher {
+    private static final long MIN_POLL_INTERVAL_MILLIS = 1;
+    private static final long MAX_POLL_INTERVAL_MILLIS = 32;
+
+    interface Listener {
+        /**
+         * @param response the call's response, null if it failed
+         * @param failure  the call's failure, null if it succeeded
+         */
+        void onComplete(byte[] response, Throwable failure);
+    }
+
+    /**
+     * A future which runs listeners once it is done.
+     */
+    interface Listenable {
+        /**
+         * Run the task once done, right away if already done.
+         *
+         * @param task the task
+         */
+        void addListener(Runnable task);
+    }
+
+    private final Queue<WatchedFuture> polled = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean polling = new AtomicBoolean();
+    private volatile long pollInterval = MIN_POLL_INTERVAL_MILLIS;
+    private ScheduledExecutorService poller;
+    private boolean stopped;
+
+    Future<byte[]> watch(Future<byte[]> future, Listener listener) {
+        final WatchedFuture watched = new WatchedFuture(future, listener);
+        if (future instanceof Listenable) {
+            ((Listenable) future).addListener(new Runnable() {
+                public void run() {
+                    watched.fire();
+                }
+            });
+        } else {
+            polled.add(watched);
+            startPolling();
+        }
+        return watched;
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        if (poller != null) {
+            poller.shutdownNow();
+        }
+    }
+
+    private void startPolling() {
+        if (polling.compareAndSet(false, true)) {
+            pollInterval = MIN_POLL_INTERVAL_MILLIS;
+            schedule();
+        }
+    }
+
+    private synchronized void schedule() {
+        if (stopped) {
+            return;
+        }
+        if (poller == null) {
+            poller = Executors.newSingleThreadScheduledExecutor(new AsyncRequestTeardown.DaemonThreadFactory("capedwarf-api-completion"));
+        }
+        poller.schedule(new Runnable() {
+            public void run() {
+                poll();
+            }
+        }, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private void poll() {
+        boolean completed = false;
+        for (Iterator<WatchedFuture> iter = polled.iterator(); iter.hasNext(); ) {
+            final WatchedFuture future = iter.next();
+            if (future.isFired() || future.delegate.isDone()) {
+                iter.remove();
+                future.fire();
+                completed = true;
+            }
+        }
+        if (!polled.isEmpty()) {
+            pollInterval = completed ? MIN_POLL_INTERVAL_MILLIS : Math.min(pollInterval * 2, MAX_POLL_INTERVAL_MILLIS);
+            schedule();
+            return;
+        }
+        polling.set(false);
+        // a future might have been added after the last check
+        if (!polled.isEmpty()) {
+            startPolling();
+        }
+    }
+
+    /**
+     * FutureTask which signals its completion, for the futures our own executors create.
+     */
+    static class NotifyingFuture<V> extends FutureTask<V> implements Listenable {
+        private final Queue<Runnable> listeners = new ConcurrentLinkedQueue<>();
+
+        NotifyingFuture(Callable<V> callable) {
+            super(callable);
+        }
+
+        public void addListener(Runnable task) {
+            listeners.add(task);
+            if (isDone()) {
+                runListeners();
+            }
+        }
+
+        @Override
+        protected void done() {
+            runListeners();
+        }
+
+        private void runListeners() {
+            Runnable task;
+            while ((task = listeners.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private static class WatchedFuture implements Future<byte[]>, Listenable {
+        private final Future<byte[]> delegate;
+        private final Listener listener;
+        private final AtomicBoolean fired = new AtomicBoolean();
+        private final Queue<Runnable> listeners = new ConcurrentLinkedQueue<>();
+
+        private WatchedFuture(Future<byte[]> delegate, Listener listener) {
+            this.delegate = delegate;
+            this.listener = listener;
+        }
+
+        private boolean isFired() {
+            return fired.get();
+        }
+
+        private void fire() {
+            if (!delegate.isDone() || !fired.compareAndSet(false, true)) {
+                return;
+            }
+            byte[] response = null;
+            Throwable failure = null;
+            try {
+                response = delegate.get();
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+            } catch (CancellationException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                listener.onComplete(response, failure);
+            } finally {
+                runListeners();
+            }
+        }
+
+        // decorators further out are told once this one's listener ran
+        public void addListener(Runnable task) {
+            listeners.add(task);
+            if (fired.get()) {
+                runListeners();
+            }
+        }
+
+        private void runListeners() {
+            Runnable task;
+            while ((task = listeners.poll()) != null) {
+                task.run();
+            }
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return delegate.cancel(mayInterruptIfRunning);
+        }
+
+        public boolean isCancelled() {
+            return delegate.isCancelled();
+        }
+
+        public boolean isDone() {
+            return delegate.isDone();
+        }
+
+        public byte[] get() throws InterruptedException, ExecutionException {
+            try {
+                return delegate.get();
+            } finally {
+                fire();
+            }
+        }
+
+        public byte[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            try {
+                return delegate.get(timeout, unit);
+            } finally {
+                fire();
+            }
+        }
+    }
+}
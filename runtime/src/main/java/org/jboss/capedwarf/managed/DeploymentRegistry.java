@@ -0,0 +1,180 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.vmruntime.VmApiProxyEnvironment;
+import com.google.apphosting.vmruntime.VmEnvironmentFactory;
+
+/**
+ * The deployments using this copy of the runtime, and the static ApiProxy and logging state they share.
+ * <p/>
+ * With the runtime's jars added to each deployment, every deployment has its own copy of this class (and of ApiProxy),
+ * so there is only ever one registration. With shared-runtime, all deployments load it from the runtime module:
+ * ApiProxy then gets a single delegate and environment factory, which hand each call to the deployment
+ * the environment belongs to (tagged when created, else found by the thread's context class loader),
+ * and the root logger's file log handler is installed by the first deployment and removed by the last.
+ * Every deployment keeps its own delegate chain, so an undeploy only stops its own transport and shippers.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+final class DeploymentRegistry {
+    private static final String REGISTRATION_ATTRIBUTE = "org.jboss.capedwarf.registration";
+
+    private static final List<Registration> registrations = new CopyOnWriteArrayList<>();
+    private static final Dispatcher dispatcher = new Dispatcher();
+    private static final EnvironmentFactory environmentFactory = new EnvironmentFactory();
+
+    // guarded by DeploymentRegistry.class
+    private static AsyncFileLogHandler fileLogHandler;
+    private static int fileLogHandlerUsers;
+
+    private DeploymentRegistry() {
+    }
+
+    /**
+     * @param classLoader        the deployment's class loader
+     * @param delegate           the deployment's delegate chain
+     * @param defaultEnvironment the deployment's default environment
+     */
+    static synchronized Registration register(ClassLoader classLoader, ApiProxy.Delegate<VmApiProxyEnvironment> delegate, VmApiProxyEnvironment defaultEnvironment) {
+        final Registration registration = new Registration(classLoader, delegate, defaultEnvironment);
+        registration.tag(defaultEnvironment);
+        registrations.add(registration);
+        ApiProxy.setDelegate(dispatcher);
+        if (ApiProxy.getEnvironmentFactory() == null) {
+            ApiProxy.setEnvironmentFactory(environmentFactory);
+        }
+        return registration;
+    }
+
+    /**
+     * Install the async file log handler, unless another deployment already did; the first deployment's settings apply.
+     */
+    static synchronized AsyncFileLogHandler installFileLogHandler(CapedwarfConfiguration configuration) {
+        if (fileLogHandlerUsers++ == 0) {
+            fileLogHandler = AsyncFileLogHandler.install(configuration);
+        }
+        return fileLogHandler;
+    }
+
+    static synchronized void uninstallFileLogHandler() {
+        if (fileLogHandlerUsers > 0 && --fileLogHandlerUsers == 0) {
+            fileLogHandler.uninstall();
+            fileLogHandler = null;
+        }
+    }
+
+    private static Registration lookup(ApiProxy.Environment environment) {
+        if (environment != null) {
+            final Object registration = environment.getAttributes().get(REGISTRATION_ATTRIBUTE);
+            if (registration instanceof Registration) {
+                return (Registration) registration;
+            }
+        }
+        final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        Registration last = null;
+        for (Registration registration : registrations) {
+            if (registration.classLoader == classLoader) {
+                return registration;
+            }
+            last = registration;
+        }
+        return last; // as good a guess as any, as with a single deployment
+    }
+
+    private static ApiProxy.Delegate<VmApiProxyEnvironment> delegate(VmApiProxyEnvironment environment) {
+        final Registration registration = lookup(environment);
+        if (registration == null) {
+            throw new IllegalStateException("No CapeDwarf deployment to make the API call for.");
+        }
+        return registration.delegate;
+    }
+
+    static final class Registration {
+        private final ClassLoader classLoader;
+        private final ApiProxy.Delegate<VmApiProxyEnvironment> delegate;
+        private final VmEnvironmentFactory environmentFactory;
+
+        private Registration(ClassLoader classLoader, ApiProxy.Delegate<VmApiProxyEnvironment> delegate, VmApiProxyEnvironment defaultEnvironment) {
+            this.classLoader = classLoader;
+            this.delegate = delegate;
+            this.environmentFactory = new VmEnvironmentFactory(defaultEnvironment);
+        }
+
+        /**
+         * Route the environment's API calls to this deployment.
+         */
+        void tag(VmApiProxyEnvironment environment) {
+            environment.getAttributes().put(REGISTRATION_ATTRIBUTE, this);
+        }
+
+        /**
+         * The deployment is going away; the last one clears the delegate.
+         */
+        void unregister() {
+            synchronized (DeploymentRegistry.class) {
+                registrations.remove(this);
+                if (registrations.isEmpty()) {
+                    ApiProxy.setDelegate(null);
+                }
+            }
+        }
+    }
+
+    private static final class Dispatcher implements ApiProxy.Delegate<VmApiProxyEnvironment> {
+        public byte[] makeSyncCall(VmApiProxyEnvironment environment, String packageName, String methodName, byte[] request) throws ApiProxy.ApiProxyException {
+            return delegate(environment).makeSyncCall(environment, packageName, methodName, request);
+        }
+
+        public Future<byte[]> makeAsyncCall(VmApiProxyEnvironment environment, String packageName, String methodName, byte[] request, ApiProxy.ApiConfig apiConfig) {
+            return delegate(environment).makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+        }
+
+        public void log(VmApiProxyEnvironment environment, ApiProxy.LogRecord record) {
+            delegate(environment).log(environment, record);
+        }
+
+        public void flushLogs(VmApiProxyEnvironment environment) {
+            delegate(environment).flushLogs(environment);
+        }
+
+        public List<Thread> getRequestThreads(VmApiProxyEnvironment environment) {
+            return delegate(environment).getRequestThreads(environment);
+        }
+    }
+
+    /**
+     * Environments for threads without one, from the deployment of the thread's context class loader.
+     */
+    private static final class EnvironmentFactory implements ApiProxy.EnvironmentFactory {
+        public ApiProxy.Environment newEnvironment() {
+            final Registration registration = lookup(null);
+            return (registration != null) ? registration.environmentFactory.newEnvironment() : null;
+        }
+    }
+}
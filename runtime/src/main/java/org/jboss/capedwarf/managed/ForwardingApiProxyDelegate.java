@@ -0,0 +1,62 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.vmruntime.VmApiProxyEnvironment;
+
+/**
+ * Base for ApiProxy delegate decorators; forwards everything to the wrapped delegate.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+abstract class ForwardingApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironment> {
+    protected final ApiProxy.Delegate<VmApiProxyEnvironment> delegate;
+
+    protected ForwardingApiProxyDelegate(ApiProxy.Delegate<VmApiProxyEnvironment> delegate) {
+        this.delegate = delegate;
+    }
+
+    public byte[] makeSyncCall(VmApiProxyEnvironment environment, String packageName, String methodName, byte[] request) throws ApiProxy.ApiProxyException {
+        return delegate.makeSyncCall(environment, packageName, methodName, request);
+    }
+
+    public Future<byte[]> makeAsyncCall(VmApiProxyEnvironment environment, String packageName, String methodName, byte[] request, ApiProxy.ApiConfig apiConfig) {
+        return delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+    }
+
+    public void log(VmApiProxyEnvironment environment, ApiProxy.LogRecord record) {
+        delegate.log(environment, record);
+    }
+
+    public void flushLogs(VmApiProxyEnvironment environment) {
+        delegate.flushLogs(environment);
+    }
+
+    public List<Thread> getRequestThreads(VmApiProxyEnvironment environment) {
+        return delegate.getRequestThreads(environment);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.util.Set;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.session.Session;
+import io.undertow.server.session.SessionConfig;
+import io.undertow.server.session.SessionListener;
+import io.undertow.server.session.SessionManager;
+
+/**
+ * Base for SessionManager decorators; forwards everything to the wrapped manager.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+abstract class ForwardingSessionManager implements SessionManager {
+    protected final SessionManager delegate;
+
+    protected ForwardingSessionManager(SessionManager delegate) {
+        this.delegate = delegate;
+    }
+
+    public String getDeploymentName() {
+        return delegate.getDeploymentName();
+    }
+
+    public void start() {
+        delegate.start();
+    }
+
+    public void stop() {
+        delegate.stop();
+    }
+
+    public Session createSession(HttpServerExchange serverExchange, SessionConfig sessionCookieConfig) {
+        return delegate.createSession(serverExchange, sessionCookieConfig);
+    }
+
+    public Session getSession(HttpServerExchange exchange, SessionConfig config) {
+        return delegate.getSession(exchange, config);
+    }
+
+    public Session getSession(String sessionId) {
+        return delegate.getSession(sessionId);
+    }
+
+    public void registerSessionListener(SessionListener listener) {
+        delegate.registerSessionListener(listener);
+    }
+
+    public void removeSessionListener(SessionListener listener) {
+        delegate.removeSessionListener(listener);
+    }
+
+    public void setDefaultSessionTimeout(int timeout) {
+        delegate.setDefaultSessionTimeout(timeout);
+    }
+
+    public Set<String> getTransientSessions() {
+        return delegate.getTransientSessions();
+    }
+
+    public Set<String> getActiveSessions() {
+        return delegate.getActiveSessions();
+    }
+
+    public Set<String> getAllSessions() {
+        return delegate.getAllSessions();
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.apphosting.vmruntime.VmRequestUtils;
+import io.undertow.server.HandlerWrapper;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.servlet.handlers.ServletRequestContext;
+import org.xnio.Options;
+import org.xnio.XnioWorker;
+
+/**
+ * Answers /_ah/health in front of the request environment setup, what VmRequestUtils' checks
+ * and VmHealthServlet did after a full request's worth of work.
+ * <p/>
+ * Checks from addresses VmRequestUtils does not accept are refused. The load balancer's checks
+ * (with IsLastSuccessful) record its verdict, local checks are answered with that verdict,
+ * as long as it is fresh. Both fail while a readiness probe says the instance is not ready.
+ * Probes run in the background; a health check only reads their cached outcome.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class HealthCheck implements HandlerWrapper {
+    private static final Logger logger = Logger.getLogger(HealthCheck.class.getName());
+    private static final String HEALTH_CHECK_PATH = "/_ah/health";
+    private static final String IS_LAST_SUCCESSFUL = "IsLastSuccessful";
+    private static final String LINK_LOCAL_PREFIX = "169.254.";
+
+    private final boolean devMode;
+    private final long checkInterval;
+    private final List<ReadinessProbe> probes = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService refresher;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int maxWorkerThreads;
+
+    private volatile String notReady = "starting"; // null once all probes are ready
+    private volatile boolean lastSuccessful;
+    private volatile long lastNormalCheck;
+
+    private HealthCheck(boolean devMode, long checkInterval) {
+        this.devMode = devMode;
+        this.checkInterval = checkInterval;
+        this.refresher = Executors.newSingleThreadScheduledExecutor(new AsyncRequestTeardown.DaemonThreadFactory("capedwarf-health"));
+    }
+
+    /**
+     * @param apiServer host[:port] of the API server, for the api-server probe
+     */
+    static HealthCheck create(CapedwarfConfiguration configuration, String apiServer) {
+        final HealthCheck healthCheck = new HealthCheck(
+            configuration.getBoolean(CapedwarfConfiguration.HEALTH_CHECK_DEV_MODE, false),
+            configuration.getLong(CapedwarfConfiguration.HEALTH_CHECK_INTERVAL, 5000L));
+        for (String name : configuration.getString(CapedwarfConfiguration.HEALTH_CHECK_PROBES, "").split(",")) {
+            switch (name.trim()) {
+                case "":
+                    break;
+                case "api-server":
+                    healthCheck.addProbe(new ApiServerProbe(apiServer));
+                    break;
+                case "worker-pool":
+                    healthCheck.addProbe(healthCheck.new WorkerPoolProbe(configuration.getInt(CapedwarfConfiguration.HEALTH_CHECK_WORKER_SATURATION, 90)));
+                    break;
+                default:
+                    logger.warning("Unknown readiness probe " + name.trim());
+            }
+        }
+        final Iterator<ReadinessProbe> iterator = ServiceLoader.load(ReadinessProbe.class, Thread.currentThread().getContextClassLoader()).iterator();
+        try {
+            while (iterator.hasNext()) {
+                healthCheck.addProbe(iterator.next());
+            }
+        } catch (ServiceConfigurationError e) {
+            logger.log(Level.WARNING, "Cannot load readiness probes.", e);
+        }
+        final long refresh = configuration.getLong(CapedwarfConfiguration.HEALTH_CHECK_REFRESH, 1000L);
+        healthCheck.refresher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                healthCheck.refresh();
+            }
+        }, 0, refresh, TimeUnit.MILLISECONDS);
+        return healthCheck;
+    }
+
+    void addProbe(ReadinessProbe probe) {
+        probes.add(probe);
+    }
+
+    void stop() {
+        refresher.shutdownNow();
+    }
+
+    private void refresh() {
+        String failed = null;
+        for (ReadinessProbe probe : probes) {
+            try {
+                if (!probe.isReady()) {
+                    failed = probe.getName();
+                    break;
+                }
+            } catch (RuntimeException e) {
+                logger.log(Level.FINE, "Readiness probe " + probe.getName() + " failed.", e);
+                failed = probe.getName();
+                break;
+            }
+        }
+        notReady = failed;
+    }
+
+    public HttpHandler wrap(final HttpHandler next) {
+        return new HttpHandler() {
+            public void handleRequest(HttpServerExchange exchange) throws Exception {
+                if (HEALTH_CHECK_PATH.equals(exchange.getRelativePath())) {
+                    check(exchange);
+                    return;
+                }
+                if (maxWorkerThreads == 0) {
+                    maxWorkerThreads = getMaxWorkerThreads(exchange);
+                }
+                inFlight.incrementAndGet();
+                try {
+                    next.handleRequest(exchange);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    private void check(HttpServerExchange exchange) throws IOException {
+        final HttpServletResponse response = (HttpServletResponse) exchange.getAttachment(ServletRequestContext.ATTACHMENT_KEY).getServletResponse();
+        final InetSocketAddress source = exchange.getSourceAddress();
+        final String remoteAddr = (source != null && source.getAddress() != null) ? source.getAddress().getHostAddress() : "";
+        if (!VmRequestUtils.isValidHealthCheckAddr(devMode, remoteAddr)) {
+            respond(response, HttpServletResponse.SC_FORBIDDEN, "403 Forbidden");
+            return;
+        }
+
+        final Deque<String> values = exchange.getQueryParameters().get(IS_LAST_SUCCESSFUL);
+        final String isLastSuccessful = (values != null) ? values.peekFirst() : null;
+        if (isLastSuccessful == null && !remoteAddr.startsWith(LINK_LOCAL_PREFIX)) {
+            // local check, answered with the load balancer's last verdict
+            if (!lastSuccessful) {
+                respond(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "unhealthy");
+                return;
+            }
+            if (System.currentTimeMillis() - lastNormalCheck > checkInterval) {
+                respond(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "timeout");
+                return;
+            }
+        } else {
+            if ("yes".equalsIgnoreCase(isLastSuccessful)) {
+                lastSuccessful = true;
+            } else {
+                if (!"no".equalsIgnoreCase(isLastSuccessful)) {
+                    logger.warning("Wrong parameter for IsLastSuccessful: " + isLastSuccessful);
+                }
+                lastSuccessful = false;
+            }
+            lastNormalCheck = System.currentTimeMillis();
+        }
+
+        final String failed = notReady;
+        if (failed != null) {
+            respond(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "not ready: " + failed);
+        } else {
+            respond(response, HttpServletResponse.SC_OK, "ok");
+        }
+    }
+
+    private static void respond(HttpServletResponse response, int status, String body) throws IOException {
+        response.setStatus(status);
+        response.setContentType("text/plain");
+        response.getWriter().write(body);
+    }
+
+    private static int getMaxWorkerThreads(HttpServerExchange exchange) {
+        try {
+            final XnioWorker worker = exchange.getConnection().getWorker();
+            final Integer threads = worker.getOption(Options.WORKER_TASK_MAX_THREADS);
+            return (threads != null) ? threads : -1;
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Ready while the API server accepts connections.
+     */
+    static class ApiServerProbe implements ReadinessProbe {
+        private static final int CONNECT_TIMEOUT = 500;
+
+        private final String host;
+        private final int port;
+
+        ApiServerProbe(String server) {
+            final int colon = server.lastIndexOf(':');
+            this.host = (colon > 0) ? server.substring(0, colon) : server;
+            this.port = (colon > 0) ? Integer.parseInt(server.substring(colon + 1)) : 80;
+        }
+
+        public String getName() {
+            return "api-server";
+        }
+
+        public boolean isReady() {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Ready while requests in flight stay below a share of the worker pool's threads.
+     */
+    class WorkerPoolProbe implements ReadinessProbe {
+        private final int saturationPercent;
+
+        WorkerPoolProbe(int saturationPercent) {
+            this.saturationPercent = saturationPercent;
+        }
+
+        public String getName() {
+            return "worker-pool";
+        }
+
+        public boolean isReady() {
+            final int max = maxWorkerThreads;
+            return max <= 0 || inFlight.get() * 100L < (long) max * saturationPercent;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * JSON lines in the shape of the SDK's JsonFormatter, which the log collector parses.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class JsonLogEncoder implements LogRecordEncoder {
+    private final StringBuilder line = new StringBuilder(512);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final ByteBuffer bytes = ByteBuffer.allocate(4096);
+
+    public void startSegment(Output out) {
+    }
+
+    public void encode(LogRecord record, Output out) {
+        line.setLength(0);
+        appendJson(record, line);
+        encoder.reset();
+        final CharBuffer chars = CharBuffer.wrap(line);
+        CoderResult result;
+        do {
+            result = encoder.encode(chars, bytes, true);
+            out.write(bytes.array(), 0, bytes.position());
+            bytes.clear();
+        } while (result.isOverflow());
+    }
+
+    private void appendJson(LogRecord record, StringBuilder builder) {
+        final long millis = record.getMillis();
+        builder.append("{\"timestamp\":{\"seconds\":").append(millis / 1000)
+            .append(",\"nanos\":").append((millis % 1000) * 1000000)
+            .append("},\"severity\":\"").append(severity(record.getLevel()))
+            .append("\",\"thread\":\"").append(record.getThreadID())
+            .append("\",\"message\":\"");
+        final String message = record.getMessage();
+        if (record.getSourceClassName() != null) {
+            appendEscaped(builder, record.getSourceClassName());
+            if (record.getSourceMethodName() != null) {
+                builder.append(' ');
+                appendEscaped(builder, record.getSourceMethodName());
+            }
+            builder.append(": ");
+        }
+        appendEscaped(builder, message);
+        if (record.getThrown() != null) {
+            final StringWriter stackTrace = new StringWriter();
+            record.getThrown().printStackTrace(new PrintWriter(stackTrace));
+            builder.append('\n');
+            appendEscaped(builder, stackTrace.toString());
+        }
+        builder.append("\"}\n");
+    }
+
+    private static String severity(Level level) {
+        final int value = level.intValue();
+        if (value >= Level.SEVERE.intValue()) {
+            return "ERROR";
+        } else if (value >= Level.WARNING.intValue()) {
+            return "WARNING";
+        } else if (value >= Level.INFO.intValue()) {
+            return "INFO";
+        } else {
+            return "DEBUG";
+        }
+    }
+
+    private static void appendEscaped(StringBuilder builder, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char ch = value.charAt(i);
+            switch (ch) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (ch < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        builder.append(ch);
+                    }
+            }
+        }
+    }
+}
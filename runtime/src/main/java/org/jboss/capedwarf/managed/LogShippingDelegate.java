@@ -0,0 +1,440 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.vmruntime.VmApiProxyEnvironment;
+
+/**
+ * Takes the request log's logservice.Flush calls off the request thread.
+ * <p/>
+ * The SDK's log writer sees its flush complete right away, so it still counts it into the request's
+ * log flush header, while a shipper thread sends the queued flushes in batches bounded by size and linger time.
+ * Flushes stay separate calls, in order, since each belongs to its own request;
+ * a batch just goes out together instead of one round trip per response.
+ * If the queue is full, the flush goes out inline, as before.
+ * <p/>
+ * Flushes go out with their request's ticket, which is only valid until the request's exchange ends,
+ * so request teardown calls {@link #finish} once the response is committed and its bytes flushed to the client,
+ * but before the exchange ends: it sends whatever the shipper hasn't picked up yet inline,
+ * waits for the rest, and retries inline what the shipper failed to send.
+ * The response no longer waits for the logs, the request thread still does (see the ship-logs request phase);
+ * shipping them any later would lose them to an expired ticket.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class LogShippingDelegate extends ForwardingApiProxyDelegate {
+    private static final Logger logger = Logger.getLogger(LogShippingDelegate.class.getName());
+
+    static final String LOG_SERVICE = "logservice";
+    static final String FLUSH = "Flush";
+
+    private static final byte[] EMPTY_RESPONSE = new byte[0]; // FlushResponse has no fields
+    private static final long SHIP_TIMEOUT_SECONDS = 30;
+
+    private final BlockingQueue<PendingFlush> queue;
+    private final ConcurrentMap<VmApiProxyEnvironment, RequestFlushes> requests = new ConcurrentHashMap<>();
+    private final int batchSize;
+    private final long lingerNanos;
+    private final Thread shipper;
+    private volatile boolean stopped;
+
+    private final AtomicLong shipped = new AtomicLong();
+    private final AtomicLong inline = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    LogShippingDelegate(ApiProxy.Delegate<VmApiProxyEnvironment> delegate, int queueSize, int batchSize, long lingerMillis) {
+        super(delegate);
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.batchSize = batchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.shipper = new Thread(new Runnable() {
+            public void run() {
+                ship();
+            }
+        }, "capedwarf-log-shipper");
+        shipper.setDaemon(true);
+        shipper.start();
+    }
+
+    static LogShippingDelegate create(ApiProxy.Delegate<VmApiProxyEnvironment> delegate, CapedwarfConfiguration configuration) {
+        return new LogShippingDelegate(
+            delegate,
+            configuration.getInt(CapedwarfConfiguration.LOG_SHIPPING_QUEUE_SIZE, 10000),
+            configuration.getInt(CapedwarfConfiguration.LOG_SHIPPING_BATCH_SIZE, 64),
+            configuration.getLong(CapedwarfConfiguration.LOG_SHIPPING_LINGER, 20L));
+    }
+
+    void addCounters(ApiMetrics metrics) {
+        metrics.addCounter("log-queue-depth", new ApiMetrics.Counter() {
+            public long get() {
+                return queue.size();
+            }
+        });
+        metrics.addCounter("log-shipped", new ApiMetrics.Counter() {
+            public long get() {
+                return shipped.get();
+            }
+        });
+        metrics.addCounter("log-inline", new ApiMetrics.Counter() {
+            public long get() {
+                return inline.get();
+            }
+        });
+        metrics.addCounter("log-retried", new ApiMetrics.Counter() {
+            public long get() {
+                return retried.get();
+            }
+        });
+        metrics.addCounter("log-dropped", new ApiMetrics.Counter() {
+            public long get() {
+                return dropped.get();
+            }
+        });
+    }
+
+    @Override
+    public byte[] makeSyncCall(VmApiProxyEnvironment environment, String packageName, String methodName, byte[] request) throws ApiProxy.ApiProxyException {
+        if (isFlush(packageName, methodName) && enqueue(environment, request, new ApiProxy.ApiConfig())) {
+            return EMPTY_RESPONSE;
+        }
+        return super.makeSyncCall(environment, packageName, methodName, request);
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(VmApiProxyEnvironment environment, String packageName, String methodName, byte[] request, ApiProxy.ApiConfig apiConfig) {
+        if (isFlush(packageName, methodName) && enqueue(environment, request, apiConfig)) {
+            return new CompletedFuture(EMPTY_RESPONSE);
+        }
+        return super.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+    }
+
+    private static boolean isFlush(String packageName, String methodName) {
+        return LOG_SERVICE.equals(packageName) && FLUSH.equals(methodName);
+    }
+
+    private boolean enqueue(VmApiProxyEnvironment environment, byte[] request, ApiProxy.ApiConfig apiConfig) {
+        if (!stopped) {
+            final PendingFlush flush = new PendingFlush(environment, request, apiConfig);
+            final RequestFlushes flushes = track(flush);
+            if (queue.offer(flush)) {
+                return true;
+            }
+            flushes.remove(flush);
+            if (flushes.isRetired()) {
+                requests.remove(environment, flushes);
+            }
+        }
+        inline.incrementAndGet();
+        return false;
+    }
+
+    private RequestFlushes track(PendingFlush flush) {
+        while (true) {
+            RequestFlushes flushes = requests.get(flush.environment);
+            if (flushes == null) {
+                flushes = new RequestFlushes();
+                final RequestFlushes previous = requests.putIfAbsent(flush.environment, flushes);
+                if (previous != null) {
+                    flushes = previous;
+                }
+            }
+            if (flushes.add(flush)) {
+                return flushes;
+            }
+            requests.remove(flush.environment, flushes); // retired, start over
+        }
+    }
+
+    /**
+     * @param environment the request environment
+     * @return true if some of the request's flushes may not have been sent yet
+     */
+    boolean isPending(VmApiProxyEnvironment environment) {
+        return requests.containsKey(environment);
+    }
+
+    /**
+     * Make sure the request's flushes are sent while its ticket is still valid; call before the request completes.
+     *
+     * @param environment the request environment
+     */
+    void finish(VmApiProxyEnvironment environment) {
+        final RequestFlushes flushes = requests.remove(environment);
+        if (flushes == null) {
+            return;
+        }
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SHIP_TIMEOUT_SECONDS);
+        for (PendingFlush flush : flushes.finish()) {
+            if (flush.claim()) {
+                shipInline(flush); // left in the queue, the shipper skips claimed flushes
+            } else if (!flush.await(deadline)) {
+                retried.incrementAndGet();
+                shipInline(flush);
+            }
+        }
+    }
+
+    private void shipInline(PendingFlush flush) {
+        try {
+            delegate.makeSyncCall(flush.environment, LOG_SERVICE, FLUSH, flush.request);
+            shipped.incrementAndGet();
+        } catch (RuntimeException e) {
+            dropped.incrementAndGet();
+            logger.log(Level.WARNING, "Could not flush request logs.", e);
+        }
+    }
+
+    /**
+     * Ship what is queued, then stop.
+     */
+    void stop() {
+        stopped = true;
+        try {
+            shipper.join(TimeUnit.SECONDS.toMillis(SHIP_TIMEOUT_SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void ship() {
+        final List<PendingFlush> sent = new ArrayList<>(batchSize);
+        final List<PendingFlush> batch = new ArrayList<>(batchSize);
+        final Map<VmApiProxyEnvironment, Deque<PendingFlush>> perRequest = new LinkedHashMap<>();
+        final List<Future<byte[]>> futures = new ArrayList<>(batchSize);
+        try {
+            while (collect(batch)) {
+                for (PendingFlush flush : batch) {
+                    Deque<PendingFlush> flushes = perRequest.get(flush.environment);
+                    if (flushes == null) {
+                        flushes = new ArrayDeque<>(2);
+                        perRequest.put(flush.environment, flushes);
+                    }
+                    flushes.add(flush);
+                }
+                // one flush per request in flight, like the SDK's log writer does it
+                while (!perRequest.isEmpty()) {
+                    final Iterator<Deque<PendingFlush>> iterator = perRequest.values().iterator();
+                    while (iterator.hasNext()) {
+                        final Deque<PendingFlush> flushes = iterator.next();
+                        final PendingFlush flush = flushes.poll();
+                        if (flushes.isEmpty()) {
+                            iterator.remove();
+                        }
+                        if (!flush.claim()) {
+                            continue; // request teardown sent it already
+                        }
+                        try {
+                            futures.add(delegate.makeAsyncCall(flush.environment, LOG_SERVICE, FLUSH, flush.request, flush.apiConfig));
+                            sent.add(flush);
+                        } catch (RuntimeException e) {
+                            failed(flush, e);
+                        }
+                    }
+                    for (int i = 0; i < futures.size(); i++) {
+                        final PendingFlush flush = sent.get(i);
+                        try {
+                            futures.get(i).get(SHIP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                            shipped.incrementAndGet();
+                            flush.done(true);
+                        } catch (ExecutionException e) {
+                            failed(flush, e.getCause());
+                        } catch (TimeoutException e) {
+                            failed(flush, e);
+                        }
+                    }
+                    futures.clear();
+                    sent.clear();
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Retry right away while nobody waits for the flush, its ticket is still valid then;
+     * otherwise request teardown retries it.
+     */
+    private void failed(PendingFlush flush, Throwable cause) {
+        if (!flush.flushes.isFinishing()) {
+            retried.incrementAndGet();
+            try {
+                delegate.makeSyncCall(flush.environment, LOG_SERVICE, FLUSH, flush.request);
+                shipped.incrementAndGet();
+                flush.done(true);
+                return;
+            } catch (RuntimeException e) {
+                cause = e;
+            }
+        }
+        if (!flush.done(false)) {
+            dropped.incrementAndGet();
+            logger.log(Level.WARNING, "Could not ship request logs.", cause);
+        }
+    }
+
+    /**
+     * Wait for the first flush, then linger for more until the batch is full.
+     *
+     * @return false once stopped and drained
+     */
+    private boolean collect(List<PendingFlush> batch) throws InterruptedException {
+        PendingFlush first = null;
+        while (first == null) {
+            if (stopped) {
+                queue.drainTo(batch);
+                return !batch.isEmpty();
+            }
+            first = queue.poll(100, TimeUnit.MILLISECONDS);
+        }
+        batch.add(first);
+        final long deadline = System.nanoTime() + lingerNanos;
+        while (batch.size() < batchSize) {
+            if (queue.drainTo(batch, batchSize - batch.size()) == 0) {
+                final long remaining = deadline - System.nanoTime();
+                final PendingFlush next = (remaining > 0) ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                if (next == null) {
+                    break;
+                }
+                batch.add(next);
+            }
+        }
+        return true;
+    }
+
+    private final class PendingFlush {
+        private final VmApiProxyEnvironment environment;
+        private final byte[] request;
+        private final ApiProxy.ApiConfig apiConfig;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private volatile boolean success;
+        private RequestFlushes flushes;
+
+        private PendingFlush(VmApiProxyEnvironment environment, byte[] request, ApiProxy.ApiConfig apiConfig) {
+            this.environment = environment;
+            this.request = request;
+            this.apiConfig = apiConfig;
+        }
+
+        /**
+         * @return true if the caller is the one to send it
+         */
+        private boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        /**
+         * @return true if request teardown waits for it
+         */
+        private boolean done(boolean success) {
+            this.success = success;
+            final boolean awaited = flushes.remove(this);
+            if (!awaited && flushes.isRetired()) {
+                requests.remove(environment, flushes);
+            }
+            completed.countDown();
+            return awaited;
+        }
+
+        /**
+         * @return true if the shipper sent it
+         */
+        private boolean await(long deadline) {
+            try {
+                return completed.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS) && success;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * An environment's flushes the shipper hasn't completed yet.
+     * Retired once its request finishes, or once all of them are done; later flushes start a new one.
+     */
+    private static final class RequestFlushes {
+        private final List<PendingFlush> pending = new ArrayList<>(2);
+        private boolean retired;
+        private boolean finishing;
+
+        private synchronized boolean add(PendingFlush flush) {
+            if (retired) {
+                return false;
+            }
+            pending.add(flush);
+            flush.flushes = this;
+            return true;
+        }
+
+        /**
+         * @return true if request teardown waits for it
+         */
+        private synchronized boolean remove(PendingFlush flush) {
+            pending.remove(flush);
+            if (pending.isEmpty()) {
+                retired = true;
+            }
+            return finishing;
+        }
+
+        private synchronized boolean isRetired() {
+            return retired;
+        }
+
+        private synchronized boolean isFinishing() {
+            return finishing;
+        }
+
+        private synchronized List<PendingFlush> finish() {
+            retired = true;
+            finishing = true;
+            return new ArrayList<>(pending);
+        }
+    }
+}
@@ -22,42 +22,45 @@
 
 package org.jboss.capedwarf.managed;
 
-import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import javax.servlet.Filter;
-import javax.servlet.FilterChain;
-import javax.servlet.FilterConfig;
-import javax.servlet.ServletException;
-import javax.servlet.ServletRequest;
-import javax.servlet.ServletResponse;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpSession;
-
-import org.jboss.capedwarf.shared.common.http.AppEngineSession;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
+ * Platform MBean server registration of the runtime's metrics.
+ *
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
-public class SaveSessionFilter implements Filter {
-    public void init(FilterConfig filterConfig) throws ServletException {
-    }
+final class MBeans {
+    private static final Logger logger = Logger.getLogger(MBeans.class.getName());
 
-    public void doFilter(ServletRequest req, ServletResponse resp, FilterChain chain) throws IOException, ServletException {
-        HttpServletRequest httpReq = (HttpServletRequest) req;
+    private MBeans() {
+    }
 
+    /**
+     * @return the registered name, null if registration failed
+     */
+    static ObjectName register(Object mbean, String prefix, String deploymentName) {
         try {
-            chain.doFilter(req, resp);
-        } finally {
-            HttpSession session = httpReq.getSession(false);
-            if (session instanceof AppEngineSession) {
-                AppEngineSession aeSession = (AppEngineSession) session;
-                if (CapedwarfSessionManagerFactory.checkDirty(aeSession)) {
-                    CapedwarfSessionManagerFactory.doSave(aeSession);
-                }
-            }
+            final ObjectName name = new ObjectName(prefix + ObjectName.quote(deploymentName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+            return name;
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Cannot register " + prefix + deploymentName, e);
+            return null;
         }
     }
 
-    public void destroy() {
+    static void unregister(ObjectName name) {
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                logger.log(Level.FINE, "Cannot unregister " + name, e);
+            }
+        }
     }
 }
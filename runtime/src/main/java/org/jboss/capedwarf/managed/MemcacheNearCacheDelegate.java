@@ -0,0 +1,468 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.appengine.api.memcache.MemcacheServicePb.AppOverride;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheBatchIncrementRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheDeleteRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetResponse;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheIncrementRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheSetRequest;
+import com.google.appengine.repackaged.com.google.protobuf.ByteString;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.vmruntime.VmApiProxyEnvironment;
+
+/**
+ * Serves memcache Get calls for recently seen keys from a local W-TinyLFU cache.
+ * <p/>
+ * Entries live for a short TTL only, since other instances' writes are not seen here.
+ * The cache is bounded by number of entries and by their approximate size in bytes.
+ * Local writes (Set, Delete, Increment, ...) invalidate their keys when issued and again once done,
+ * whether or not anybody asks for the result; a Get which overlaps with a local write does not populate the cache.
+ * Keys are scoped by app override and namespace. Gets for CAS or in internal (_ah_) namespaces bypass the cache,
+ * as do calls we cannot parse.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class MemcacheNearCacheDelegate extends ForwardingApiProxyDelegate {
+    static final String PACKAGE = "memcache";
+    /**
+     * Namespaces of runtime internal keys, which need to be read consistently (e.g. session versions).
+     */
+    static final String INTERNAL_NAMESPACE_PREFIX = "_ah_";
+
+    private static final int MAX_VALUE_SIZE = 64 * 1024;
+    // CacheKey, Item and their ByteStrings
+    private static final int ENTRY_OVERHEAD = 160;
+
+    private static final TinyLfuCache.Weigher<MemcacheGetResponse.Item> WEIGHER = new TinyLfuCache.Weigher<MemcacheGetResponse.Item>() {
+        public int weigh(MemcacheGetResponse.Item item) {
+            return ENTRY_OVERHEAD + 2 * item.getKey().size() + item.getValue().size();
+        }
+    };
+
+    private final TinyLfuCache.Striped<CacheKey, MemcacheGetResponse.Item> cache;
+    private final AtomicLong epoch = new AtomicLong();
+    private final Queue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    MemcacheNearCacheDelegate(ApiProxy.Delegate<VmApiProxyEnvironment> delegate, int size, long maxBytes, long ttlMillis) {
+        super(delegate);
+        this.cache = new TinyLfuCache.Striped<>(size, maxBytes, WEIGHER, 4 * Runtime.getRuntime().availableProcessors(), ttlMillis, TimeUnit.MILLISECONDS);
+    }
+
+    static MemcacheNearCacheDelegate create(ApiProxy.Delegate<VmApiProxyEnvironment> delegate, CapedwarfConfiguration configuration) {
+        final int size = configuration.getInt(CapedwarfConfiguration.MEMCACHE_NEAR_CACHE_SIZE, 10000);
+        final long memory = configuration.getLong(CapedwarfConfiguration.MEMCACHE_NEAR_CACHE_MEMORY, 16L * 1024 * 1024);
+        final long ttl = configuration.getLong(CapedwarfConfiguration.MEMCACHE_NEAR_CACHE_TTL, 1000L);
+        return new MemcacheNearCacheDelegate(delegate, size, memory, ttl);
+    }
+
+    long getHits() {
+        return cache.getHits();
+    }
+
+    long getMisses() {
+        return cache.getMisses();
+    }
+
+    long getEvictions() {
+        return cache.getEvictions();
+    }
+
+    int getSize() {
+        return cache.size();
+    }
+
+    long getBytes() {
+        return cache.weight();
+    }
+
+    void addCounters(ApiMetrics metrics) {
+        metrics.addCounter("near-cache-hits", new ApiMetrics.Counter() {
+            public long get() {
+                return getHits();
+            }
+        });
+        metrics.addCounter("near-cache-misses", new ApiMetrics.Counter() {
+            public long get() {
+                return getMisses();
+            }
+        });
+        metrics.addCounter("near-cache-evictions", new ApiMetrics.Counter() {
+            public long get() {
+                return getEvictions();
+            }
+        });
+        metrics.addCounter("near-cache-size", new ApiMetrics.Counter() {
+            public long get() {
+                return getSize();
+            }
+        });
+        metrics.addCounter("near-cache-bytes", new ApiMetrics.Counter() {
+            public long get() {
+                return getBytes();
+            }
+        });
+    }
+
+    @Override
+    public byte[] makeSyncCall(VmApiProxyEnvironment environment, String packageName, String methodName, byte[] request) throws ApiProxy.ApiProxyException {
+        if (!PACKAGE.equals(packageName) || "Stats".equals(methodName)) {
+            return super.makeSyncCall(environment, packageName, methodName, request);
+        }
+        if ("Get".equals(methodName)) {
+            final Lookup lookup = lookup(request);
+            if (lookup == null) {
+                return super.makeSyncCall(environment, packageName, methodName, request);
+            }
+            if (lookup.isComplete()) {
+                return lookup.complete(null);
+            }
+            return lookup.complete(super.makeSyncCall(environment, packageName, methodName, lookup.getMissingRequest()));
+        }
+        final PendingWrite write = beginWrite(methodName, request);
+        try {
+            return super.makeSyncCall(environment, packageName, methodName, request);
+        } finally {
+            write.finish();
+        }
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(VmApiProxyEnvironment environment, String packageName, final String methodName, final byte[] request, ApiProxy.ApiConfig apiConfig) {
+        if (!PACKAGE.equals(packageName) || "Stats".equals(methodName)) {
+            return super.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+        }
+        if ("Get".equals(methodName)) {
+            final Lookup lookup = lookup(request);
+            if (lookup == null) {
+                return super.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+            }
+            if (lookup.isComplete()) {
+                return new CompletedFuture(lookup.complete(null));
+            }
+            return new CompletingFuture(super.makeAsyncCall(environment, packageName, methodName, lookup.getMissingRequest(), apiConfig)) {
+                protected byte[] complete(byte[] response) {
+                    return lookup.complete(response);
+                }
+            };
+        }
+        final PendingWrite write = beginWrite(methodName, request);
+        final Future<byte[]> future;
+        try {
+            future = super.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+        } catch (RuntimeException e) {
+            write.finish();
+            throw e;
+        }
+        write.issued(future);
+        return new CompletingFuture(future) {
+            protected byte[] complete(byte[] response) {
+                write.finish();
+                return response;
+            }
+        };
+    }
+
+    /**
+     * Register the write before invalidating, so no overlapping Get can populate the cache until it's done.
+     */
+    private PendingWrite beginWrite(String methodName, byte[] request) {
+        final PendingWrite write = new PendingWrite(methodName, request);
+        pendingWrites.add(write);
+        invalidate(methodName, request);
+        return write;
+    }
+
+    /**
+     * Finishes writes which are done but nobody asked for the result of.
+     *
+     * @return true if any local write is still in flight
+     */
+    private boolean hasPendingWrites() {
+        for (PendingWrite write : pendingWrites) {
+            if (write.isDone()) {
+                write.finish();
+            }
+        }
+        return !pendingWrites.isEmpty();
+    }
+
+    /**
+     * @return the lookup, or null if the request cannot be served from the cache
+     */
+    private Lookup lookup(byte[] request) {
+        final MemcacheGetRequest getRequest;
+        try {
+            getRequest = MemcacheGetRequest.parseFrom(request);
+        } catch (IOException e) {
+            return null;
+        }
+        if (getRequest.getForCas() || getRequest.getNameSpace().startsWith(INTERNAL_NAMESPACE_PREFIX)) {
+            return null;
+        }
+
+        final long start = epoch.get();
+        final String app = getApp(getRequest.hasOverride(), getRequest.getOverride());
+        final String namespace = getRequest.getNameSpace();
+        final List<MemcacheGetResponse.Item> hits = new ArrayList<>();
+        final List<ByteString> missing = new ArrayList<>();
+        for (ByteString key : getRequest.getKeyList()) {
+            final MemcacheGetResponse.Item item = cache.get(new CacheKey(app, namespace, key));
+            if (item != null) {
+                hits.add(item);
+            } else {
+                missing.add(key);
+            }
+        }
+
+        final byte[] missingRequest;
+        if (missing.isEmpty()) {
+            missingRequest = null;
+        } else if (hits.isEmpty()) {
+            missingRequest = request;
+        } else {
+            missingRequest = getRequest.toBuilder().clearKey().addAllKey(missing).build().toByteArray();
+        }
+        return new Lookup(start, app, namespace, hits, missingRequest);
+    }
+
+    private void invalidate(String methodName, byte[] request) {
+        epoch.incrementAndGet();
+        try {
+            switch (methodName) {
+                case "Set": {
+                    final MemcacheSetRequest setRequest = MemcacheSetRequest.parseFrom(request);
+                    final String app = getApp(setRequest.hasOverride(), setRequest.getOverride());
+                    for (MemcacheSetRequest.Item item : setRequest.getItemList()) {
+                        cache.remove(new CacheKey(app, setRequest.getNameSpace(), item.getKey()));
+                    }
+                    return;
+                }
+                case "Delete": {
+                    final MemcacheDeleteRequest deleteRequest = MemcacheDeleteRequest.parseFrom(request);
+                    final String app = getApp(deleteRequest.hasOverride(), deleteRequest.getOverride());
+                    for (MemcacheDeleteRequest.Item item : deleteRequest.getItemList()) {
+                        cache.remove(new CacheKey(app, deleteRequest.getNameSpace(), item.getKey()));
+                    }
+                    return;
+                }
+                case "Increment": {
+                    final MemcacheIncrementRequest incrementRequest = MemcacheIncrementRequest.parseFrom(request);
+                    final String app = getApp(incrementRequest.hasOverride(), incrementRequest.getOverride());
+                    cache.remove(new CacheKey(app, incrementRequest.getNameSpace(), incrementRequest.getKey()));
+                    return;
+                }
+                case "BatchIncrement": {
+                    final MemcacheBatchIncrementRequest batchRequest = MemcacheBatchIncrementRequest.parseFrom(request);
+                    final String app = getApp(batchRequest.hasOverride(), batchRequest.getOverride());
+                    for (MemcacheIncrementRequest item : batchRequest.getItemList()) {
+                        cache.remove(new CacheKey(app, batchRequest.getNameSpace(), item.getKey()));
+                    }
+                    return;
+                }
+                default:
+                    // FlushAll, or anything we don't know the keys of
+                    cache.clear();
+            }
+        } catch (IOException e) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * @return the app whose memcache the call goes to, empty for our own
+     */
+    private static String getApp(boolean hasOverride, AppOverride override) {
+        return hasOverride ? override.getAppId() : "";
+    }
+
+    private class Lookup {
+        private final long start;
+        private final String app;
+        private final String namespace;
+        private final List<MemcacheGetResponse.Item> hits;
+        private final byte[] missingRequest;
+
+        private Lookup(long start, String app, String namespace, List<MemcacheGetResponse.Item> hits, byte[] missingRequest) {
+            this.start = start;
+            this.app = app;
+            this.namespace = namespace;
+            this.hits = hits;
+            this.missingRequest = missingRequest;
+        }
+
+        private boolean isComplete() {
+            return missingRequest == null;
+        }
+
+        private byte[] getMissingRequest() {
+            return missingRequest;
+        }
+
+        /**
+         * Cache fetched items, and add the cached ones to the response.
+         */
+        private byte[] complete(byte[] response) {
+            final MemcacheGetResponse.Builder builder = MemcacheGetResponse.newBuilder();
+            if (response != null) {
+                try {
+                    builder.mergeFrom(response);
+                } catch (IOException e) {
+                    return response; // cached items are reported as misses
+                }
+                if (!hasPendingWrites() && epoch.get() == start) {
+                    for (MemcacheGetResponse.Item item : builder.getItemList()) {
+                        if (item.getValue().size() <= MAX_VALUE_SIZE) {
+                            cache.put(new CacheKey(app, namespace, item.getKey()), item);
+                        }
+                    }
+                }
+                if (hits.isEmpty()) {
+                    return response;
+                }
+            }
+            return builder.addAllItem(hits).build().toByteArray();
+        }
+    }
+
+    /**
+     * A local write; invalidates its keys again once done.
+     */
+    private class PendingWrite implements Runnable {
+        private final String methodName;
+        private final byte[] request;
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private volatile Future<byte[]> future;
+
+        private PendingWrite(String methodName, byte[] request) {
+            this.methodName = methodName;
+            this.request = request;
+        }
+
+        private void issued(Future<byte[]> future) {
+            this.future = future;
+            if (future instanceof CompletionWatcher.Listenable) {
+                ((CompletionWatcher.Listenable) future).addListener(this);
+            }
+        }
+
+        private boolean isDone() {
+            final Future<byte[]> issued = future;
+            return issued != null && issued.isDone();
+        }
+
+        public void run() {
+            finish();
+        }
+
+        private void finish() {
+            if (finished.compareAndSet(false, true)) {
+                invalidate(methodName, request);
+                pendingWrites.remove(this);
+            }
+        }
+    }
+
+    private static final class CacheKey {
+        private final String app;
+        private final String namespace;
+        private final ByteString key;
+
+        private CacheKey(String app, String namespace, ByteString key) {
+            this.app = app;
+            this.namespace = namespace;
+            this.key = key;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * app.hashCode() + namespace.hashCode()) + key.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            final CacheKey other = (CacheKey) obj;
+            return app.equals(other.app) && namespace.equals(other.namespace) && key.equals(other.key);
+        }
+    }
+
+    /**
+     * Applies complete() once to the delegate's result.
+     */
+    private abstract static class CompletingFuture implements Future<byte[]> {
+        private final Future<byte[]> delegate;
+        private byte[] result;
+        private boolean completed;
+
+        private CompletingFuture(Future<byte[]> delegate) {
+            this.delegate = delegate;
+        }
+
+        protected abstract byte[] complete(byte[] response);
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return delegate.cancel(mayInterruptIfRunning);
+        }
+
+        public boolean isCancelled() {
+            return delegate.isCancelled();
+        }
+
+        public boolean isDone() {
+            return delegate.isDone();
+        }
+
+        public byte[] get() throws InterruptedException, ExecutionException {
+            return result(delegate.get());
+        }
+
+        public byte[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return result(delegate.get(timeout, unit));
+        }
+
+        private synchronized byte[] result(byte[] response) {
+            if (!completed) {
+                result = complete(response);
+                completed = true;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * Deletes expired sessions page by page, in place of the SDK's SessionCleanupServlet single pass.
+ * <p/>
+ * Like the SDK's servlet it runs on "?clear" (what the cleanup cron hits), and shows a form otherwise.
+ * A pass goes over the sessions that expired before its cutoff, a keys-only page at a time,
+ * deleting each page asynchronously while the next one is read, with a cap on deletes in flight.
+ * An invocation stops when it runs out of time and checkpoints the pass (cutoff and cursor) in the datastore,
+ * so the next invocation resumes it; once the pass is through, the next invocation starts a new one.
+ * Keys whose delete failed are left for the next pass.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class PagedSessionCleanupServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = Logger.getLogger(PagedSessionCleanupServlet.class.getName());
+
+    private static final String SESSION_KIND = "_ah_SESSION";
+    private static final String EXPIRES_PROPERTY = "_expires";
+    private static final Key CHECKPOINT_KEY = KeyFactory.createKey("_ah_SessionCleanup", "checkpoint");
+    private static final String CUTOFF_PROPERTY = "cutoff";
+    private static final String CURSOR_PROPERTY = "cursor";
+    private static final String SWEPT_PROPERTY = "swept";
+
+    private int batchSize;
+    private int concurrency;
+    private long timeLimit;
+
+    @Override
+    public void init() throws ServletException {
+        final CapedwarfConfiguration configuration = CapedwarfConfiguration.create(getServletContext());
+        batchSize = configuration.getInt(CapedwarfConfiguration.SESSION_CLEANUP_BATCH_SIZE, 500);
+        concurrency = configuration.getInt(CapedwarfConfiguration.SESSION_CLEANUP_CONCURRENCY, 4);
+        timeLimit = configuration.getLong(CapedwarfConfiguration.SESSION_CLEANUP_TIME_LIMIT, 30000L);
+    }
+
+    @Override
+    protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        if ("clear".equals(req.getQueryString())) {
+            final Pass pass = sweep();
+            resp.setContentType("text/plain");
+            resp.getWriter().println(String.format("Cleared %d expired sessions (%d this pass), %s.", pass.swept, pass.total, pass.done ? "pass complete" : "more to go"));
+        } else {
+            resp.setContentType("text/html");
+            final PrintWriter writer = resp.getWriter();
+            writer.println("<html><head><title>Session cleanup</title></head><body>");
+            writer.println("<form method=\"post\" action=\"" + req.getRequestURI() + "?clear\">");
+            writer.println("<input type=\"submit\" value=\"Clear expired sessions\">");
+            writer.println("</form></body></html>");
+        }
+    }
+
+    private Pass sweep() {
+        final long deadline = System.currentTimeMillis() + timeLimit;
+        final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        final AsyncDatastoreService asyncDatastore = DatastoreServiceFactory.getAsyncDatastoreService();
+
+        final Pass pass = resume(datastore);
+        final Query query = new Query(SESSION_KIND)
+            .setKeysOnly()
+            .setFilter(new Query.FilterPredicate(EXPIRES_PROPERTY, Query.FilterOperator.LESS_THAN, pass.cutoff));
+        final PreparedQuery preparedQuery = datastore.prepare(query);
+
+        final Deque<Batch> deletes = new ArrayDeque<>();
+        while (System.currentTimeMillis() < deadline) {
+            final FetchOptions options = FetchOptions.Builder.withLimit(batchSize).chunkSize(batchSize);
+            if (pass.cursor != null) {
+                options.startCursor(pass.cursor);
+            }
+            final QueryResultList<Entity> page = preparedQuery.asQueryResultList(options);
+            if (page.isEmpty()) {
+                pass.done = true;
+                break;
+            }
+            final List<Key> keys = new ArrayList<>(page.size());
+            for (Entity entity : page) {
+                keys.add(entity.getKey());
+            }
+            while (deletes.size() >= concurrency) {
+                pass.swept += deletes.poll().await();
+            }
+            deletes.add(new Batch(asyncDatastore.delete(keys), keys.size()));
+            pass.cursor = page.getCursor();
+            if (page.size() < batchSize) {
+                pass.done = true;
+                break;
+            }
+        }
+        while (!deletes.isEmpty()) {
+            pass.swept += deletes.poll().await();
+        }
+        pass.total += pass.swept;
+
+        checkpoint(datastore, pass);
+        logger.info(String.format("Cleared %d expired sessions, %d in pass up to %d, %s.", pass.swept, pass.total, pass.cutoff, pass.done ? "pass complete" : "more to go"));
+        return pass;
+    }
+
+    private static Pass resume(DatastoreService datastore) {
+        final Pass pass = new Pass();
+        try {
+            final Entity checkpoint = datastore.get(CHECKPOINT_KEY);
+            pass.cutoff = (Long) checkpoint.getProperty(CUTOFF_PROPERTY);
+            pass.cursor = Cursor.fromWebSafeString(((Text) checkpoint.getProperty(CURSOR_PROPERTY)).getValue());
+            pass.total = (Long) checkpoint.getProperty(SWEPT_PROPERTY);
+        } catch (EntityNotFoundException e) {
+            pass.cutoff = System.currentTimeMillis();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Ignoring unreadable session cleanup checkpoint.", e);
+            pass.cutoff = System.currentTimeMillis();
+            pass.cursor = null;
+            pass.total = 0;
+        }
+        return pass;
+    }
+
+    private static void checkpoint(DatastoreService datastore, Pass pass) {
+        try {
+            if (pass.done || pass.cursor == null) {
+                datastore.delete(CHECKPOINT_KEY);
+            } else {
+                final Entity checkpoint = new Entity(CHECKPOINT_KEY);
+                checkpoint.setUnindexedProperty(CUTOFF_PROPERTY, pass.cutoff);
+                checkpoint.setUnindexedProperty(CURSOR_PROPERTY, new Text(pass.cursor.toWebSafeString()));
+                checkpoint.setUnindexedProperty(SWEPT_PROPERTY, pass.total);
+                datastore.put(checkpoint);
+            }
+        } catch (RuntimeException e) {
+            // the next invocation starts a new pass, going over what is left of this one
+            logger.log(Level.WARNING, "Cannot checkpoint session cleanup.", e);
+        }
+    }
+
+    private static class Pass {
+        private long cutoff;
+        private Cursor cursor;
+        private long total;
+        private int swept;
+        private boolean done;
+    }
+
+    private static class Batch {
+        private final Future<Void> future;
+        private final int size;
+
+        private Batch(Future<Void> future, int size) {
+            this.future = future;
+            this.size = size;
+        }
+
+        private int await() {
+            try {
+                future.get();
+                return size;
+            } catch (ExecutionException e) {
+                logger.log(Level.WARNING, "Cannot delete " + size + " expired sessions.", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return 0;
+        }
+    }
+}
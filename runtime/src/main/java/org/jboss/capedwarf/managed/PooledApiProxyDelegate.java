@@ -0,0 +1,285 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.utils.remoteapi.RemoteApiPb;
+import com.google.apphosting.vmruntime.VmApiProxyDelegate;
+import com.google.apphosting.vmruntime.VmApiProxyEnvironment;
+
+/**
+ * ApiProxy delegate which sends API calls over a pooled keep-alive transport.
+ * <p/>
+ * Uses the same wire protocol as VmApiProxyDelegate (RemoteApiPb over HTTP POST to /rpc_http),
+ * and the same per-request limit on concurrent async calls, so the SDK's teardown waits for them too;
+ * logging and request thread tracking are left to the wrapped delegate.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class PooledApiProxyDelegate extends ForwardingApiProxyDelegate {
+    private static final Logger logger = Logger.getLogger(PooledApiProxyDelegate.class.getName());
+
+    private static final double DEFAULT_DEADLINE_SECONDS = 60.0;
+    private static final int ADDITIONAL_READ_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * Default and max deadline (in seconds) of the services that have their own, as documented for App Engine;
+     * other services get the managed runtime's default and no cap.
+     */
+    private static final Map<String, double[]> SERVICE_DEADLINES;
+
+    private static final Map<String, String> HEADERS;
+
+    static {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Type", "application/octet-stream");
+        headers.put(VmApiProxyDelegate.RPC_STUB_ID_HEADER, VmApiProxyDelegate.REQUEST_STUB_ID);
+        headers.put(VmApiProxyDelegate.RPC_METHOD_HEADER, VmApiProxyDelegate.REQUEST_STUB_METHOD);
+        HEADERS = headers;
+
+        Map<String, double[]> deadlines = new HashMap<>();
+        deadlines.put("datastore_v3", new double[]{60.0, 60.0});
+        deadlines.put("urlfetch", new double[]{5.0, 60.0});
+        SERVICE_DEADLINES = deadlines;
+    }
+
+    private final ApiHttpTransport transport;
+    private final ExecutorService executor;
+
+    PooledApiProxyDelegate(ApiProxy.Delegate<VmApiProxyEnvironment> delegate, ApiHttpTransport transport) {
+        super(delegate);
+        this.transport = transport;
+        // calls block on the per-host limit anyway, no point in having more threads than that; idle ones go away
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(transport.getMaxPerHost(), transport.getMaxPerHost(), 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new AsyncRequestTeardown.DaemonThreadFactory("capedwarf-api-call"));
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+    }
+
+    static PooledApiProxyDelegate create(ApiProxy.Delegate<VmApiProxyEnvironment> delegate, CapedwarfConfiguration configuration) {
+        final int maxPerHost = configuration.getInt(CapedwarfConfiguration.API_POOL_MAX_PER_HOST, 100);
+        final int connectTimeout = configuration.getInt(CapedwarfConfiguration.API_POOL_CONNECT_TIMEOUT, 2000);
+        final long acquireTimeout = configuration.getLong(CapedwarfConfiguration.API_POOL_ACQUIRE_TIMEOUT, 5000L);
+        final long idleTimeout = configuration.getLong(CapedwarfConfiguration.API_POOL_IDLE_TIMEOUT, 10000L);
+        return new PooledApiProxyDelegate(delegate, new ApiHttpTransport(maxPerHost, connectTimeout, acquireTimeout, idleTimeout));
+    }
+
+    void addCounters(ApiMetrics metrics) {
+        metrics.addCounter("pool-leased", new ApiMetrics.Counter() {
+            public long get() {
+                return transport.getLeased();
+            }
+        });
+        metrics.addCounter("pool-idle", new ApiMetrics.Counter() {
+            public long get() {
+                return transport.getIdle();
+            }
+        });
+        metrics.addCounter("pool-waiting", new ApiMetrics.Counter() {
+            public long get() {
+                return transport.getWaiting();
+            }
+        });
+        metrics.addCounter("pool-created", new ApiMetrics.Counter() {
+            public long get() {
+                return transport.getCreated();
+            }
+        });
+        metrics.addCounter("pool-reused", new ApiMetrics.Counter() {
+            public long get() {
+                return transport.getReused();
+            }
+        });
+        metrics.addCounter("pool-saturated", new ApiMetrics.Counter() {
+            public long get() {
+                return transport.getSaturated();
+            }
+        });
+        metrics.addCounter("pool-retried", new ApiMetrics.Counter() {
+            public long get() {
+                return transport.getRetried();
+            }
+        });
+    }
+
+    @Override
+    public byte[] makeSyncCall(VmApiProxyEnvironment environment, String packageName, String methodName, byte[] request) throws ApiProxy.ApiProxyException {
+        return call(environment, packageName, methodName, request, getDeadline(environment, packageName, null));
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(final VmApiProxyEnvironment environment, final String packageName, final String methodName, final byte[] request, ApiProxy.ApiConfig apiConfig) {
+        final double deadline = getDeadline(environment, packageName, (apiConfig != null) ? apiConfig.getDeadlineInSeconds() : null);
+        final Semaphore semaphore = acquireCallPermit(environment, packageName, methodName);
+        // signals its completion, so nobody has to poll for it
+        final CompletionWatcher.NotifyingFuture<byte[]> future = new CompletionWatcher.NotifyingFuture<>(new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+                try {
+                    return PooledApiProxyDelegate.this.call(environment, packageName, methodName, request, deadline);
+                } finally {
+                    if (semaphore != null) {
+                        semaphore.release();
+                    }
+                }
+            }
+        });
+        try {
+            executor.execute(future);
+        } catch (RejectedExecutionException e) {
+            if (semaphore != null) {
+                semaphore.release();
+            }
+            throw new ApiProxy.CancelledException(packageName, methodName);
+        }
+        return future;
+    }
+
+    void stop() {
+        executor.shutdownNow();
+        transport.close();
+    }
+
+    private byte[] call(VmApiProxyEnvironment environment, String packageName, String methodName, byte[] request, double deadlineSeconds) {
+        final RemoteApiPb.Request remoteRequest = new RemoteApiPb.Request();
+        remoteRequest.setServiceName(packageName);
+        remoteRequest.setMethod(methodName);
+        remoteRequest.setRequestAsBytes(request);
+        remoteRequest.setRequestId(environment.getTicket());
+
+        final Map<String, String> headers = new LinkedHashMap<>(HEADERS);
+        headers.put(VmApiProxyDelegate.RPC_DEADLINE_HEADER, Double.toString(deadlineSeconds));
+        final int readTimeout = (int) (deadlineSeconds * 1000) + ADDITIONAL_READ_TIMEOUT_MILLIS;
+
+        final ApiHttpConnection.Response response;
+        try {
+            response = transport.post(environment.getServer(), VmApiProxyDelegate.REQUEST_ENDPOINT, headers, remoteRequest.toByteArray(), readTimeout);
+        } catch (SocketTimeoutException e) {
+            throw new ApiProxy.ApiDeadlineExceededException(packageName, methodName);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, String.format("API call %s.%s to %s failed.", packageName, methodName, environment.getServer()), e);
+            throw new ApiProxy.RPCFailedException(packageName, methodName);
+        }
+        if (response.getStatus() != 200) {
+            logger.warning(String.format("API call %s.%s to %s failed with HTTP status %s.", packageName, methodName, environment.getServer(), response.getStatus()));
+            throw new ApiProxy.RPCFailedException(packageName, methodName);
+        }
+
+        final RemoteApiPb.Response remoteResponse = new RemoteApiPb.Response();
+        if (!remoteResponse.parseFrom(response.getBody())) {
+            logger.warning(String.format("Could not parse response of API call %s.%s.", packageName, methodName));
+            throw new ApiProxy.RPCFailedException(packageName, methodName);
+        }
+        if (remoteResponse.hasRpcError()) {
+            throw toException(remoteResponse.getRpcError(), packageName, methodName);
+        }
+        if (remoteResponse.hasApplicationError()) {
+            final RemoteApiPb.ApplicationError error = remoteResponse.getApplicationError();
+            throw new ApiProxy.ApplicationException(error.getCode(), error.getDetail());
+        }
+        return remoteResponse.getResponseAsBytes();
+    }
+
+    /**
+     * Take one of the request's async call permits, like VmApiProxyDelegate does;
+     * VmRuntimeUtils.waitForAsyncApiCalls waits for all of them to be returned.
+     *
+     * @return the acquired semaphore, or null if the environment has none
+     */
+    private static Semaphore acquireCallPermit(VmApiProxyEnvironment environment, String packageName, String methodName) {
+        final Semaphore semaphore = (Semaphore) environment.getAttributes().get(VmApiProxyEnvironment.API_CALL_SEMAPHORE);
+        if (semaphore == null) {
+            return null;
+        }
+        try {
+            semaphore.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApiProxy.CancelledException(packageName, methodName);
+        }
+        return semaphore;
+    }
+
+    /**
+     * @param configured the call's own deadline, null if none
+     * @return the call's deadline, else the request's, else the service's default; capped at the service's max
+     */
+    static double getDeadline(VmApiProxyEnvironment environment, String packageName, Double configured) {
+        final double[] service = SERVICE_DEADLINES.get(packageName);
+        double deadline;
+        if (configured != null) {
+            deadline = configured;
+        } else {
+            final Object requestDeadline = environment.getAttributes().get(SdkConstants.API_DEADLINE_KEY);
+            if (requestDeadline instanceof Number) {
+                deadline = ((Number) requestDeadline).doubleValue();
+            } else {
+                deadline = (service != null) ? service[0] : DEFAULT_DEADLINE_SECONDS;
+            }
+        }
+        return (service != null) ? Math.min(deadline, service[1]) : deadline;
+    }
+
+    /**
+     * Gives access to the SDK delegate's protected constants; never instantiated.
+     */
+    private abstract static class SdkConstants extends VmApiProxyDelegate {
+        static final String API_DEADLINE_KEY = VmApiProxyDelegate.API_DEADLINE_KEY;
+    }
+
+    private static ApiProxy.ApiProxyException toException(RemoteApiPb.RpcError error, String packageName, String methodName) {
+        final RemoteApiPb.RpcError.ErrorCode code = RemoteApiPb.RpcError.ErrorCode.valueOf(error.getCode());
+        if (code != null) {
+            switch (code) {
+                case CALL_NOT_FOUND:
+                    return new ApiProxy.CallNotFoundException(packageName, methodName);
+                case OVER_QUOTA:
+                    return new ApiProxy.OverQuotaException(packageName, methodName);
+                case REQUEST_TOO_LARGE:
+                    return new ApiProxy.RequestTooLargeException(packageName, methodName);
+                case CAPABILITY_DISABLED:
+                    return new ApiProxy.CapabilityDisabledException(error.getDetail(), packageName, methodName);
+                case CANCELLED:
+                    return new ApiProxy.CancelledException(packageName, methodName);
+                case DEADLINE_EXCEEDED:
+                    return new ApiProxy.ApiDeadlineExceededException(packageName, methodName);
+            }
+        }
+        logger.warning(String.format("API call %s.%s failed with RPC error %s: %s", packageName, methodName, error.getCode(), error.getDetail()));
+        return new ApiProxy.UnknownException(packageName, methodName);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.util.Map;
+
+import com.google.apphosting.runtime.timer.Timer;
+import com.google.apphosting.utils.http.HttpRequest;
+import com.google.apphosting.vmruntime.VmApiProxyEnvironment;
+import com.google.apphosting.vmruntime.VmMetadataCache;
+import com.google.apphosting.vmruntime.VmRuntimeUtils;
+
+/**
+ * Per-deployment arguments for request environments.
+ * <p/>
+ * The API server address, soft deadline and default environment are resolved once, instead of on every request.
+ * The request environment itself can't be stamped out of a precomputed copy: the SDK's constructor is private,
+ * so it can only be built by {@link VmApiProxyEnvironment#createFromHeaders}, which looks the app id, module,
+ * version and instance up again in the env map and (already cached) metadata for every request.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+final class RequestEnvironmentTemplate {
+    private final Map<String, String> env;
+    private final VmMetadataCache metadataCache;
+    private final String server;
+    private final Timer wallclockTimer;
+    private final Long millisUntilSoftDeadline;
+    private final VmApiProxyEnvironment defaultEnvironment;
+
+    private RequestEnvironmentTemplate(Map<String, String> env, VmMetadataCache metadataCache, String server, Timer wallclockTimer, Long millisUntilSoftDeadline, VmApiProxyEnvironment defaultEnvironment) {
+        this.env = env;
+        this.metadataCache = metadataCache;
+        this.server = server;
+        this.wallclockTimer = wallclockTimer;
+        this.millisUntilSoftDeadline = millisUntilSoftDeadline;
+        this.defaultEnvironment = defaultEnvironment;
+    }
+
+    static RequestEnvironmentTemplate create(VmMetadataCache metadataCache, Timer wallclockTimer, String appDir) {
+        // the JDK already caches the (unmodifiable) process env, no need to copy it
+        final Map<String, String> env = System.getenv();
+        final String server = VmRuntimeUtils.getApiServerAddress();
+        final Long millisUntilSoftDeadline = VmRuntimeUtils.ONE_DAY_IN_MILLIS;
+        final VmApiProxyEnvironment defaultEnvironment = VmApiProxyEnvironment.createDefaultContext(env, metadataCache, server, wallclockTimer, millisUntilSoftDeadline, appDir);
+        return new RequestEnvironmentTemplate(env, metadataCache, server, wallclockTimer, millisUntilSoftDeadline, defaultEnvironment);
+    }
+
+    VmApiProxyEnvironment getDefaultEnvironment() {
+        return defaultEnvironment;
+    }
+
+    VmApiProxyEnvironment createRequestEnvironment(HttpRequest request) {
+        return VmApiProxyEnvironment.createFromHeaders(env, metadataCache, request, server, wallclockTimer, millisUntilSoftDeadline, defaultEnvironment);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Transaction;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.servlet.handlers.ServletRequestContext;
+import io.undertow.servlet.spec.HttpServletRequestImpl;
+import io.undertow.util.HttpString;
+import org.jboss.capedwarf.shared.common.http.AppEngineSession;
+
+/**
+ * What the TransactionCleanupFilter, SaveSessionFilter and ParseBlobUploadFilter used to do on every request,
+ * as one handler in front of the servlet chain.
+ * <p/>
+ * Blob upload callbacks are told by their header alone and parsed as they stream in (see BlobUploadParser),
+ * sessions are only looked at when the deployment has them, so each step costs next to nothing when it does not apply.
+ * Order is the filters': blob upload parsing around the servlet chain, then the session save,
+ * then abandoned transactions' rollback.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class RequestFiltersHandler implements HttpHandler {
+    private static final Logger logger = Logger.getLogger(RequestFiltersHandler.class.getName());
+    private static final HttpString UPLOAD_HEADER = new HttpString("X-AppEngine-BlobUpload");
+    private static final String STOP_PATH = "/_ah/stop";
+
+    private final HttpHandler next;
+    private final BlobUploadParser blobUploadParser;
+    private final CapedwarfSessionManagerFactory sessionManagerFactory;
+    private volatile DatastoreService datastore;
+
+    /**
+     * @param sessionManagerFactory null if sessions are disabled
+     */
+    RequestFiltersHandler(HttpHandler next, BlobUploadParser blobUploadParser, CapedwarfSessionManagerFactory sessionManagerFactory) {
+        this.next = next;
+        this.blobUploadParser = blobUploadParser;
+        this.sessionManagerFactory = sessionManagerFactory;
+    }
+
+    public void handleRequest(HttpServerExchange exchange) throws Exception {
+        final ServletRequestContext servletRequestContext = exchange.getAttachment(ServletRequestContext.ATTACHMENT_KEY);
+        try {
+            try {
+                if (exchange.getRequestHeaders().contains(UPLOAD_HEADER)) {
+                    parseBlobUpload(exchange, servletRequestContext);
+                } else {
+                    next.handleRequest(exchange);
+                }
+            } finally {
+                if (sessionManagerFactory != null) {
+                    saveSession(servletRequestContext);
+                }
+            }
+        } finally {
+            rollbackAbandonedTransactions();
+        }
+    }
+
+    private void parseBlobUpload(HttpServerExchange exchange, ServletRequestContext servletRequestContext) throws Exception {
+        final ServletRequest original = servletRequestContext.getServletRequest();
+        try (BlobUploadParser.Upload upload = blobUploadParser.parse(exchange, (HttpServletRequest) original)) {
+            servletRequestContext.setServletRequest(upload.getRequest()); // with the upload's form fields as parameters
+            next.handleRequest(exchange);
+        } finally {
+            servletRequestContext.setServletRequest(original);
+        }
+    }
+
+    private void saveSession(ServletRequestContext servletRequestContext) {
+        final HttpServletRequestImpl request = servletRequestContext.getOriginalRequest();
+        final HttpSession session = request.getSession(false);
+        if (session instanceof AppEngineSession) {
+            sessionManagerFactory.saveIfDirty((AppEngineSession) session);
+        }
+        if (request.getRequestURI().equals(request.getContextPath() + STOP_PATH)) {
+            sessionManagerFactory.flush(); // instance is going down
+        }
+    }
+
+    private void rollbackAbandonedTransactions() {
+        DatastoreService ds = datastore;
+        if (ds == null) {
+            ds = DatastoreServiceFactory.getDatastoreService();
+            datastore = ds;
+        }
+        for (Transaction transaction : ds.getActiveTransactions()) {
+            try {
+                logger.warning("Request completed without committing or rolling back transaction " + transaction.getId() + ". Transaction will be rolled back.");
+                transaction.rollback();
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Rollback of transaction " + transaction.getId() + " failed.", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+/**
+ * Aggregates RequestTimings into a histogram per phase.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class RequestMetrics implements RequestMetricsMXBean {
+    private static final RequestTimings.Phase[] PHASES = RequestTimings.Phase.values();
+
+    // swapped as a whole on reset, so recorders never see half reset histograms
+    private volatile Histograms histograms = new Histograms();
+    private ObjectName objectName;
+
+    void record(RequestTimings timings) {
+        final Histograms h = histograms;
+        for (RequestTimings.Phase phase : PHASES) {
+            h.phases[phase.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(timings.getDuration(phase)));
+        }
+        h.total.record(TimeUnit.NANOSECONDS.toMicros(timings.getTotal()));
+    }
+
+    public Map<String, PhaseStats> getPhases() {
+        final Histograms h = histograms;
+        final Map<String, PhaseStats> stats = new LinkedHashMap<>();
+        for (RequestTimings.Phase phase : PHASES) {
+            stats.put(phase.getMetricName(), PhaseStats.of(h.phases[phase.ordinal()]));
+        }
+        stats.put("total", PhaseStats.of(h.total));
+        return stats;
+    }
+
+    public void reset() {
+        histograms = new Histograms();
+    }
+
+    void register(String deploymentName) {
+        objectName = MBeans.register(this, OBJECT_NAME_PREFIX, deploymentName);
+    }
+
+    void unregister() {
+        MBeans.unregister(objectName);
+        objectName = null;
+    }
+
+    private static class Histograms {
+        private final LogLinearHistogram[] phases = new LogLinearHistogram[PHASES.length];
+        private final LogLinearHistogram total = new LogLinearHistogram();
+
+        private Histograms() {
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new LogLinearHistogram();
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.AttachmentKey;
+
+/**
+ * Per request time spent in each phase of AppEngineHttpHandler; plain System.nanoTime stamps, attached to the exchange.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+final class RequestTimings {
+    static final AttachmentKey<RequestTimings> ATTACHMENT_KEY = AttachmentKey.create(RequestTimings.class);
+
+    enum Phase {
+        ENVIRONMENT("env"),
+        SKIP_ADMIN_CHECK("admin-check"),
+        HANDLER("handler"),
+        INTERRUPT_THREADS("interrupt-threads"),
+        WAIT_API_CALLS("wait-api-calls"),
+        FLUSH_LOGS("flush-logs"),
+        COMMIT("commit"),
+        SHIP_LOGS("ship-logs");
+
+        private final String metricName;
+
+        Phase(String metricName) {
+            this.metricName = metricName;
+        }
+
+        String getMetricName() {
+            return metricName;
+        }
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final long start;
+    private final long[] durations = new long[PHASES.length];
+    private long last;
+
+    private RequestTimings() {
+        start = last = System.nanoTime();
+    }
+
+    static RequestTimings start(HttpServerExchange exchange) {
+        final RequestTimings timings = new RequestTimings();
+        exchange.putAttachment(ATTACHMENT_KEY, timings);
+        return timings;
+    }
+
+    /**
+     * The given phase ended now; it started when the previous one ended.
+     */
+    void mark(Phase phase) {
+        final long now = System.nanoTime();
+        durations[phase.ordinal()] += now - last;
+        last = now;
+    }
+
+    long getDuration(Phase phase) {
+        return durations[phase.ordinal()];
+    }
+
+    long getTotal() {
+        return last - start;
+    }
+
+    /**
+     * @return Server-Timing header value of the phases so far, in millis
+     */
+    String toServerTiming() {
+        final StringBuilder builder = new StringBuilder(160);
+        for (Phase phase : PHASES) {
+            final long duration = durations[phase.ordinal()];
+            if (duration > 0) {
+                if (builder.length() > 0) {
+                    builder.append(", ");
+                }
+                builder.append(phase.getMetricName()).append(";dur=").append(duration / 1000 / 1000.0);
+            }
+        }
+        return builder.toString();
+    }
+}
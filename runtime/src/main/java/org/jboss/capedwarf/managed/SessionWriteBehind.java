@@ -0,0 +1,268 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.session.Session;
+import io.undertow.server.session.SessionConfig;
+import io.undertow.server.session.SessionListener;
+import io.undertow.server.session.SessionManager;
+import org.jboss.capedwarf.shared.common.http.AppEngineSession;
+
+/**
+ * Coalesces saves of the same session within a window, then saves its latest state in the background.
+ * <p/>
+ * The first dirty request of a session schedules its save; further requests within the window only
+ * find it pending. The save reads the session when it runs, so it persists whatever the last request left there.
+ * <p/>
+ * Until its save is done, the stored session is stale, so requests are served the pending instance instead
+ * of loading the session again (see {@link #wrap}); every request in the window changes that one instance.
+ * Requests routed to other instances still load the stored state, as they would while any request is running.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class SessionWriteBehind {
+    private static final Logger logger = Logger.getLogger(SessionWriteBehind.class.getName());
+    private static final int MAX_RETRIES = 3;
+
+    private final CapedwarfSessionManagerFactory factory;
+    private final long windowMillis;
+    private final ScheduledExecutorService executor;
+    // from a session's first dirty request until its last save is done; transitions guarded by this
+    private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<>();
+
+    SessionWriteBehind(CapedwarfSessionManagerFactory factory, long windowMillis, int threads) {
+        this.factory = factory;
+        this.windowMillis = windowMillis;
+        this.executor = Executors.newScheduledThreadPool(threads, new AsyncRequestTeardown.DaemonThreadFactory("capedwarf-session-save"));
+    }
+
+    /**
+     * @return a session manager which serves sessions with pending saves from here
+     */
+    SessionManager wrap(SessionManager manager) {
+        final PendingSessionManager pendingSessionManager = new PendingSessionManager(manager);
+        manager.registerSessionListener(new Discarder());
+        return pendingSessionManager;
+    }
+
+    /**
+     * Save this session's state at the end of the window, unless its save is already pending.
+     */
+    void schedule(AppEngineSession session) {
+        final String id = session.getId();
+        final Pending entry;
+        synchronized (this) {
+            Pending current = pending.get(id);
+            if (current == null || current.session != session) {
+                // a request which loaded the session before it was pending; its instance is the latest
+                current = new Pending(session);
+                pending.put(id, current);
+            }
+            if (current.scheduled) {
+                return;
+            }
+            current.scheduled = true;
+            entry = current;
+        }
+        try {
+            executor.schedule(new Save(id, entry, 0), windowMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            flush(id); // stopping
+        }
+    }
+
+    /**
+     * @return the session's pending instance, null if none
+     */
+    AppEngineSession get(String id) {
+        final Pending entry = pending.get(id);
+        return (entry != null) ? entry.session : null;
+    }
+
+    /**
+     * Save all pending sessions now, on the calling thread.
+     */
+    void flushAll() {
+        for (String id : pending.keySet()) {
+            flush(id);
+        }
+    }
+
+    void stop() {
+        executor.shutdownNow();
+        flushAll();
+    }
+
+    private void flush(String id) {
+        final Pending entry;
+        synchronized (this) {
+            entry = pending.get(id);
+            if (entry == null) {
+                return;
+            }
+            entry.scheduled = false;
+        }
+        try {
+            factory.persist(entry.session);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Cannot save session " + id, e);
+        } finally {
+            done(id, entry);
+        }
+    }
+
+    /**
+     * Stop serving the instance, unless a request dirtied it again meanwhile.
+     */
+    private synchronized void done(String id, Pending entry) {
+        if (!entry.scheduled && pending.get(id) == entry) {
+            pending.remove(id);
+        }
+    }
+
+    private synchronized void discard(String id) {
+        pending.remove(id);
+    }
+
+    private synchronized void rename(String oldId, String newId) {
+        final Pending entry = pending.remove(oldId);
+        if (entry != null) {
+            pending.put(newId, entry);
+        }
+    }
+
+    private static final class Pending {
+        private final AppEngineSession session;
+        private boolean scheduled;
+
+        private Pending(AppEngineSession session) {
+            this.session = session;
+        }
+    }
+
+    private class Save implements Runnable {
+        private final String id;
+        private final Pending entry;
+        private final int attempt;
+
+        private Save(String id, Pending entry, int attempt) {
+            this.id = id;
+            this.entry = entry;
+            this.attempt = attempt;
+        }
+
+        public void run() {
+            synchronized (SessionWriteBehind.this) {
+                if (!entry.scheduled || pending.get(id) != entry) {
+                    return; // flushed, discarded or replaced meanwhile
+                }
+                // a request dirtying the session from here on schedules the next save
+                entry.scheduled = false;
+            }
+            try {
+                factory.persist(entry.session);
+            } catch (ConcurrentModificationException e) {
+                // a request changed the session while it was being written; its latest state is still to be saved
+                if (attempt < MAX_RETRIES && reschedule()) {
+                    return;
+                }
+                logger.log(Level.WARNING, "Cannot save session " + id + ", it keeps changing.", e);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Cannot save session " + id, e);
+            } finally {
+                done(id, entry);
+            }
+        }
+
+        private boolean reschedule() {
+            synchronized (SessionWriteBehind.this) {
+                if (pending.get(id) != entry || entry.scheduled) {
+                    return true; // discarded, or a request already scheduled the next save
+                }
+                entry.scheduled = true;
+            }
+            try {
+                executor.schedule(new Save(id, entry, attempt + 1), windowMillis, TimeUnit.MILLISECONDS);
+                return true;
+            } catch (RejectedExecutionException e) {
+                flush(id); // stopping
+                return true;
+            }
+        }
+    }
+
+    private class PendingSessionManager extends ForwardingSessionManager {
+        private PendingSessionManager(SessionManager delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public Session getSession(HttpServerExchange exchange, SessionConfig config) {
+            final String id = config.findSessionId(exchange);
+            final AppEngineSession session = (id != null) ? get(id) : null;
+            return (session != null) ? session : delegate.getSession(exchange, config);
+        }
+
+        @Override
+        public Session getSession(String sessionId) {
+            final AppEngineSession session = get(sessionId);
+            return (session != null) ? session : delegate.getSession(sessionId);
+        }
+    }
+
+    /**
+     * A destroyed session must not be served, nor saved back.
+     */
+    private class Discarder implements SessionListener {
+        public void sessionCreated(Session session, HttpServerExchange exchange) {
+        }
+
+        public void sessionDestroyed(Session session, HttpServerExchange exchange, SessionDestroyedReason reason) {
+            discard(session.getId());
+        }
+
+        public void attributeAdded(Session session, String name, Object value) {
+        }
+
+        public void attributeUpdated(Session session, String name, Object newValue, Object oldValue) {
+        }
+
+        public void attributeRemoved(Session session, String name, Object oldValue) {
+        }
+
+        public void sessionIdChanged(Session session, String oldSessionId) {
+            rename(oldSessionId, session.getId());
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Size bounded cache with W-TinyLFU eviction and per entry TTL.
+ * <p/>
+ * New entries go into a small LRU window; entries falling out of the window only make it into
+ * the main segmented LRU (probation + protected) if they were used more often than the entry they would replace,
+ * as estimated by a count-min sketch which is halved periodically, so old popularity fades out.
+ * <p/>
+ * Optionally entries are also weighed, and the total weight is bounded too: past it, least recently used
+ * entries go, probation first, then protected, then the window. Entries heavier than the bound are not cached.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+final class TinyLfuCache<K, V> {
+    private final int windowMax;
+    private final int protectedMax;
+    private final int mainMax;
+    private final long ttlNanos;
+    private final long maxWeight;
+    private final Weigher<? super V> weigher;
+    private final FrequencySketch sketch;
+
+    private final LinkedHashMap<K, Entry<V>> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, Entry<V>> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, Entry<V>> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    TinyLfuCache(int capacity, long ttl, TimeUnit unit) {
+        this(capacity, Long.MAX_VALUE, null, ttl, unit);
+    }
+
+    /**
+     * @param maxWeight max total weight of the entries
+     * @param weigher   weighs entries, null for a count bound only
+     */
+    TinyLfuCache(int capacity, long maxWeight, Weigher<? super V> weigher, long ttl, TimeUnit unit) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Capacity must be at least 2: " + capacity);
+        }
+        this.windowMax = Math.max(1, capacity / 100);
+        this.mainMax = capacity - windowMax;
+        this.protectedMax = Math.max(1, (int) (mainMax * 0.8));
+        this.ttlNanos = unit.toNanos(ttl);
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.sketch = new FrequencySketch(capacity);
+    }
+
+    synchronized V get(K key) {
+        sketch.increment(key);
+        Entry<V> entry = window.get(key);
+        if (entry == null) {
+            entry = protectedSegment.get(key);
+        }
+        if (entry == null) {
+            entry = probation.remove(key);
+            if (entry != null) {
+                promote(key, entry);
+            }
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (System.nanoTime() - entry.expiresAt > 0) {
+            remove(key);
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    synchronized void put(K key, V value) {
+        final int entryWeight = (weigher != null) ? weigher.weigh(value) : 1;
+        if (entryWeight > maxWeight) {
+            remove(key); // would not fit anyway, and the old value is stale now
+            return;
+        }
+        final Entry<V> entry = new Entry<>(value, entryWeight, System.nanoTime() + ttlNanos);
+        weight += entryWeight;
+        if (window.containsKey(key)) {
+            replaced(window.put(key, entry));
+        } else if (protectedSegment.containsKey(key)) {
+            replaced(protectedSegment.put(key, entry));
+        } else if (probation.containsKey(key)) {
+            replaced(probation.put(key, entry));
+        } else {
+            sketch.increment(key);
+            window.put(key, entry);
+            if (window.size() > windowMax) {
+                final Map.Entry<K, Entry<V>> candidate = removeEldest(window);
+                admit(candidate.getKey(), candidate.getValue());
+            }
+        }
+        while (weight > maxWeight) {
+            evictEldest();
+        }
+    }
+
+    synchronized void remove(K key) {
+        Entry<V> entry = window.remove(key);
+        if (entry == null) {
+            entry = probation.remove(key);
+        }
+        if (entry == null) {
+            entry = protectedSegment.remove(key);
+        }
+        replaced(entry);
+    }
+
+    synchronized void clear() {
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+        weight = 0;
+    }
+
+    synchronized long weight() {
+        return weight;
+    }
+
+    synchronized int size() {
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private void replaced(Entry<V> old) {
+        if (old != null) {
+            weight -= old.weight;
+        }
+    }
+
+    private void evictEldest() {
+        final LinkedHashMap<K, Entry<V>> segment = !probation.isEmpty() ? probation : !protectedSegment.isEmpty() ? protectedSegment : window;
+        replaced(removeEldest(segment).getValue());
+        evictions++;
+    }
+
+    private void promote(K key, Entry<V> entry) {
+        protectedSegment.put(key, entry);
+        if (protectedSegment.size() > protectedMax) {
+            final Map.Entry<K, Entry<V>> demoted = removeEldest(protectedSegment);
+            probation.put(demoted.getKey(), demoted.getValue());
+        }
+    }
+
+    private void admit(K candidate, Entry<V> entry) {
+        if (probation.size() + protectedSegment.size() < mainMax) {
+            probation.put(candidate, entry);
+            return;
+        }
+        final LinkedHashMap<K, Entry<V>> victims = probation.isEmpty() ? protectedSegment : probation;
+        final K victim = victims.keySet().iterator().next();
+        evictions++;
+        if (sketch.frequency(candidate) > sketch.frequency(victim)) {
+            replaced(victims.remove(victim));
+            probation.put(candidate, entry);
+        } else {
+            replaced(entry);
+        }
+    }
+
+    private static <K, V> Map.Entry<K, Entry<V>> removeEldest(LinkedHashMap<K, Entry<V>> segment) {
+        final Iterator<Map.Entry<K, Entry<V>>> iter = segment.entrySet().iterator();
+        final Map.Entry<K, Entry<V>> eldest = iter.next();
+        iter.remove();
+        return eldest;
+    }
+
+    /**
+     * Spreads keys over independently locked caches, so concurrent lookups of different keys rarely contend.
+     * Admission and eviction decisions are made per stripe.
+     */
+    static final class Striped<K, V> {
+        private final TinyLfuCache<K, V>[] stripes;
+        private final int mask;
+
+        Striped(int capacity, int concurrency, long ttl, TimeUnit unit) {
+            this(capacity, Long.MAX_VALUE, null, concurrency, ttl, unit);
+        }
+
+        /**
+         * @param maxWeight max total weight, split evenly over the stripes
+         */
+        @SuppressWarnings("unchecked")
+        Striped(int capacity, long maxWeight, Weigher<? super V> weigher, int concurrency, long ttl, TimeUnit unit) {
+            int count = Integer.highestOneBit(Math.max(1, concurrency));
+            // keep stripes big enough for the frequency sketch to mean something
+            while (count > 1 && capacity / count < 64) {
+                count >>= 1;
+            }
+            this.stripes = new TinyLfuCache[count];
+            for (int i = 0; i < count; i++) {
+                stripes[i] = new TinyLfuCache<>(Math.max(2, capacity / count), (maxWeight == Long.MAX_VALUE) ? maxWeight : maxWeight / count, weigher, ttl, unit);
+            }
+            this.mask = count - 1;
+        }
+
+        V get(K key) {
+            return stripe(key).get(key);
+        }
+
+        void put(K key, V value) {
+            stripe(key).put(key, value);
+        }
+
+        void remove(K key) {
+            stripe(key).remove(key);
+        }
+
+        void clear() {
+            for (TinyLfuCache<K, V> stripe : stripes) {
+                stripe.clear();
+            }
+        }
+
+        int size() {
+            int size = 0;
+            for (TinyLfuCache<K, V> stripe : stripes) {
+                size += stripe.size();
+            }
+            return size;
+        }
+
+        long getHits() {
+            long hits = 0;
+            for (TinyLfuCache<K, V> stripe : stripes) {
+                hits += stripe.getHits();
+            }
+            return hits;
+        }
+
+        long getMisses() {
+            long misses = 0;
+            for (TinyLfuCache<K, V> stripe : stripes) {
+                misses += stripe.getMisses();
+            }
+            return misses;
+        }
+
+        long getEvictions() {
+            long evictions = 0;
+            for (TinyLfuCache<K, V> stripe : stripes) {
+                evictions += stripe.getEvictions();
+            }
+            return evictions;
+        }
+
+        long weight() {
+            long weight = 0;
+            for (TinyLfuCache<K, V> stripe : stripes) {
+                weight += stripe.weight();
+            }
+            return weight;
+        }
+
+        int getStripes() {
+            return stripes.length;
+        }
+
+        private TinyLfuCache<K, V> stripe(K key) {
+            // different mix than the sketch's, so a stripe's keys still spread over its sketch
+            int h = key.hashCode();
+            h ^= (h >>> 20) ^ (h >>> 12);
+            h ^= (h >>> 7) ^ (h >>> 4);
+            return stripes[h & mask];
+        }
+    }
+
+    interface Weigher<V> {
+        int weigh(V value);
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final int weight;
+        private final long expiresAt;
+
+        private Entry(V value, int weight, long expiresAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Count-min sketch with 4 rows of byte counters, saturating at 15.
+     */
+    static final class FrequencySketch {
+        private static final int[] SEEDS = {0x97cb3127, 0xb3b5e2c5, 0x8e8b8f47, 0xc2b2ae35};
+        private static final int MAX_COUNT = 15;
+
+        private final byte[][] table;
+        private final int mask;
+        private final int sampleSize;
+        private int size;
+
+        FrequencySketch(int capacity) {
+            // ~4 slots per cached entry keeps collisions low enough over a 10x capacity sample
+            final int width = Integer.highestOneBit(Math.max(16, 4 * capacity - 1) << 1);
+            this.table = new byte[SEEDS.length][width];
+            this.mask = width - 1;
+            this.sampleSize = 10 * capacity;
+        }
+
+        void increment(Object key) {
+            final int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                final int index = indexOf(hash, i);
+                if (table[i][index] < MAX_COUNT) {
+                    table[i][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++size >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(Object key) {
+            final int hash = spread(key.hashCode());
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < SEEDS.length; i++) {
+                frequency = Math.min(frequency, table[i][indexOf(hash, i)]);
+            }
+            return frequency;
+        }
+
+        // aging, so entries popular a long time ago can be replaced
+        private void reset() {
+            for (byte[] row : table) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] = (byte) (row[j] >>> 1);
+                }
+            }
+            size /= 2;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 17;
+            return h & mask;
+        }
+
+        private static int spread(int h) {
+            h ^= h >>> 16;
+            h *= 0x45d9f3b;
+            return h ^ (h >>> 16);
+        }
+    }
+}
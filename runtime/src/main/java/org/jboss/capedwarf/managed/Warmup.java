@@ -0,0 +1,285 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.undertow.server.HandlerWrapper;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.HttpString;
+import io.undertow.util.Methods;
+
+/**
+ * Warms the deployment up as soon as it is deployed, instead of waiting for someone to hit /_ah/warmup.
+ * <p/>
+ * Once the deployment serves requests, /_ah/warmup is requested over loopback, then (optionally) a sample of
+ * the GET paths the previous run of the deployment served, in parallel, to get classes loaded and code compiled.
+ * The sample is recorded while serving and saved under the server's data dir when the deployment stops.
+ * Only paths under the configured prefixes are recorded and replayed, never cron or task queue requests,
+ * and query strings (which may carry tokens) are dropped unless explicitly asked for.
+ * As a readiness probe, the instance is not ready until warmup is done (or timed out).
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class Warmup implements HandlerWrapper, ReadinessProbe {
+    private static final Logger logger = Logger.getLogger(Warmup.class.getName());
+    private static final String WARMUP_PATH = "/_ah/warmup";
+    private static final HttpString WARMUP_HEADER = new HttpString("X-CapeDwarf-Warmup");
+    private static final HttpString CRON_HEADER = new HttpString("X-AppEngine-Cron");
+    private static final HttpString QUEUE_HEADER = new HttpString("X-AppEngine-QueueName");
+    private static final long RETRY_INTERVAL = 200L;
+
+    private final String baseUrl;
+    private final Path recording;
+    private final int replay;
+    private final List<String> prefixes;
+    private final boolean query;
+    private final int threads;
+    private final long timeout;
+    private final Set<String> sample = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile boolean done;
+    private volatile Thread runner;
+
+    private Warmup(String baseUrl, Path recording, int replay, List<String> prefixes, boolean query, int threads, long timeout) {
+        this.baseUrl = baseUrl;
+        this.recording = recording;
+        this.replay = prefixes.isEmpty() ? 0 : replay;
+        this.prefixes = prefixes;
+        this.query = query;
+        this.threads = threads;
+        this.timeout = timeout;
+    }
+
+    static Warmup create(CapedwarfConfiguration configuration, String deploymentName, String contextPath) {
+        String server = configuration.getString(CapedwarfConfiguration.WARMUP_SERVER, null);
+        if (server == null) {
+            String host = System.getProperty("jboss.bind.address", "127.0.0.1");
+            if ("0.0.0.0".equals(host)) {
+                host = "127.0.0.1";
+            }
+            final int port = Integer.getInteger("jboss.http.port", 8080) + Integer.getInteger("jboss.socket.binding.port-offset", 0);
+            server = host + ":" + port;
+        }
+        final List<String> prefixes = new ArrayList<>();
+        for (String prefix : configuration.getString(CapedwarfConfiguration.WARMUP_PATHS, "").split(",")) {
+            prefix = prefix.trim();
+            if (prefix.startsWith("/") && !prefix.startsWith("/_ah/")) {
+                prefixes.add(prefix);
+            }
+        }
+        final int replay = configuration.getInt(CapedwarfConfiguration.WARMUP_REPLAY, 0);
+        if (replay > 0 && prefixes.isEmpty()) {
+            logger.info("No warmup paths configured for " + deploymentName + ", nothing is recorded or replayed.");
+        }
+        final String dataDir = System.getProperty("jboss.server.data.dir", System.getProperty("java.io.tmpdir"));
+        return new Warmup(
+            "http://" + server + contextPath,
+            Paths.get(dataDir, "capedwarf", "warmup", deploymentName + ".txt"),
+            replay,
+            prefixes,
+            configuration.getBoolean(CapedwarfConfiguration.WARMUP_QUERY, false),
+            configuration.getInt(CapedwarfConfiguration.WARMUP_THREADS, 4),
+            configuration.getLong(CapedwarfConfiguration.WARMUP_TIMEOUT, 120000L));
+    }
+
+    public String getName() {
+        return "warmup";
+    }
+
+    public boolean isReady() {
+        return done;
+    }
+
+    public HttpHandler wrap(final HttpHandler next) {
+        if (replay <= 0) {
+            return next;
+        }
+        return new HttpHandler() {
+            public void handleRequest(HttpServerExchange exchange) throws Exception {
+                if (sample.size() < replay && Methods.GET.equals(exchange.getRequestMethod()) && isRecordable(exchange.getRequestHeaders())) {
+                    final String path = exchange.getRelativePath();
+                    if (isAllowed(path)) {
+                        final String queryString = exchange.getQueryString();
+                        sample.add((query && !queryString.isEmpty()) ? path + "?" + queryString : path);
+                    }
+                }
+                next.handleRequest(exchange);
+            }
+        };
+    }
+
+    private static boolean isRecordable(HeaderMap headers) {
+        return !headers.contains(WARMUP_HEADER) && !headers.contains(CRON_HEADER) && !headers.contains(QUEUE_HEADER);
+    }
+
+    private boolean isAllowed(String path) {
+        if (path.startsWith("/_ah/") || path.contains("..")) {
+            return false;
+        }
+        for (String prefix : prefixes) {
+            if (path.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void start() {
+        final Thread thread = new AsyncRequestTeardown.DaemonThreadFactory("capedwarf-warmup").newThread(new Runnable() {
+            public void run() {
+                try {
+                    warmup();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done = true;
+                }
+            }
+        });
+        runner = thread;
+        thread.start();
+    }
+
+    void stop() {
+        final Thread thread = runner;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        if (replay > 0 && !sample.isEmpty()) {
+            try {
+                Files.createDirectories(recording.getParent());
+                Files.write(recording, new ArrayList<>(sample), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot save warmup paths to " + recording, e);
+            }
+        }
+    }
+
+    private void warmup() throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        final long deadline = start + timeout;
+        // the deployment is not serving yet while it starts
+        int status;
+        while ((status = get(WARMUP_PATH)) < 0 || status == 404 || status == 503) {
+            if (System.currentTimeMillis() > deadline) {
+                logger.warning("Deployment at " + baseUrl + " did not serve " + WARMUP_PATH + " within " + timeout + "ms.");
+                return;
+            }
+            Thread.sleep(RETRY_INTERVAL);
+        }
+
+        final List<String> paths = loadPaths();
+        if (!paths.isEmpty()) {
+            final ExecutorService executor = Executors.newFixedThreadPool(threads, new AsyncRequestTeardown.DaemonThreadFactory("capedwarf-warmup-replay"));
+            try {
+                for (final String path : paths) {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            get(path);
+                        }
+                    });
+                }
+                executor.shutdown();
+                if (!executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                    logger.warning("Warmup replay of " + paths.size() + " paths timed out.");
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        logger.info(String.format("Warmed up %s in %dms, replayed %d paths.", baseUrl, System.currentTimeMillis() - start, paths.size()));
+    }
+
+    private List<String> loadPaths() {
+        if (replay <= 0 || !Files.isReadable(recording)) {
+            return Collections.emptyList();
+        }
+        try {
+            // the recording may predate the current settings
+            final List<String> paths = new ArrayList<>();
+            for (String path : Files.readAllLines(recording, StandardCharsets.UTF_8)) {
+                final int q = path.indexOf('?');
+                if (q >= 0 && !query) {
+                    path = path.substring(0, q);
+                }
+                if (paths.size() < replay && isAllowed(path) && !paths.contains(path)) {
+                    paths.add(path);
+                }
+            }
+            return paths;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot read warmup paths from " + recording, e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * @return response status, -1 if there was none
+     */
+    private int get(String path) {
+        try {
+            final HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+            connection.setRequestProperty(WARMUP_HEADER.toString(), "true");
+            connection.setConnectTimeout(1000);
+            connection.setReadTimeout((int) Math.min(Integer.MAX_VALUE, timeout));
+            try {
+                final int status = connection.getResponseCode();
+                final InputStream in = (status < 400) ? connection.getInputStream() : connection.getErrorStream();
+                if (in != null) {
+                    try {
+                        final byte[] buffer = new byte[4096];
+                        while (in.read(buffer) != -1) {
+                            // drain, so the connection is kept alive
+                        }
+                    } finally {
+                        in.close();
+                    }
+                }
+                return status;
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+}
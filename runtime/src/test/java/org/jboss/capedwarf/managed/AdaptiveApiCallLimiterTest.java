@@ -0,0 +1,89 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class AdaptiveApiCallLimiterTest {
+    @Test
+    public void testStartsAtConfiguredMax() {
+        System.setProperty(CapedwarfConfiguration.API_LIMIT_MAX, "300");
+        try {
+            final AdaptiveApiCallLimiter limiter = AdaptiveApiCallLimiter.create(null, CapedwarfConfiguration.fromSystemProperties(), null);
+            Assert.assertEquals(300, limiter.getLimit());
+        } finally {
+            System.clearProperty(CapedwarfConfiguration.API_LIMIT_MAX);
+        }
+    }
+
+    @Test
+    public void testInstanceLimit() {
+        final AdaptiveApiCallLimiter limiter = new AdaptiveApiCallLimiter(null, new GradientLimit(4, 1, 4), 100, null);
+        final AdaptiveApiCallLimiter.Permit[] permits = new AdaptiveApiCallLimiter.Permit[4];
+        for (int i = 0; i < permits.length; i++) {
+            permits[i] = limiter.acquire(new Object(), "memcache", "Get");
+        }
+        Assert.assertEquals(4, limiter.getInFlight());
+        try {
+            limiter.acquire(new Object(), "memcache", "Get");
+            Assert.fail("Expected rejection");
+        } catch (AdaptiveApiCallLimiter.RejectedException expected) {
+            Assert.assertEquals(1, limiter.getRejected());
+        }
+        permits[0].release(false);
+        permits[0].release(false); // only counts once
+        Assert.assertEquals(3, limiter.getInFlight());
+        limiter.acquire(new Object(), "memcache", "Get");
+        Assert.assertEquals(4, limiter.getInFlight());
+    }
+
+    @Test
+    public void testRequestShare() {
+        final AdaptiveApiCallLimiter limiter = new AdaptiveApiCallLimiter(null, new GradientLimit(10, 1, 10), 3, null);
+        final Object request = new Object();
+        for (int i = 0; i < 3; i++) {
+            limiter.acquire(request, "datastore_v3", "Get");
+        }
+        try {
+            limiter.acquire(request, "datastore_v3", "Get");
+            Assert.fail("Expected rejection");
+        } catch (AdaptiveApiCallLimiter.RejectedException expected) {
+            Assert.assertEquals(3, limiter.getInFlight());
+        }
+        // other requests still get their share
+        limiter.acquire(new Object(), "datastore_v3", "Get");
+        Assert.assertEquals(4, limiter.getInFlight());
+    }
+
+    @Test
+    public void testDroppedCallsShrinkLimit() {
+        final AdaptiveApiCallLimiter limiter = new AdaptiveApiCallLimiter(null, new GradientLimit(10, 1, 10), 100, null);
+        limiter.acquire(new Object(), "memcache", "Get").release(true);
+        Assert.assertEquals(9, limiter.getLimit());
+        Assert.assertEquals(0, limiter.getInFlight());
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the pooled API transport against a local stub server.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class ApiHttpTransportTest {
+    private static final String PATH = "/rpc_http";
+    private static final Map<String, String> HEADERS = Collections.singletonMap("Content-Type", "application/octet-stream");
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private String address;
+    private volatile CountDownLatch block;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(PATH, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                final byte[] body = readAll(exchange.getRequestBody());
+                if (block != null) {
+                    try {
+                        block.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+        address = "127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testConnectionIsReused() throws Exception {
+        final ApiHttpTransport transport = new ApiHttpTransport(4, 1000, 1000L, 10000L);
+        try {
+            for (int i = 0; i < 10; i++) {
+                final byte[] payload = ("call-" + i).getBytes("UTF-8");
+                final ApiHttpConnection.Response response = transport.post(address, PATH, HEADERS, payload, 5000);
+                Assert.assertEquals(200, response.getStatus());
+                Assert.assertArrayEquals(payload, response.getBody());
+            }
+            Assert.assertEquals(1, transport.getCreated());
+            Assert.assertEquals(9, transport.getReused());
+            Assert.assertEquals(1, transport.getIdle());
+            Assert.assertEquals(0, transport.getLeased());
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void testSaturation() throws Exception {
+        final ApiHttpTransport transport = new ApiHttpTransport(1, 1000, 100L, 10000L);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        block = new CountDownLatch(1);
+        try {
+            final Future<ApiHttpConnection.Response> first = executor.submit(new Callable<ApiHttpConnection.Response>() {
+                public ApiHttpConnection.Response call() throws Exception {
+                    return transport.post(address, PATH, HEADERS, new byte[]{1}, 5000);
+                }
+            });
+            while (transport.getLeased() == 0) {
+                Thread.sleep(5);
+            }
+            try {
+                transport.post(address, PATH, HEADERS, new byte[]{2}, 5000);
+                Assert.fail("Expected saturation");
+            } catch (IOException expected) {
+                Assert.assertEquals(1, transport.getSaturated());
+            }
+            block.countDown();
+            Assert.assertEquals(200, first.get(5, TimeUnit.SECONDS).getStatus());
+        } finally {
+            block.countDown();
+            executor.shutdownNow();
+            transport.close();
+        }
+    }
+
+    @Test
+    public void testNoRetryOnceRequestWasSent() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        try (final ServerSocket dropping = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))) {
+            final Thread acceptor = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (true) {
+                            try (Socket socket = dropping.accept()) {
+                                final InputStream in = new BufferedInputStream(socket.getInputStream());
+                                final OutputStream out = socket.getOutputStream();
+                                while (readRequest(in)) {
+                                    // answer the first request, drop the connection on the next one w/o answering
+                                    if (requests.incrementAndGet() > 1) {
+                                        break;
+                                    }
+                                    out.write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes("US-ASCII"));
+                                    out.flush();
+                                }
+                            }
+                        }
+                    } catch (IOException ignored) {
+                        // server socket closed
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            final ApiHttpTransport transport = new ApiHttpTransport(1, 1000, 1000L, 10000L);
+            try {
+                final String server = "127.0.0.1:" + dropping.getLocalPort();
+                Assert.assertEquals(200, transport.post(server, PATH, HEADERS, new byte[]{1}, 5000).getStatus());
+                try {
+                    transport.post(server, PATH, HEADERS, new byte[]{2}, 5000);
+                    Assert.fail("Expected failure");
+                } catch (IOException expected) {
+                    // the server might have processed it, so it must not be sent again
+                }
+                Assert.assertEquals(2, requests.get());
+                Assert.assertEquals(0, transport.getRetried());
+            } finally {
+                transport.close();
+            }
+        }
+    }
+
+    @Test
+    public void testInterimResponseIsSkipped() throws Exception {
+        try (final ServerSocket continuing = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))) {
+            final Thread acceptor = new Thread(new Runnable() {
+                public void run() {
+                    try (Socket socket = continuing.accept()) {
+                        final InputStream in = new BufferedInputStream(socket.getInputStream());
+                        final OutputStream out = socket.getOutputStream();
+                        if (readRequest(in)) {
+                            out.write("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes("US-ASCII"));
+                            out.flush();
+                        }
+                    } catch (IOException ignored) {
+                        // server socket closed
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            final ApiHttpTransport transport = new ApiHttpTransport(1, 1000, 1000L, 10000L);
+            try {
+                final ApiHttpConnection.Response response = transport.post("127.0.0.1:" + continuing.getLocalPort(), PATH, HEADERS, new byte[]{1}, 5000);
+                Assert.assertEquals(200, response.getStatus());
+                Assert.assertArrayEquals("ok".getBytes("US-ASCII"), response.getBody());
+            } finally {
+                transport.close();
+            }
+        }
+    }
+
+    /**
+     * Read one request, head and Content-Length body.
+     *
+     * @return false if the stream ended
+     */
+    private static boolean readRequest(InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int contentLength = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\r') {
+                continue;
+            }
+            if (b != '\n') {
+                line.append((char) b);
+                continue;
+            }
+            if (line.length() == 0) {
+                for (int i = 0; i < contentLength; i++) {
+                    if (in.read() == -1) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            final String header = line.toString();
+            if (header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                contentLength = Integer.parseInt(header.substring(15).trim());
+            }
+            line.setLength(0);
+        }
+        return false;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            baos.write(buffer, 0, n);
+        }
+        return baos.toByteArray();
+    }
+}
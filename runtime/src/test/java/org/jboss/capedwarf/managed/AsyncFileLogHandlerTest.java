@@ -0,0 +1,180 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class AsyncFileLogHandlerTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("capedwarf-logs").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Assert.assertTrue(file.delete());
+            }
+        }
+        Assert.assertTrue(dir.delete());
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        final AsyncFileLogHandler handler = new AsyncFileLogHandler(dir + "/app.%g.log.json", Long.MAX_VALUE, 3, 64, AsyncFileLogHandler.OverflowPolicy.BLOCK);
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        handler.publish(new LogRecord(Level.INFO, "t" + id + " \"record\" " + i));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        handler.close();
+
+        final List<String> lines = Files.readAllLines(new File(dir, "app.0.log.json").toPath(), StandardCharsets.UTF_8);
+        Assert.assertEquals(4000, lines.size());
+        Assert.assertEquals(0, handler.getDropped());
+        Assert.assertTrue(lines.get(0), lines.get(0).contains("\"severity\":\"INFO\""));
+        Assert.assertTrue(lines.get(0), lines.get(0).contains("\\\"record\\\""));
+    }
+
+    @Test
+    public void testMessageFormattedOnPublish() throws Exception {
+        final AsyncFileLogHandler handler = new AsyncFileLogHandler(dir + "/app.%g.log.json", Long.MAX_VALUE, 3, 16, AsyncFileLogHandler.OverflowPolicy.BLOCK);
+        final StringBuilder state = new StringBuilder("before");
+        final LogRecord record = new LogRecord(Level.INFO, "state {0}");
+        record.setParameters(new Object[]{state});
+        handler.publish(record);
+        state.setLength(0);
+        state.append("after");
+        handler.close();
+
+        final List<String> lines = Files.readAllLines(new File(dir, "app.0.log.json").toPath(), StandardCharsets.UTF_8);
+        Assert.assertEquals(1, lines.size());
+        Assert.assertTrue(lines.get(0), lines.get(0).contains("state before"));
+    }
+
+    @Test
+    public void testRotation() throws Exception {
+        final AsyncFileLogHandler handler = new AsyncFileLogHandler(dir + "/app.%g.log.json", 1024, 2, 16, AsyncFileLogHandler.OverflowPolicy.BLOCK);
+        for (int i = 0; i < 200; i++) {
+            handler.publish(new LogRecord(Level.WARNING, "record " + i));
+            handler.flush();
+        }
+        handler.close();
+
+        Assert.assertTrue(new File(dir, "app.0.log.json").length() <= 1024);
+        Assert.assertTrue(new File(dir, "app.1.log.json").length() > 0);
+        Assert.assertFalse(new File(dir, "app.2.log.json").exists());
+    }
+
+    @Test
+    public void testBinaryRotationAndCompression() throws Exception {
+        final AsyncFileLogHandler handler = new AsyncFileLogHandler(new BinaryLogEncoder(), dir + "/app.%g.log.bin", 2048, 0, 3, true, 16, AsyncFileLogHandler.OverflowPolicy.BLOCK);
+        for (int i = 0; i < 300; i++) {
+            final LogRecord record = new LogRecord(i % 2 == 0 ? Level.INFO : Level.SEVERE, "record {0}");
+            record.setParameters(new Object[]{i});
+            record.setLoggerName("org.acme.Logger" + (i % 3));
+            if (i == 299) {
+                record.setThrown(new IllegalStateException("boom"));
+            }
+            handler.publish(record);
+        }
+        handler.close();
+
+        Assert.assertTrue(new File(dir, "app.0.log.bin").length() <= 2048);
+        Assert.assertTrue(new File(dir, "app.1.log.bin.gz").exists());
+        Assert.assertFalse(new File(dir, "app.1.log.bin").exists());
+        Assert.assertFalse(new File(dir, "app.3.log.bin.gz").exists());
+
+        // newest file has the last records, each file reads on its own
+        int records = 0;
+        BinaryLogReader.Entry last = null;
+        try (BinaryLogReader reader = BinaryLogReader.open(dir + "/app.0.log.bin")) {
+            BinaryLogReader.Entry entry;
+            while ((entry = reader.next()) != null) {
+                Assert.assertTrue(entry.getLogger(), entry.getLogger().startsWith("org.acme.Logger"));
+                last = entry;
+                records++;
+            }
+        }
+        Assert.assertTrue(records > 0);
+        Assert.assertEquals("record 299", last.getMessage());
+        Assert.assertEquals(Level.SEVERE, last.getLevel());
+        Assert.assertTrue(last.getThrown(), last.getThrown().contains("boom"));
+        try (BinaryLogReader reader = BinaryLogReader.open(dir + "/app.1.log.bin.gz")) {
+            Assert.assertNotNull(reader.next());
+        }
+    }
+
+    @Test
+    public void testBinaryReaderSkipsUnknownFrames() throws Exception {
+        final BinaryLogEncoder encoder = new BinaryLogEncoder();
+        final LogRecordEncoder.Output out = new LogRecordEncoder.Output(256);
+        encoder.startSegment(out);
+        encoder.encode(new LogRecord(Level.INFO, "first"), out);
+        // a frame type from some later version: type, length, body
+        out.write(42);
+        out.write(3);
+        out.write(new byte[]{1, 2, 3}, 0, 3);
+        encoder.encode(new LogRecord(Level.WARNING, "second"), out);
+        final int complete = out.size();
+        encoder.encode(new LogRecord(Level.INFO, "truncated"), out);
+
+        final byte[] segment = Arrays.copyOf(out.toByteArray(), complete + 3);
+        try (BinaryLogReader reader = new BinaryLogReader(new ByteArrayInputStream(segment))) {
+            Assert.assertEquals("first", reader.next().getMessage());
+            final BinaryLogReader.Entry second = reader.next();
+            Assert.assertEquals("second", second.getMessage());
+            Assert.assertEquals(Level.WARNING, second.getLevel());
+            Assert.assertNull(reader.next());
+        }
+    }
+}
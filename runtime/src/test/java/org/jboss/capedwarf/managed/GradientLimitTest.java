@@ -0,0 +1,88 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class GradientLimitTest {
+    private static final long RTT = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testInitialLimitIsClamped() {
+        Assert.assertEquals(100, new GradientLimit(500, 1, 100).getLimit());
+        Assert.assertEquals(5, new GradientLimit(0, 5, 100).getLimit());
+    }
+
+    @Test
+    public void testGrowsWhileLatencyIsStable() {
+        final GradientLimit limit = new GradientLimit(10, 1, 100);
+        for (int i = 0; i < 20; i++) {
+            limit.onSample(RTT, limit.getLimit(), false);
+        }
+        Assert.assertTrue("Limit " + limit.getLimit(), limit.getLimit() > 10);
+        for (int i = 0; i < 1000; i++) {
+            limit.onSample(RTT, limit.getLimit(), false);
+        }
+        Assert.assertEquals(100, limit.getLimit());
+    }
+
+    @Test
+    public void testShrinksWhenLatencyRises() {
+        final GradientLimit limit = new GradientLimit(100, 1, 100);
+        for (int i = 0; i < 100; i++) {
+            limit.onSample(RTT, limit.getLimit(), false);
+        }
+        Assert.assertEquals(100, limit.getLimit());
+        for (int i = 0; i < 20; i++) {
+            limit.onSample(10 * RTT, limit.getLimit(), false);
+        }
+        Assert.assertTrue("Limit " + limit.getLimit(), limit.getLimit() < 50);
+    }
+
+    @Test
+    public void testUnusedLimitIsLeftAlone() {
+        final GradientLimit limit = new GradientLimit(100, 1, 100);
+        limit.onSample(RTT, 1, false);
+        for (int i = 0; i < 20; i++) {
+            limit.onSample(10 * RTT, 1, false);
+        }
+        Assert.assertEquals(100, limit.getLimit());
+    }
+
+    @Test
+    public void testDropsBackOff() {
+        final GradientLimit limit = new GradientLimit(100, 2, 100);
+        limit.onSample(RTT, 1, true);
+        Assert.assertEquals(90, limit.getLimit());
+        for (int i = 0; i < 100; i++) {
+            limit.onSample(RTT, 1, true);
+        }
+        Assert.assertEquals(2, limit.getLimit());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class LogLinearHistogramTest {
+    @Test
+    public void testBucketsCoverValues() {
+        long previous = -1;
+        for (int i = 0; i < 960; i++) {
+            final long upper = LogLinearHistogram.upperBound(i);
+            Assert.assertTrue("bucket " + i, upper > previous);
+            Assert.assertEquals(i, LogLinearHistogram.indexOf(previous + 1));
+            Assert.assertEquals(i, LogLinearHistogram.indexOf(upper));
+            previous = upper;
+            if (upper == Long.MAX_VALUE) {
+                break;
+            }
+        }
+        Assert.assertEquals(Long.MAX_VALUE, previous);
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        final LogLinearHistogram histogram = new LogLinearHistogram();
+        for (int i = 1; i <= 10; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(10, histogram.getCount());
+        Assert.assertEquals(10, histogram.getMax());
+        Assert.assertEquals(5, histogram.getMean());
+        Assert.assertEquals(5, histogram.getValueAtQuantile(0.5));
+        Assert.assertEquals(10, histogram.getValueAtQuantile(1.0));
+    }
+
+    @Test
+    public void testQuantileError() {
+        final LogLinearHistogram histogram = new LogLinearHistogram();
+        for (int i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+        assertWithin(50000, histogram.getValueAtQuantile(0.5));
+        assertWithin(99000, histogram.getValueAtQuantile(0.99));
+        assertWithin(99900, histogram.getValueAtQuantile(0.999));
+        Assert.assertEquals(100000, histogram.getMax());
+    }
+
+    @Test
+    public void testEmptyAndNegative() {
+        final LogLinearHistogram histogram = new LogLinearHistogram();
+        Assert.assertEquals(0, histogram.getValueAtQuantile(0.99));
+        Assert.assertEquals(0, histogram.getMean());
+        histogram.record(-5);
+        Assert.assertEquals(0, histogram.getMax());
+        Assert.assertEquals(1, histogram.getCount());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        // 16 sub-buckets per power of two
+        Assert.assertTrue(expected + " ~ " + actual, Math.abs(actual - expected) <= expected / 16);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.managed;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class TinyLfuCacheTest {
+    @Test
+    public void testHitsAndMisses() {
+        final TinyLfuCache<String, String> cache = new TinyLfuCache<>(100, 1, TimeUnit.MINUTES);
+        cache.put("a", "1");
+        Assert.assertEquals("1", cache.get("a"));
+        Assert.assertNull(cache.get("b"));
+        cache.remove("a");
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testHotEntriesSurviveScan() {
+        final int capacity = 100;
+        final TinyLfuCache<String, String> cache = new TinyLfuCache<>(capacity, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < capacity; i++) {
+            cache.put("hot-" + i, "v");
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < capacity; i++) {
+                cache.get("hot-" + i);
+            }
+        }
+        // one-hit wonders must not flush the hot set
+        for (int i = 0; i < 10 * capacity; i++) {
+            cache.put("scan-" + i, "v");
+        }
+        int survivors = 0;
+        for (int i = 0; i < capacity; i++) {
+            if (cache.get("hot-" + i) != null) {
+                survivors++;
+            }
+        }
+        Assert.assertTrue("Only " + survivors + " hot entries survived", survivors >= capacity * 9 / 10);
+        Assert.assertTrue(cache.size() <= capacity);
+        Assert.assertTrue(cache.getEvictions() >= 10 * capacity);
+    }
+
+    @Test
+    public void testStriped() {
+        final TinyLfuCache.Striped<String, String> cache = new TinyLfuCache.Striped<>(1000, 8, 1, TimeUnit.MINUTES);
+        Assert.assertEquals(8, cache.getStripes());
+        for (int i = 0; i < 100; i++) {
+            cache.put("k-" + i, "v-" + i);
+        }
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals("v-" + i, cache.get("k-" + i));
+        }
+        Assert.assertEquals(100, cache.size());
+        Assert.assertEquals(100, cache.getHits());
+        cache.remove("k-0");
+        Assert.assertNull(cache.get("k-0"));
+        Assert.assertEquals(1, cache.getMisses());
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+        // small caches aren't split up into useless stripes
+        Assert.assertEquals(1, new TinyLfuCache.Striped<String, String>(100, 8, 1, TimeUnit.MINUTES).getStripes());
+    }
+
+    @Test
+    public void testWeightBound() {
+        final TinyLfuCache.Weigher<String> length = new TinyLfuCache.Weigher<String>() {
+            public int weigh(String value) {
+                return value.length();
+            }
+        };
+        final TinyLfuCache<String, String> cache = new TinyLfuCache<>(1000, 100, length, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < 50; i++) {
+            cache.put("k-" + i, "0123456789");
+            Assert.assertTrue("Weight " + cache.weight(), cache.weight() <= 100);
+        }
+        Assert.assertEquals(100, cache.weight());
+        Assert.assertEquals(10, cache.size());
+        Assert.assertEquals(40, cache.getEvictions());
+
+        // replacing an entry re-weighs it
+        cache.put("k-49", "01234");
+        Assert.assertEquals(95, cache.weight());
+        cache.remove("k-49");
+        Assert.assertEquals(90, cache.weight());
+
+        // too heavy to cache at all, and the stale value goes too
+        cache.put("k-48", new String(new char[101]));
+        Assert.assertNull(cache.get("k-48"));
+        Assert.assertEquals(80, cache.weight());
+        cache.clear();
+        Assert.assertEquals(0, cache.weight());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        final TinyLfuCache<String, String> cache = new TinyLfuCache<>(10, 10, TimeUnit.MILLISECONDS);
+        cache.put("a", "1");
+        Thread.sleep(20);
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(0, cache.size());
+    }
+}